@@ -0,0 +1,90 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Cost of reading the {@value SyntheticServer#DYNAMIC_ATTRIBUTES} attributes of a dynamic MBean: one request per
+ * attribute, one bulk request, and the get and attributes commands.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AttributeBenchmark {
+
+	String bean;
+	ObjectName name;
+	String[] attributes;
+	String[] getCommand;
+	String[] attributesCommand;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkFixture fixture) {
+		bean = fixture.dynamic(fixture.beans / 2);
+		name = fixture.jconnect.getIndex().getName(bean);
+		attributes = new String[SyntheticServer.DYNAMIC_ATTRIBUTES];
+		for(int i = 0; i < attributes.length; i++)
+			attributes[i] = "attr"+i;
+		getCommand = new String[] { bean, "get", String.join(",", attributes) };
+		attributesCommand = new String[] { bean, "attributes" };
+	}
+
+	@Benchmark
+	public void individualReads(BenchmarkFixture fixture, Blackhole blackhole) throws IOException, JMException {
+		for(String attribute : attributes)
+			blackhole.consume(fixture.mbsc.getAttribute(name, attribute));
+	}
+
+	@Benchmark
+	public Map<String, Object> bulkRead(BenchmarkFixture fixture) throws IOException, JMException {
+		return fixture.jconnect.getAttributes(name, attributes);
+	}
+
+	@Benchmark
+	public int getCommand(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(getCommand);
+		return fixture.jconnect.getExitCode();
+	}
+
+	@Benchmark
+	public int attributesCommand(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(attributesCommand);
+		return fixture.jconnect.getExitCode();
+	}
+}
@@ -0,0 +1,94 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+import javax.management.MBeanServerConnection;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * JMH state shared by the benchmarks: a {@link SyntheticServer} and a JConnect connected to it.<br>
+ * The output of the commands is discarded so that the benchmarks measure JConnect and not the console.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@State(Scope.Benchmark)
+public class BenchmarkFixture {
+
+	/** number of synthetic MBeans */
+	@Param({ "1000", "10000", "100000" })
+	public int beans;
+
+	/** latency added to each call received by the server, in microseconds */
+	@Param({ "0" })
+	public long latencyMicros;
+
+	SyntheticServer server;
+	JConnect jconnect;
+	MBeanServerConnection mbsc;
+	private PrintStream stdout;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		server = new SyntheticServer(beans, latencyMicros);
+		jconnect = new JConnect(server.options());
+		jconnect.connect();
+		mbsc = jconnect.getConnection();
+
+		stdout = System.out;
+		System.setOut(new PrintStream(new OutputStream() {
+			@Override
+			public void write(int b) {
+				// discarded
+			}
+
+			@Override
+			public void write(byte[] b, int off, int len) {
+				// discarded
+			}
+		}));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		System.setOut(stdout);
+		jconnect.close();
+		server.close();
+	}
+
+	/**
+	 * @param i the index of a bean
+	 * @return the short name of the standard MBean closest to the index
+	 */
+	String standard(int i) {
+		return BeanIndex.shortName(SyntheticServer.standardName((i % beans) & ~1));
+	}
+
+	/**
+	 * @param i the index of a bean
+	 * @return the short name of the dynamic MBean closest to the index
+	 */
+	String dynamic(int i) {
+		return BeanIndex.shortName(SyntheticServer.dynamicName((i % beans) | 1));
+	}
+}
@@ -0,0 +1,105 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jline.reader.Candidate;
+import org.jline.reader.ParsedLine;
+import org.jline.reader.impl.DefaultParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Latency of the console completion once the MBeanInfo have been prefetched: bean names by prefix and by
+ * substring, operations and attributes of a bean.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompletionBenchmark {
+
+	JConnect.ConsoleCompletor completor;
+	ParsedLine beanPrefix;
+	ParsedLine beanSubstring;
+	ParsedLine operation;
+	ParsedLine attribute;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkFixture fixture) throws InterruptedException {
+		completor = new JConnect.ConsoleCompletor(fixture.jconnect);
+		while(completor.index.isLoading())
+			Thread.sleep(10);
+
+		DefaultParser parser = new DefaultParser();
+		String standard = fixture.standard(fixture.beans / 2);
+		beanPrefix = parse(parser, standard.substring(0, standard.length() - 2));
+		beanSubstring = parse(parser, "00"+standard.substring(standard.length() - 3));
+		operation = parse(parser, standard+" e");
+		attribute = parse(parser, fixture.dynamic(fixture.beans / 2)+" get attr1");
+	}
+
+	private static ParsedLine parse(DefaultParser parser, String line) {
+		return parser.parse(line, line.length());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		completor.close();
+	}
+
+	private List<Candidate> complete(ParsedLine line) {
+		List<Candidate> candidates = new ArrayList<>();
+		completor.complete(null, line, candidates);
+		return candidates;
+	}
+
+	@Benchmark
+	public List<Candidate> beanByPrefix() {
+		return complete(beanPrefix);
+	}
+
+	@Benchmark
+	public List<Candidate> beanBySubstring() {
+		return complete(beanSubstring);
+	}
+
+	@Benchmark
+	public List<Candidate> operationOfBean() {
+		return complete(operation);
+	}
+
+	@Benchmark
+	public List<Candidate> attributeOfBean() {
+		return complete(attribute);
+	}
+}
@@ -0,0 +1,99 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the operation calls: the resolution and conversion of the arguments alone, the raw invoke,
+ * and the whole command on standard and dynamic MBeans.<br>
+ * Run with -prof gc to get the allocation rate per command.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InvokeBenchmark {
+
+	ObjectName standardName;
+	OperationTable operations;
+	String[] standardCommand;
+	String[] dynamicCommand;
+	String[] echoCommand;
+
+	@Setup(Level.Trial)
+	public void setup(BenchmarkFixture fixture) throws IOException, JMException {
+		String standard = fixture.standard(fixture.beans / 2);
+		String dynamic = fixture.dynamic(fixture.beans / 2);
+		standardName = fixture.jconnect.getIndex().getName(standard);
+		operations = fixture.jconnect.getIndex().getOperations(standardName);
+		standardCommand = new String[] { standard, "add", "40", "2" };
+		dynamicCommand = new String[] { dynamic, "increment", "3", "1" };
+		echoCommand = new String[] { standard, "echo", "hello" };
+	}
+
+	@Benchmark
+	public OperationTable.Call resolve() {
+		return operations.resolve("add", standardCommand, 2);
+	}
+
+	@Benchmark
+	public Object convert() {
+		return Converters.forType("long").convert("123456789");
+	}
+
+	@Benchmark
+	public Object rawInvoke(BenchmarkFixture fixture) throws IOException, JMException {
+		return fixture.mbsc.invoke(standardName, "add", new Object[] { 40, 2 }, new String[] { "int", "int" });
+	}
+
+	@Benchmark
+	public int invokeStandard(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(standardCommand);
+		return fixture.jconnect.getExitCode();
+	}
+
+	@Benchmark
+	public int invokeDynamic(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(dynamicCommand);
+		return fixture.jconnect.getExitCode();
+	}
+
+	@Benchmark
+	public int invokeWithStringResult(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(echoCommand);
+		return fixture.jconnect.getExitCode();
+	}
+}
@@ -0,0 +1,77 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of listing the beans: the raw queryNames, the rebuild of the bean index, the ? command served by the
+ * index and a query pushed down to the server.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ListingBenchmark {
+
+	private static final ObjectName ALL;
+	static {
+		try {
+			ALL = new ObjectName("bench:*");
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	@Benchmark
+	public Set<ObjectName> queryNames(BenchmarkFixture fixture) throws IOException {
+		return fixture.mbsc.queryNames(ALL, null);
+	}
+
+	@Benchmark
+	public int rebuildIndex(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.getIndex().build();
+		return fixture.jconnect.getIndex().size();
+	}
+
+	@Benchmark
+	public int listCommand(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(new String[] { "?" });
+		return fixture.jconnect.getExitCode();
+	}
+
+	@Benchmark
+	public int queryCommand(BenchmarkFixture fixture) throws IOException {
+		fixture.jconnect.executeCommand(new String[] { "query", "bench:group=g2,*", "where", "Count", ">", "100" });
+		return fixture.jconnect.getExitCode();
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup of an inline command: the time from the launch of the JVM of jconnect to the first request received by
+ * the server, and the time of the whole command.<br>
+ * Each invocation starts a new JVM executing "jconnect -- &lt;bean&gt; get Count" against a {@link SyntheticServer}
+ * of the benchmark JVM, with the classpath of the benchmarks:
+ * <ul>
+ * <li>log4j: log4j-core initialized like before the inline commands switched to the simple logger</li>
+ * <li>default: no JVM option</li>
+ * <li>cds: a dynamic class data sharing archive created by a training run (JDK 13 and later)</li>
+ * <li>tuned: the archive and the options of the launcher, C1 only, serial GC and no perf data</li>
+ * </ul>
+ * <pre>
+ * java -jar target/benchmarks.jar StartupBenchmark -rf json
+ * </pre>
+ *
+ * @author Anthony THOMAS
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 20)
+@Fork(1)
+public class StartupBenchmark {
+
+	/** options of the jconnect launcher for the short runs */
+	static final List<String> TUNED = Arrays.asList("-XX:TieredStopAtLevel=1", "-XX:+UseSerialGC", "-XX:-UsePerfData");
+
+	private static final long TIMEOUT_SECONDS = 60;
+
+	/** JVM configuration of jconnect */
+	@Param({ "log4j", "default", "cds", "tuned" })
+	public String jvm;
+
+	SyntheticServer server;
+	List<String> options = new ArrayList<>();
+	List<String> command = new ArrayList<>();
+	File archive;
+	volatile CountDownLatch firstRequest = new CountDownLatch(1);
+	Process process;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException, JMException, InterruptedException {
+		server = new SyntheticServer(1000, 0, name -> firstRequest.countDown());
+		command.addAll(Arrays.asList(server.options()));
+		command.addAll(Arrays.asList("--", BeanIndex.shortName(SyntheticServer.standardName(0)), "get", "Count"));
+
+		switch(jvm) {
+		case "log4j":
+			options.add("-Dlog4j2.loggerContextFactory=org.apache.logging.log4j.core.impl.Log4jContextFactory");
+			break;
+		case "tuned":
+		case "cds":
+			if("tuned".equals(jvm))
+				options.addAll(TUNED);
+			archive = File.createTempFile("jconnect", ".jsa");
+			archive.delete();
+			List<String> training = new ArrayList<>(options);
+			training.add("-XX:ArchiveClassesAtExit="+archive);
+			training.add("-Xlog:cds=off");
+			training.add("-Xlog:cds+dynamic=off");
+			waitFor(start(training));
+			if(!archive.isFile())
+				throw new IllegalStateException("No archive created, the cds configurations require a JDK 13 or later and a classpath of jars");
+			options.add("-XX:SharedArchiveFile="+archive);
+			options.add("-Xlog:cds=off");
+			options.add("-Xlog:cds+dynamic=off");
+			break;
+		case "default":
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown jvm configuration "+jvm);
+		}
+	}
+
+	@Setup(Level.Invocation)
+	public void prepare() {
+		firstRequest = new CountDownLatch(1);
+	}
+
+	@TearDown(Level.Invocation)
+	public void end() throws InterruptedException {
+		if(process != null)
+			waitFor(process);
+		process = null;
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		server.close();
+		if(archive != null)
+			archive.delete();
+	}
+
+	@Benchmark
+	public void firstRequest() throws IOException, InterruptedException {
+		process = start(options);
+		if(!firstRequest.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+			throw new IllegalStateException("No request received from jconnect");
+	}
+
+	@Benchmark
+	public int command() throws IOException, InterruptedException {
+		process = start(options);
+		return waitFor(process);
+	}
+
+	/**
+	 * Start jconnect in a new JVM.
+	 */
+	private Process start(List<String> jvmOptions) throws IOException {
+		List<String> args = new ArrayList<>();
+		args.add(System.getProperty("java.home")+File.separator+"bin"+File.separator+"java");
+		args.addAll(jvmOptions);
+		args.add("-cp");
+		args.add(System.getProperty("java.class.path"));
+		args.add(JConnect.class.getName());
+		args.addAll(command);
+		File discard = new File(System.getProperty("os.name").startsWith("Windows") ? "NUL" : "/dev/null");
+		return new ProcessBuilder(args).redirectOutput(discard).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+	}
+
+	/**
+	 * Wait for the end of jconnect and check that the command succeeded.
+	 */
+	private static int waitFor(Process process) throws InterruptedException {
+		if(!process.waitFor(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+			process.destroyForcibly();
+			throw new IllegalStateException("jconnect did not end");
+		}
+		if(process.exitValue() != 0)
+			throw new IllegalStateException("jconnect failed with the exit code "+process.exitValue());
+		return process.exitValue();
+	}
+}
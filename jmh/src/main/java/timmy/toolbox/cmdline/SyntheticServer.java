@@ -0,0 +1,340 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.remote.JMXConnectorServer;
+import javax.management.remote.JMXConnectorServerFactory;
+import javax.management.remote.JMXServiceURL;
+import javax.management.remote.MBeanServerForwarder;
+
+/**
+ * In-process JMX server used as benchmark fixture.<br>
+ * A private MBeanServer is filled with synthetic standard and dynamic MBeans and exposed by a JMXConnectorServer
+ * on a loopback RMI registry, so that JConnect is measured through the real RMI stack.<br>
+ * Half of the beans are standard MBeans (bench:group=gN,type=StandardNNNNNN) and half are dynamic MBeans
+ * (bench:group=gN,type=DynamicNNNNNN). An optional latency is added to each request received by the connector.
+ * <pre>
+ * java -cp target/benchmarks.jar timmy.toolbox.cmdline.SyntheticServer [beans] [latency in microseconds]
+ * </pre>
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class SyntheticServer implements Closeable {
+
+	/** number of attributes of the dynamic MBeans */
+	public static final int DYNAMIC_ATTRIBUTES = 16;
+
+	/**
+	 * Management interface of the synthetic standard MBeans.
+	 */
+	public interface StandardMBean {
+		int getCount();
+		void setCount(int count);
+		String getName();
+		void setName(String name);
+		double getRatio();
+		boolean isEnabled();
+		long[] getSamples();
+		int add(int a, int b);
+		String echo(String value);
+		void reset();
+	}
+
+	/**
+	 * A synthetic standard MBean.
+	 */
+	public static class Standard implements StandardMBean {
+		private volatile int count;
+		private volatile String name;
+		private final long[] samples = new long[16];
+
+		Standard(int id) {
+			this.count = id;
+			this.name = "standard-"+id;
+		}
+
+		@Override public int getCount() { return count; }
+		@Override public void setCount(int count) { this.count = count; }
+		@Override public String getName() { return name; }
+		@Override public void setName(String name) { this.name = name; }
+		@Override public double getRatio() { return count / 100.0; }
+		@Override public boolean isEnabled() { return (count & 1) == 0; }
+		@Override public long[] getSamples() { return samples; }
+		@Override public int add(int a, int b) { return a + b; }
+		@Override public String echo(String value) { return value; }
+		@Override public void reset() { count = 0; }
+	}
+
+	/**
+	 * A synthetic dynamic MBean with {@value #DYNAMIC_ATTRIBUTES} long attributes and an increment operation.
+	 */
+	public static class Dynamic implements DynamicMBean {
+		private static final MBeanInfo INFO;
+		static {
+			MBeanAttributeInfo[] attributes = new MBeanAttributeInfo[DYNAMIC_ATTRIBUTES];
+			for(int i = 0; i < attributes.length; i++)
+				attributes[i] = new MBeanAttributeInfo("attr"+i, "long", "synthetic attribute "+i, true, true, false);
+			MBeanOperationInfo[] operations = {
+				new MBeanOperationInfo("increment", "increment an attribute",
+						new MBeanParameterInfo[] { new MBeanParameterInfo("index", "int", "index of the attribute"),
+								new MBeanParameterInfo("delta", "long", "value to add") },
+						"long", MBeanOperationInfo.ACTION)
+			};
+			INFO = new MBeanInfo(Dynamic.class.getName(), "synthetic dynamic MBean", attributes, null, operations, null);
+		}
+
+		private final long[] values = new long[DYNAMIC_ATTRIBUTES];
+
+		private int index(String attribute) throws AttributeNotFoundException {
+			if(attribute.startsWith("attr")) {
+				try {
+					int index = Integer.parseInt(attribute.substring(4));
+					if(index >= 0 && index < values.length)
+						return index;
+				}
+				catch(NumberFormatException e) {
+					// not found
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public synchronized Object getAttribute(String attribute) throws AttributeNotFoundException {
+			return values[index(attribute)];
+		}
+
+		@Override
+		public synchronized void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+			values[index(attribute.getName())] = ((Number) attribute.getValue()).longValue();
+		}
+
+		@Override
+		public synchronized AttributeList getAttributes(String[] attributes) {
+			AttributeList list = new AttributeList(attributes.length);
+			for(String attribute : attributes) {
+				try {
+					list.add(new Attribute(attribute, values[index(attribute)]));
+				}
+				catch(AttributeNotFoundException e) {
+					// omitted as specified by DynamicMBean
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public synchronized AttributeList setAttributes(AttributeList attributes) {
+			AttributeList list = new AttributeList(attributes.size());
+			for(Attribute attribute : attributes.asList()) {
+				try {
+					setAttribute(attribute);
+					list.add(attribute);
+				}
+				catch(AttributeNotFoundException | ClassCastException e) {
+					// omitted as specified by DynamicMBean
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public synchronized Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+			if("increment".equals(actionName) && params != null && params.length == 2)
+				return values[(Integer) params[0]] += (Long) params[1];
+			throw new ReflectionException(new NoSuchMethodException(actionName));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo() {
+			return INFO;
+		}
+	}
+
+	final MBeanServer server;
+	final Registry registry;
+	final JMXConnectorServer connector;
+	final int port;
+	final int beans;
+
+	/**
+	 * Start a synthetic JMX server on a free loopback port.
+	 * @param beans the number of synthetic MBeans
+	 * @param latencyMicros the latency added to each request received by the connector, 0 for none
+	 * @throws IOException if the connector cannot be started
+	 * @throws JMException if the beans cannot be registered
+	 */
+	public SyntheticServer(int beans, long latencyMicros) throws IOException, JMException {
+		this(beans, latencyMicros, null);
+	}
+
+	/**
+	 * Start a synthetic JMX server on a free loopback port.
+	 * @param beans the number of synthetic MBeans
+	 * @param latencyMicros the latency added to each request received by the connector, 0 for none
+	 * @param requests called with the method name of each request received by the connector, null for none
+	 * @throws IOException if the connector cannot be started
+	 * @throws JMException if the beans cannot be registered
+	 */
+	public SyntheticServer(int beans, long latencyMicros, Consumer<String> requests) throws IOException, JMException {
+		this.beans = beans;
+		this.server = MBeanServerFactory.newMBeanServer();
+		for(int i = 0; i < beans; i++) {
+			if(i % 2 == 0)
+				server.registerMBean(new Standard(i), standardName(i));
+			else
+				server.registerMBean(new Dynamic(), dynamicName(i));
+		}
+
+		try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+			port = socket.getLocalPort();
+		}
+		System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+		registry = LocateRegistry.createRegistry(port);
+
+		JMXServiceURL url = new JMXServiceURL("service:jmx:rmi:///jndi/rmi://127.0.0.1:"+port+"/jmxrmi");
+		connector = JMXConnectorServerFactory.newJMXConnectorServer(url, null, server);
+		if(latencyMicros > 0 || requests != null)
+			connector.setMBeanServerForwarder(forwarder(latencyMicros, requests));
+		connector.start();
+	}
+
+	/**
+	 * @param i the index of a standard MBean (even)
+	 * @return its ObjectName
+	 */
+	public static ObjectName standardName(int i) {
+		return name("Standard", i);
+	}
+
+	/**
+	 * @param i the index of a dynamic MBean (odd)
+	 * @return its ObjectName
+	 */
+	public static ObjectName dynamicName(int i) {
+		return name("Dynamic", i);
+	}
+
+	private static ObjectName name(String type, int i) {
+		try {
+			return new ObjectName(String.format("bench:group=g%d,type=%s%06d", i % 16, type, i));
+		}
+		catch(JMException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * @return the port of the RMI registry
+	 */
+	public int getPort() {
+		return port;
+	}
+
+	/**
+	 * @return the number of synthetic MBeans
+	 */
+	public int getBeans() {
+		return beans;
+	}
+
+	/**
+	 * @return the JConnect command line options to connect to this server
+	 */
+	public String[] options() {
+		return new String[] { "-h", "127.0.0.1", "-p", String.valueOf(port), "-d", "bench", "--heartbeat", "0" };
+	}
+
+	/**
+	 * Delay each call of the connector by the latency and report it to the listener.
+	 */
+	private static MBeanServerForwarder forwarder(long latencyMicros, Consumer<String> requests) {
+		long nanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+		MBeanServer[] target = new MBeanServer[1];
+		InvocationHandler handler = (proxy, method, args) -> {
+			String name = method.getName();
+			if("getMBeanServer".equals(name))
+				return target[0];
+			if("setMBeanServer".equals(name)) {
+				target[0] = (MBeanServer) args[0];
+				return null;
+			}
+
+			// the class loader lookups are internal calls of the connector, not requests of the client
+			if(!name.startsWith("getClassLoader")) {
+				if(requests != null)
+					requests.accept(name);
+				long deadline = System.nanoTime() + nanos;
+				for(long remaining = nanos; remaining > 0; remaining = deadline - System.nanoTime())
+					LockSupport.parkNanos(remaining);
+			}
+			try {
+				return method.invoke(target[0], args);
+			}
+			catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+		};
+		return (MBeanServerForwarder) Proxy.newProxyInstance(SyntheticServer.class.getClassLoader(),
+				new Class<?>[] { MBeanServerForwarder.class }, handler);
+	}
+
+	@Override
+	public void close() throws IOException {
+		connector.stop();
+		UnicastRemoteObject.unexportObject(registry, true);
+	}
+
+	/**
+	 * Start a synthetic server until the process is killed, to try JConnect by hand.
+	 * @param args the number of beans (10000 by default) and the latency in microseconds (0 by default)
+	 * @throws Exception if the server cannot be started
+	 */
+	public static void main(String[] args) throws Exception {
+		int beans = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+		long latency = args.length > 1 ? Long.parseLong(args[1]) : 0;
+		SyntheticServer server = new SyntheticServer(beans, latency);
+		System.out.println("Synthetic JMX server with "+beans+" beans on port "+server.getPort()+": jconnect -h 127.0.0.1 -p "+server.getPort()+" -d bench");
+		Thread.sleep(Long.MAX_VALUE);
+	}
+}
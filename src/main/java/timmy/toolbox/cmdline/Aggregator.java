@@ -0,0 +1,518 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The agg and top commands: reduce one numeric attribute over all the beans matching a pattern.<br>
+ * <pre>
+ * agg sum|avg|min|max|count[,...] ATTRIBUTE from PATTERN [where condition] [by KEY] [parallel=N]
+ * top N ATTRIBUTE from PATTERN [where condition] [by KEY] [asc] [parallel=N]
+ * watch agg|top ... [every INTERVAL] [samples=N]
+ * </pre>
+ * The pattern and the condition are the ones of the query command and are resolved by the JMX server. Only the
+ * attribute is read, with one getAttributes request per bean run by a bounded executor (16 concurrent requests by
+ * default). The attribute may be an item of a CompositeData attribute (Usage.used).<br>
+ * The values are reduced as they arrive into primitive accumulators, per value of the key property KEY if any.
+ * top keeps the N greatest values (or smallest with asc) in a bounded heap; with by, it ranks the sums of the groups.
+ * The beans without a numeric value are ignored and counted on stderr.<br>
+ * Prefixed by watch, the reduction is repeated at each interval (1s by default) and printed as a time series in CSV,
+ * or NDJSON with --output ndjson.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Aggregator {
+
+	/** default number of concurrent requests */
+	public static final int DEFAULT_PARALLELISM = 16;
+
+	private static final List<String> FUNCTIONS = Arrays.asList("count", "sum", "avg", "min", "max");
+
+	final JConnect jconnect;
+	final MBeanServerConnection mbsc;
+	final Logger logger;
+	final boolean top;
+	final boolean watch;
+	final String attribute;
+	final String[] request;
+	final String item;
+	final QueryParser query;
+	List<String> functions = new ArrayList<>();
+	int limit = 0;
+	boolean ascending = false;
+	String key = null;
+	int parallelism = DEFAULT_PARALLELISM;
+	long interval = 1000;
+	long samples = 0;
+
+	private long ignored;
+
+	/**
+	 * Primitive accumulator of the values of a group.
+	 */
+	static class Accumulator {
+		long count = 0;
+		double sum = 0;
+		long longSum = 0;
+		boolean integral = true;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+
+		void add(double value, boolean isLong, long longValue) {
+			count++;
+			sum += value;
+			if(isLong)
+				longSum += longValue;
+			else
+				integral = false;
+			if(value < min)
+				min = value;
+			if(value > max)
+				max = value;
+		}
+
+		Object get(String function) {
+			switch(function) {
+			case "count": return count;
+			case "sum": return integral ? (Object) longSum : (Object) sum;
+			case "avg": return count == 0 ? null : sum / count;
+			case "min": return count == 0 ? null : integral ? (Object) (long) min : (Object) min;
+			default: return count == 0 ? null : integral ? (Object) (long) max : (Object) max;
+			}
+		}
+	}
+
+	/**
+	 * The value of one bean, or of one group for the top of the groups.
+	 */
+	static class Ranked {
+		final String name;
+		final double value;
+		final Object display;
+
+		Ranked(String name, double value, Object display) {
+			this.name = name;
+			this.value = value;
+			this.display = display;
+		}
+	}
+
+	/**
+	 * The attribute read on one bean.
+	 */
+	static class Sample {
+		final ObjectName name;
+		final Object value;
+
+		Sample(ObjectName name, Object value) {
+			this.name = name;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Parse the arguments of the agg or top command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line: agg ..., top ..., watch agg ... or watch top ...
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public Aggregator(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.mbsc = jconnect.getConnection();
+		this.logger = jconnect.logger;
+		this.watch = "watch".equals(cmd[0]);
+		int i = watch ? 1 : 0;
+		this.top = "top".equals(cmd[i]);
+		i++;
+
+		if(i >= cmd.length)
+			throw new IllegalArgumentException(top ? "Missing number of beans" : "Missing aggregate function");
+		if(top) {
+			try {
+				limit = Integer.parseInt(cmd[i]);
+			}
+			catch(NumberFormatException e) {
+				limit = 0;
+			}
+			if(limit < 1)
+				throw new IllegalArgumentException("Invalid number of beans "+cmd[i]);
+		}
+		else {
+			for(String function : StringUtils.split(cmd[i].toLowerCase(), ',')) {
+				if(!FUNCTIONS.contains(function))
+					throw new IllegalArgumentException("Invalid aggregate function "+function+", expected one of "+FUNCTIONS);
+				functions.add(function);
+			}
+		}
+		i++;
+
+		if(i >= cmd.length)
+			throw new IllegalArgumentException("Missing attribute");
+		attribute = cmd[i++];
+		int dot = attribute.indexOf('.');
+		// an attribute containing a dot is read as is if the bean has it, as a CompositeData item otherwise
+		request = dot > 0 ? new String[] { attribute, attribute.substring(0, dot) } : new String[] { attribute };
+		item = dot > 0 ? attribute.substring(dot + 1) : null;
+
+		if(i >= cmd.length || !"from".equalsIgnoreCase(cmd[i]))
+			throw new IllegalArgumentException("Missing from <ObjectName pattern>");
+		i++;
+
+		// the pattern and the condition end at the first option
+		List<String> queryArgs = new ArrayList<>();
+		while(i < cmd.length && !isOption(cmd[i]))
+			queryArgs.add(cmd[i++]);
+		if(queryArgs.isEmpty())
+			throw new IllegalArgumentException("Missing ObjectName pattern");
+		query = new QueryParser(jconnect.getIndex().getPattern(), queryArgs.toArray(new String[queryArgs.size()]));
+
+		while(i < cmd.length) {
+			String arg = cmd[i++];
+			if("by".equalsIgnoreCase(arg) || "every".equalsIgnoreCase(arg)) {
+				if(i >= cmd.length)
+					throw new IllegalArgumentException("Missing value after "+arg);
+				if("by".equalsIgnoreCase(arg))
+					key = cmd[i++];
+				else if(watch)
+					interval = Replay.parseDuration(cmd[i++]);
+				else
+					throw new IllegalArgumentException("every is only allowed with watch");
+			}
+			else if("asc".equalsIgnoreCase(arg) || "desc".equalsIgnoreCase(arg)) {
+				ascending = "asc".equalsIgnoreCase(arg);
+			}
+			else if(arg.startsWith("parallel=")) {
+				try {
+					parallelism = Integer.parseInt(arg.substring("parallel=".length()));
+				}
+				catch(NumberFormatException e) {
+					parallelism = 0;
+				}
+				if(parallelism < 1)
+					throw new IllegalArgumentException("Invalid parallelism "+arg);
+			}
+			else if(arg.startsWith("samples=")) {
+				samples = Long.parseLong(arg.substring("samples=".length()));
+			}
+			else {
+				throw new IllegalArgumentException("Unexpected argument "+arg);
+			}
+		}
+		if(interval <= 0)
+			throw new IllegalArgumentException("Invalid interval "+interval+"ms");
+	}
+
+	private static boolean isOption(String arg) {
+		return "by".equalsIgnoreCase(arg) || "every".equalsIgnoreCase(arg) || "asc".equalsIgnoreCase(arg) || "desc".equalsIgnoreCase(arg)
+				|| arg.startsWith("parallel=") || arg.startsWith("samples=");
+	}
+
+	/**
+	 * Reduce once, or at each interval until the number of samples is reached when prefixed by watch.
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public void run() throws IOException {
+		ResultWriter.Format format = jconnect.output;
+		if(watch && format != ResultWriter.Format.NDJSON)
+			format = ResultWriter.Format.CSV;
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		ExecutorService executor = Workers.newBoundedExecutor(parallelism, "jconnect-agg");
+		try {
+			if(!watch) {
+				long start = System.nanoTime();
+				List<Object[]> rows = reduce(executor);
+				write(out, format, null, rows, true);
+				out.flush();
+				logger.info("{} on {} rows in {} ms", attribute, rows.size(), (System.nanoTime() - start) / 1000000);
+				if(ignored > 0)
+					System.err.println(ignored+" beans without a numeric "+attribute+" ignored");
+				return;
+			}
+
+			long start = System.currentTimeMillis();
+			for(long tick = 0; samples <= 0 || tick < samples; tick++) {
+				long next = start + tick * interval;
+				long now = System.currentTimeMillis();
+				if(next > now)
+					Thread.sleep(next - now);
+				else if(now - next >= interval)
+					continue; // the previous reduction lasted more than an interval: skip the ticks that cannot be honored
+				List<Object[]> rows = reduce(executor);
+				write(out, format, Instant.ofEpochMilli(next).toString(), rows, tick == 0);
+				out.flush();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			executor.shutdownNow();
+			out.flush();
+		}
+	}
+
+	/**
+	 * @return the header of the rows
+	 */
+	private List<String> columns() {
+		List<String> columns = new ArrayList<>();
+		if(top) {
+			columns.add("rank");
+			columns.add(key != null ? key : "bean");
+			columns.add(key != null ? "sum "+attribute : attribute);
+		}
+		else {
+			if(key != null)
+				columns.add(key);
+			for(String function : functions)
+				columns.add(function.equals("count") ? "count" : function+" "+attribute);
+		}
+		return columns;
+	}
+
+	/**
+	 * Read the attribute of all the matching beans and reduce it.
+	 * @return the rows of the result
+	 */
+	private List<Object[]> reduce(ExecutorService executor) throws IOException {
+		ignored = 0;
+		SortedSet<ObjectName> names = jconnect.getIndex().query(query.getPattern(), query.getQuery());
+		Map<String, Accumulator> groups = new TreeMap<>();
+		Comparator<Ranked> order = ascending ? Comparator.comparingDouble((Ranked r) -> -r.value) : Comparator.comparingDouble((Ranked r) -> r.value);
+		// the root of the heap is the worst of the kept values
+		PriorityQueue<Ranked> heap = top && key == null ? new PriorityQueue<>(limit + 1, order) : null;
+
+		CompletionService<Sample> completion = new ExecutorCompletionService<>(executor);
+		int window = parallelism * 4;
+		int inFlight = 0;
+		for(ObjectName name : names) {
+			completion.submit(() -> new Sample(name, read(name)));
+			if(++inFlight >= window) {
+				accumulate(take(completion), groups, heap);
+				inFlight--;
+			}
+		}
+		for(; inFlight > 0; inFlight--)
+			accumulate(take(completion), groups, heap);
+
+		List<Object[]> rows = new ArrayList<>();
+		if(top && key != null) {
+			heap = new PriorityQueue<>(limit + 1, order);
+			for(Map.Entry<String, Accumulator> group : groups.entrySet()) {
+				Accumulator acc = group.getValue();
+				offer(heap, new Ranked(group.getKey(), acc.sum, acc.get("sum")));
+			}
+		}
+		if(top) {
+			List<Ranked> ranked = new ArrayList<>(heap);
+			Collections.sort(ranked, order.reversed());
+			for(int r = 0; r < ranked.size(); r++)
+				rows.add(new Object[] { r + 1, ranked.get(r).name, ranked.get(r).display });
+		}
+		else {
+			if(groups.isEmpty() && key == null)
+				groups.put("", new Accumulator());
+			for(Map.Entry<String, Accumulator> group : groups.entrySet()) {
+				List<Object> row = new ArrayList<>();
+				if(key != null)
+					row.add(group.getKey());
+				for(String function : functions)
+					row.add(group.getValue().get(function));
+				rows.add(row.toArray());
+			}
+		}
+		return rows;
+	}
+
+	private void accumulate(Sample sample, Map<String, Accumulator> groups, PriorityQueue<Ranked> heap) {
+		Object value = sample.value;
+		if(!(value instanceof Number)) {
+			ignored++;
+			return;
+		}
+		Number number = (Number) value;
+		boolean isLong = value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte;
+
+		if(heap != null) {
+			offer(heap, new Ranked(jconnect.getIndex().displayName(sample.name), number.doubleValue(), value));
+			return;
+		}
+
+		String group = key == null ? "" : StringUtils.defaultString(sample.name.getKeyProperty(key), "-");
+		Accumulator acc = groups.get(group);
+		if(acc == null) {
+			acc = new Accumulator();
+			groups.put(group, acc);
+		}
+		acc.add(number.doubleValue(), isLong, isLong ? number.longValue() : 0);
+	}
+
+	private void offer(PriorityQueue<Ranked> heap, Ranked ranked) {
+		if(heap.size() < limit) {
+			heap.add(ranked);
+		}
+		else if(heap.comparator().compare(ranked, heap.peek()) > 0) {
+			heap.poll();
+			heap.add(ranked);
+		}
+	}
+
+	/**
+	 * @return the value of the attribute of the bean, null if it cannot be read
+	 */
+	private Object read(ObjectName name) throws IOException {
+		try {
+			AttributeList list = mbsc.getAttributes(name, request);
+			Object composite = null;
+			for(Attribute attr : list.asList()) {
+				if(attr.getName().equals(attribute))
+					return attr.getValue();
+				composite = attr.getValue();
+			}
+			if(item != null && composite instanceof CompositeData && ((CompositeData) composite).containsKey(item))
+				return ((CompositeData) composite).get(item);
+			return null;
+		}
+		catch(JMException | RuntimeException e) {
+			logger.debug("Cannot read "+attribute+" of "+name, e);
+			return null;
+		}
+	}
+
+	private Sample take(CompletionService<Sample> completion) throws IOException {
+		try {
+			Future<Sample> future = completion.take();
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Aggregation interrupted", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unexpected aggregation failure", e.getCause());
+		}
+	}
+
+	private void write(Writer out, ResultWriter.Format format, String timestamp, List<Object[]> rows, boolean header) throws IOException {
+		List<String> columns = columns();
+		if(timestamp != null)
+			columns.add(0, "timestamp");
+
+		switch(format) {
+		case CSV:
+			if(header) {
+				StringBuilder line = new StringBuilder();
+				for(String column : columns) {
+					if(line.length() > 0)
+						line.append(',');
+					Watcher.appendCsv(line, column);
+				}
+				out.write(line.append('\n').toString());
+			}
+			for(Object[] row : rows) {
+				StringBuilder line = new StringBuilder();
+				if(timestamp != null)
+					line.append(timestamp).append(',');
+				for(int c = 0; c < row.length; c++) {
+					if(c > 0)
+						line.append(',');
+					if(row[c] != null)
+						Watcher.appendCsv(line, row[c].toString());
+				}
+				out.write(line.append('\n').toString());
+			}
+			break;
+		case JSON:
+		case NDJSON:
+			if(format == ResultWriter.Format.JSON)
+				out.write('[');
+			for(int r = 0; r < rows.size(); r++) {
+				Map<String, Object> record = new LinkedHashMap<>();
+				int offset = timestamp != null ? 1 : 0;
+				if(timestamp != null)
+					record.put("timestamp", timestamp);
+				for(int c = 0; c < rows.get(r).length; c++)
+					record.put(columns.get(c + offset), rows.get(r)[c]);
+				if(format == ResultWriter.Format.JSON && r > 0)
+					out.write(',');
+				ResultWriter.writeJson(out, record);
+				if(format == ResultWriter.Format.NDJSON)
+					out.write('\n');
+			}
+			if(format == ResultWriter.Format.JSON)
+				out.write("]\n");
+			break;
+		default:
+			int[] widths = new int[columns.size()];
+			List<String[]> cells = new ArrayList<>();
+			String[] head = columns.toArray(new String[columns.size()]);
+			cells.add(head);
+			for(Object[] row : rows) {
+				String[] line = new String[row.length];
+				for(int c = 0; c < row.length; c++)
+					line[c] = row[c] == null ? "-" : row[c].toString();
+				cells.add(line);
+			}
+			for(String[] line : cells) {
+				for(int c = 0; c < line.length; c++)
+					widths[c] = Math.max(widths[c], line[c].length());
+			}
+			for(String[] line : cells) {
+				StringBuilder text = new StringBuilder();
+				for(int c = 0; c < line.length; c++) {
+					if(c > 0)
+						text.append("  ");
+					// numbers aligned on the right, names on the left
+					boolean left = top ? c == 1 : key != null && c == 0;
+					text.append(left ? StringUtils.rightPad(line[c], widths[c]) : StringUtils.leftPad(line[c], widths[c]));
+				}
+				out.write(StringUtils.stripEnd(text.toString(), " ")+"\n");
+			}
+		}
+	}
+}
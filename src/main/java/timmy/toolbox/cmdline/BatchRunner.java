@@ -0,0 +1,197 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Batch mode of JConnect.<br>
+ * Execute the commands read from a file or from stdin, one command per line, over the single connection of JConnect.
+ * Empty lines and lines starting with # are ignored.<br>
+ * With an in-flight limit greater than 1, up to this number of commands are executed concurrently. The lines
+ * addressing the same bean, or more generally starting with the same word, still run one after the other in the
+ * order of the input, so "X set A 1" then "X get A" reads the new value. The other lines must be independent.
+ * The output is captured and printed in the order of the input.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class BatchRunner {
+
+	final JConnect jconnect;
+	final Logger logger;
+	final boolean failFast;
+	final int inFlight;
+
+	/**
+	 * The result of one line of the batch.
+	 */
+	static class LineResult {
+		final int line;
+		final String command;
+		final int code;
+		final CommandOutput output;
+		final IOException disconnection;
+
+		LineResult(int line, String command, int code, CommandOutput output, IOException disconnection) {
+			this.line = line;
+			this.command = command;
+			this.code = code;
+			this.output = output;
+			this.disconnection = disconnection;
+		}
+	}
+
+	/**
+	 * @param jconnect the connected JConnect used to execute the commands
+	 * @param failFast stop on the first command that does not end with the code 0
+	 * @param inFlight the maximum number of commands executed concurrently
+	 */
+	public BatchRunner(JConnect jconnect, boolean failFast, int inFlight) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.failFast = failFast;
+		this.inFlight = Math.max(1, inFlight);
+	}
+
+	/**
+	 * Execute all the commands of the reader.
+	 * @param reader the source of the commands
+	 * @return the aggregated exit code: 0 if all the commands succeeded, the greatest exit code otherwise.
+	 * @throws IOException if the commands cannot be read
+	 */
+	public int run(BufferedReader reader) throws IOException {
+		ExecutorService executor = inFlight > 1 ? Workers.newBoundedExecutor(inFlight, "jconnect-batch") : null;
+		ArrayDeque<Future<LineResult>> pending = new ArrayDeque<>();
+		// the last command of each bean, the next one on the same bean starts after it
+		Map<String, CompletableFuture<LineResult>> lastByBean = new HashMap<>();
+		int code = 0;
+		int lines = 0;
+		int failures = 0;
+
+		try {
+			String line;
+			int lineNumber = 0;
+			boolean stopped = false;
+			while (!stopped && (line = reader.readLine()) != null) {
+				lineNumber++;
+				String command = line.trim();
+				if(command.isEmpty() || command.startsWith("#"))
+					continue;
+				if("exit".equals(command) || "quit".equals(command))
+					break;
+
+				lines++;
+				if(executor == null) {
+					pending.add(CompletableFuture.completedFuture(execute(lineNumber, command, false)));
+				}
+				else {
+					final int number = lineNumber;
+					String bean = command.split("\\s+", 2)[0];
+					CompletableFuture<LineResult> previous = lastByBean.get(bean);
+					CompletableFuture<LineResult> future = previous == null || previous.isDone()
+							? CompletableFuture.supplyAsync(() -> execute(number, command, true), executor)
+							: previous.handle((result, e) -> null).thenApplyAsync(ignored -> execute(number, command, true), executor);
+					lastByBean.put(bean, future);
+					pending.add(future);
+				}
+
+				// print the results in order, waiting for the oldest command when the in-flight limit is reached
+				while(!pending.isEmpty() && (pending.size() >= inFlight || pending.peek().isDone())) {
+					LineResult result = report(pending.poll());
+					if(result.code != 0) {
+						failures++;
+						code = Math.max(code, result.code);
+						if(failFast) {
+							stopped = true;
+							break;
+						}
+					}
+				}
+			}
+
+			if(stopped) {
+				for(Future<LineResult> future : pending)
+					future.cancel(false);
+			}
+			else {
+				while(!pending.isEmpty()) {
+					LineResult result = report(pending.poll());
+					if(result.code != 0) {
+						failures++;
+						code = Math.max(code, result.code);
+						if(failFast)
+							break;
+					}
+				}
+			}
+		}
+		finally {
+			if(executor != null)
+				executor.shutdownNow();
+		}
+
+		if(failures > 0)
+			System.err.println("Batch: "+failures+" of "+lines+" commands failed");
+		logger.info("Batch of {} commands ended with {} failures", lines, failures);
+		return code;
+	}
+
+	private LineResult execute(int line, String command, boolean capture) {
+		CommandOutput output = capture ? CommandOutput.begin() : null;
+		try {
+			jconnect.executeCommand(command.split("\\s+"));
+			return new LineResult(line, command, jconnect.getExitCode(), output, null);
+		}
+		catch(IOException e) {
+			return new LineResult(line, command, 1, output, e);
+		}
+		finally {
+			if(capture)
+				CommandOutput.end();
+		}
+	}
+
+	private LineResult report(Future<LineResult> future) throws IOException {
+		LineResult result;
+		try {
+			result = future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Batch interrupted", e);
+		}
+		catch(ExecutionException e) {
+			throw new IOException("Unexpected batch failure", e.getCause());
+		}
+
+		if(result.output != null)
+			result.output.replay();
+		if(result.disconnection != null)
+			System.err.println(result.disconnection.getMessage());
+		if(result.code != 0)
+			System.err.println("line "+result.line+": exit code "+result.code+": "+result.command);
+		return result;
+	}
+}
@@ -0,0 +1,367 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.IntrospectionException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
+import javax.management.MBeanServerNotification;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.QueryExp;
+import javax.management.ReflectionException;
+import javax.management.relation.MBeanServerNotificationFilter;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Session level index of the beans available on the JMX server.<br>
+ * The index is built once with a single queryNames and is then kept up to date
+ * by the registration/unregistration notifications of the MBeanServerDelegate.<br>
+ * MBeanInfo and the dispatch tables of the operations are built on first use and cached until the bean is unregistered.<br>
+ * A rebuild fills a new index aside and publishes it at once: the lock-free readers see either the previous index
+ * or the new one, never an empty or partial one.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class BeanIndex implements NotificationListener {
+
+	/**
+	 * Listener of the changes of the short names of the index.
+	 */
+	public interface Listener {
+		/**
+		 * A short name is now available.
+		 * @param shortName the short name of the bean
+		 * @param name the ObjectName of the bean
+		 */
+		void beanAdded(String shortName, ObjectName name);
+
+		/**
+		 * A short name is no longer available.
+		 * @param shortName the short name of the bean
+		 */
+		void beanRemoved(String shortName);
+
+		/**
+		 * The index has been rebuilt, all the short names are removed. The short names of the new index are then
+		 * notified by {@link #beanAdded(String, ObjectName)}.
+		 */
+		void indexCleared();
+	}
+
+	final MBeanServerConnection mbsc;
+	final Logger logger;
+	final ObjectName pattern;
+
+	/** the current index, replaced as a whole by {@link #build()} and updated in place by the notifications */
+	private volatile State state = new State();
+
+	private boolean listening = false;
+	private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+	/**
+	 * The maps of an index, written under the lock of the index.
+	 */
+	static class State {
+		/** ObjectName to short name, sorted like the former TreeSet of getBeans() */
+		final ConcurrentSkipListMap<ObjectName, String> names = new ConcurrentSkipListMap<>();
+		/** short name to ObjectName */
+		final ConcurrentSkipListMap<String, ObjectName> beans = new ConcurrentSkipListMap<>();
+		/** MBeanInfo cache */
+		final ConcurrentHashMap<ObjectName, MBeanInfo> infos = new ConcurrentHashMap<>();
+		final ConcurrentHashMap<ObjectName, OperationTable> tables = new ConcurrentHashMap<>();
+
+		/**
+		 * @return true if the short name of the bean is new
+		 */
+		boolean add(ObjectName name) {
+			String wName = shortName(name);
+			names.put(name, wName);
+
+			// on duplicated short names, the greatest ObjectName wins
+			ObjectName current = beans.get(wName);
+			if(current == null || name.compareTo(current) >= 0)
+				beans.put(wName, name);
+			return current == null;
+		}
+	}
+
+	/**
+	 * Create an empty index. Call {@link #build()} to fill it.
+	 * @param mbsc the connection to the JMX server
+	 * @param jmxDomain the JMX domain filter
+	 * @param logger the logger to use
+	 * @throws MalformedObjectNameException if the domain is not a valid ObjectName domain
+	 */
+	public BeanIndex(MBeanServerConnection mbsc, String jmxDomain, Logger logger) throws MalformedObjectNameException {
+		this.mbsc = mbsc;
+		this.logger = logger;
+		this.pattern = new ObjectName(jmxDomain+":*");
+	}
+
+	/**
+	 * Get the short name used in the console for a bean.<br>
+	 * This is the value of the key property "type" or the value of the last key property.
+	 * @param name the ObjectName of the bean
+	 * @return the short name of the bean
+	 */
+	public static String shortName(ObjectName name) {
+		String wName = name.getKeyProperty("type");
+		if(wName == null)
+			wName = StringUtils.substringAfterLast(name.toString(), "=");
+		if(wName.isEmpty())
+			wName=name.toString();
+		return wName;
+	}
+
+	/**
+	 * Subscribe to the MBeanServerDelegate notifications and load all the names matching the domain.<br>
+	 * May be called again to rebuild the whole index (after lost notifications for instance).
+	 * @throws IOException in case of a JMX issue
+	 */
+	public synchronized void build() throws IOException {
+		if(!listening) {
+			// subscribe first so that no registration is missed between the query and the subscription
+			try {
+				mbsc.addNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this, new MBeanServerNotificationFilter(), null);
+				listening = true;
+			} catch (InstanceNotFoundException e) {
+				logger.warn("MBeanServerDelegate not found, the bean index will not be updated.", e);
+			}
+		}
+
+		// the notifications received during the query wait for the lock and are applied to the new index
+		State built = new State();
+		for(ObjectName name : mbsc.queryNames(pattern, null))
+			built.add(name);
+		state = built;
+
+		for(Listener listener : listeners) {
+			listener.indexCleared();
+			for(Map.Entry<String, ObjectName> entry : built.beans.entrySet())
+				listener.beanAdded(entry.getKey(), entry.getValue());
+		}
+		logger.debug("Bean index built with {} beans.", built.names.size());
+	}
+
+	/**
+	 * Unsubscribe from the MBeanServerDelegate notifications.
+	 */
+	public synchronized void close() {
+		if(!listening)
+			return;
+
+		try {
+			mbsc.removeNotificationListener(MBeanServerDelegate.DELEGATE_NAME, this);
+		} catch (InstanceNotFoundException | ListenerNotFoundException | IOException e) {
+			logger.debug("Failed to remove the MBeanServerDelegate listener.", e);
+		}
+		listening = false;
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if(!(notification instanceof MBeanServerNotification))
+			return;
+
+		ObjectName name = ((MBeanServerNotification) notification).getMBeanName();
+		if(!pattern.apply(name))
+			return;
+
+		if(MBeanServerNotification.REGISTRATION_NOTIFICATION.equals(notification.getType()))
+			add(name);
+		else if(MBeanServerNotification.UNREGISTRATION_NOTIFICATION.equals(notification.getType()))
+			remove(name);
+	}
+
+	private synchronized void add(ObjectName name) {
+		if(state.add(name)) {
+			for(Listener listener : listeners)
+				listener.beanAdded(shortName(name), name);
+		}
+	}
+
+	private synchronized void remove(ObjectName name) {
+		State state = this.state;
+		String wName = state.names.remove(name);
+		state.infos.remove(name);
+		state.tables.remove(name);
+		if(wName == null || !name.equals(state.beans.get(wName)))
+			return;
+
+		// elect the next bean sharing the same short name
+		state.beans.remove(wName);
+		for(Map.Entry<ObjectName, String> entry : state.names.descendingMap().entrySet()) {
+			if(wName.equals(entry.getValue())) {
+				state.beans.put(wName, entry.getKey());
+				break;
+			}
+		}
+		if(!state.beans.containsKey(wName)) {
+			for(Listener listener : listeners)
+				listener.beanRemoved(wName);
+		}
+	}
+
+	/**
+	 * Add a listener of the changes of the short names.
+	 * @param listener the listener, called with the lock of the index held
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener of the changes of the short names.
+	 * @param listener the listener
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Get all the available beans.
+	 * @return a sorted read-only Map(Name, ObjectName) of the all the available beans. Never null but may be empty.
+	 */
+	public Map<String, ObjectName> getBeans() {
+		return Collections.unmodifiableMap(state.beans);
+	}
+
+	/**
+	 * @return the ObjectName pattern of the indexed beans
+	 */
+	public ObjectName getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * Query the JMX server for the beans matching a pattern and a condition, the filtering is done by the server.
+	 * @param pattern the ObjectName pattern, null for the pattern of the index
+	 * @param query the condition on the attributes, null for none
+	 * @return the sorted names of the matching beans
+	 * @throws IOException in case of a JMX issue
+	 */
+	public SortedSet<ObjectName> query(ObjectName pattern, QueryExp query) throws IOException {
+		return new TreeSet<>(mbsc.queryNames(pattern != null ? pattern : this.pattern, query));
+	}
+
+	/**
+	 * Match a pattern against the names of the index, no request is sent to the JMX server.
+	 * @param pattern the ObjectName pattern, it should be included in the domain of the index
+	 * @return the sorted names of the matching beans
+	 */
+	public SortedSet<ObjectName> match(ObjectName pattern) {
+		SortedSet<ObjectName> matching = new TreeSet<>();
+		for(ObjectName name : state.names.keySet()) {
+			if(pattern.apply(name))
+				matching.add(name);
+		}
+		return matching;
+	}
+
+	/**
+	 * Get the name to display for a bean: its short name if it designates this bean in the index, its full name otherwise.
+	 * @param name the ObjectName of the bean
+	 * @return the name to display
+	 */
+	public String displayName(ObjectName name) {
+		String shortName = shortName(name);
+		return name.equals(state.beans.get(shortName)) ? shortName : name.getCanonicalName();
+	}
+
+	/**
+	 * Get the ObjectName of a bean.
+	 * @param name the short name of the bean
+	 * @return null if the bean is not found.
+	 */
+	public ObjectName getName(String name) {
+		return state.beans.get(name);
+	}
+
+	/**
+	 * Get the MBeanInfo of a bean, from the cache if available.
+	 * @param name the ObjectName of the bean
+	 * @return the MBeanInfo of the bean
+	 * @throws InstanceNotFoundException in case of a JMX issue
+	 * @throws IntrospectionException in case of a JMX issue
+	 * @throws ReflectionException in case of a JMX issue
+	 * @throws IOException in case of a JMX issue
+	 */
+	public MBeanInfo getInfo(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		State state = this.state;
+		MBeanInfo info = state.infos.get(name);
+		if(info == null) {
+			info = mbsc.getMBeanInfo(name);
+			// only cache beans that are still part of the index
+			if(state.names.containsKey(name))
+				state.infos.put(name, info);
+		}
+		return info;
+	}
+
+	/**
+	 * Get the dispatch table of the operations of a bean, built on first use from its MBeanInfo.
+	 * @param name the ObjectName of the bean
+	 * @return the dispatch table of the bean
+	 * @throws InstanceNotFoundException in case of a JMX issue
+	 * @throws IntrospectionException in case of a JMX issue
+	 * @throws ReflectionException in case of a JMX issue
+	 * @throws IOException in case of a JMX issue
+	 */
+	public OperationTable getOperations(ObjectName name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		State state = this.state;
+		OperationTable table = state.tables.get(name);
+		if(table == null) {
+			table = new OperationTable(getInfo(name));
+			// same lifecycle as the cached MBeanInfo
+			if(state.infos.containsKey(name))
+				state.tables.put(name, table);
+		}
+		return table;
+	}
+
+	/**
+	 * Get the MBeanInfo of a bean only if it is already cached.
+	 * @param name the ObjectName of the bean
+	 * @return null if the MBeanInfo is not in the cache.
+	 */
+	public MBeanInfo getCachedInfo(ObjectName name) {
+		return state.infos.get(name);
+	}
+
+	/**
+	 * @return the number of beans in the index
+	 */
+	public int size() {
+		return state.names.size();
+	}
+}
@@ -0,0 +1,381 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The bulk invoke and set commands: run an operation or set attributes on all the beans matching a pattern.<br>
+ * <pre>
+ * invoke [parallel=N] [timeout=D] [dry-run] PATTERN operation [arguments...]
+ * set    [parallel=N] [timeout=D] [dry-run] PATTERN attribute value | attribute=value...
+ * </pre>
+ * The pattern is resolved by the JMX server with queryNames and the beans are processed by a bounded executor
+ * (16 concurrent calls by default). The arguments are converted for each bean with its own MBeanInfo, so the
+ * matching beans do not need to share the same class.<br>
+ * A call that does not answer within the timeout is reported as timed out, the JMX request itself cannot be
+ * cancelled and may still complete on the server. As its worker stays blocked, a bean still queued
+ * {@value #QUEUE_TIMEOUT_FACTOR} timeouts after its submission is reported as timed out too and never called: the
+ * command ends even if all the workers are stuck on a hung server. The dry run only resolves the beans and the
+ * arguments.<br>
+ * One line per bean is printed in the order of the names (OK, FAILED or TIMEOUT), then a summary on stderr.
+ * The exit code is 4 if any bean failed or timed out.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class BulkCommand {
+
+	/** default number of concurrent calls */
+	public static final int DEFAULT_PARALLELISM = 16;
+
+	/** a bean not started after this number of timeouts since its submission is reported as timed out */
+	static final int QUEUE_TIMEOUT_FACTOR = 4;
+
+	/** status of the call on one bean */
+	enum Status { OK, FAILED, TIMEOUT, DRY_RUN }
+
+	final JConnect jconnect;
+	final Logger logger;
+	final boolean invoke;
+	int parallelism = DEFAULT_PARALLELISM;
+	long timeout = 0;
+	boolean dryRun = false;
+	final ObjectName pattern;
+	final String[] cmd;
+	final int offset;
+
+	// set: the values by attribute
+	final Map<String, String> values = new LinkedHashMap<>();
+
+	/**
+	 * The outcome of the call on one bean.
+	 */
+	static class Result {
+		final ObjectName name;
+		final Status status;
+		final Object value;
+
+		Result(ObjectName name, Status status, Object value) {
+			this.name = name;
+			this.status = status;
+			this.value = value;
+		}
+	}
+
+	/**
+	 * Parse the arguments of the invoke or set command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "invoke" or "set"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public BulkCommand(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.invoke = "invoke".equals(cmd[0]);
+		this.cmd = cmd;
+
+		int i = 1;
+		for(; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(arg.startsWith("parallel=")) {
+				try {
+					parallelism = Integer.parseInt(arg.substring("parallel=".length()));
+				}
+				catch(NumberFormatException e) {
+					parallelism = 0;
+				}
+				if(parallelism < 1)
+					throw new IllegalArgumentException("Invalid parallelism "+arg);
+			}
+			else if(arg.startsWith("timeout=")) {
+				timeout = Replay.parseDuration(arg.substring("timeout=".length()));
+			}
+			else if("dry-run".equals(arg) || "--dry-run".equals(arg)) {
+				dryRun = true;
+			}
+			else {
+				break;
+			}
+		}
+
+		if(i >= cmd.length)
+			throw new IllegalArgumentException("Missing ObjectName pattern");
+		try {
+			pattern = new ObjectName(cmd[i]);
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid ObjectName pattern "+cmd[i]+": "+e.getMessage());
+		}
+		i++;
+
+		if(i >= cmd.length)
+			throw new IllegalArgumentException(invoke ? "Missing operation" : "Missing attribute");
+		offset = i;
+
+		if(!invoke) {
+			// accepted forms: "attr value" or "a=1 b=2 ..."
+			if(cmd.length - i == 2 && cmd[i].indexOf('=') == -1) {
+				values.put(cmd[i], cmd[i+1]);
+			}
+			else {
+				for(; i < cmd.length; i++) {
+					int eq = cmd[i].indexOf('=');
+					if(eq <= 0)
+						throw new IllegalArgumentException("Invalid attribute value "+cmd[i]+", expected <attribute> <value> or <attribute>=<value>...");
+					values.put(cmd[i].substring(0, eq), cmd[i].substring(eq+1));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run the command on all the matching beans.
+	 * @return the exit code: 0 if all the beans succeeded, 4 otherwise
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public int run() throws IOException {
+		long start = System.nanoTime();
+		SortedSet<ObjectName> names = jconnect.getIndex().query(pattern, null);
+		if(names.isEmpty()) {
+			System.err.println("No bean matching "+pattern);
+			return 4;
+		}
+
+		ResultWriter.Format format = jconnect.output;
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		ExecutorService executor = Workers.newBoundedExecutor(parallelism, "jconnect-bulk");
+		ScheduledExecutorService watchdog = timeout > 0 ? Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "jconnect-bulk-timeout");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+		ArrayDeque<CompletableFuture<Result>> pending = new ArrayDeque<>();
+		int[] counts = new int[Status.values().length];
+		try {
+			if(format == ResultWriter.Format.CSV)
+				out.write("bean,status,result\n");
+			else if(format == ResultWriter.Format.JSON)
+				out.write("[\n");
+			boolean first = true;
+
+			for(ObjectName name : names) {
+				pending.add(submit(executor, watchdog, name));
+				// report the beans in order, waiting for the oldest one when the window is full
+				while(!pending.isEmpty() && (pending.size() >= parallelism * 4 || pending.peek().isDone())) {
+					Result result = take(pending.poll());
+					counts[result.status.ordinal()]++;
+					write(out, format, result, first);
+					first = false;
+				}
+			}
+			while(!pending.isEmpty()) {
+				Result result = take(pending.poll());
+				counts[result.status.ordinal()]++;
+				write(out, format, result, first);
+				first = false;
+			}
+
+			if(format == ResultWriter.Format.JSON)
+				out.write("\n]\n");
+		}
+		finally {
+			executor.shutdownNow();
+			if(watchdog != null)
+				watchdog.shutdownNow();
+			out.flush();
+		}
+
+		String operation = invoke ? "invoke "+cmd[offset] : "set "+String.join(",", values.keySet());
+		if(dryRun) {
+			System.err.println(String.format("%s: dry run on %d beans, %d would fail", operation, names.size(), counts[Status.FAILED.ordinal()]));
+		}
+		else {
+			System.err.println(String.format("%s: %d succeeded, %d failed, %d timed out on %d beans in %.3f s", operation, counts[Status.OK.ordinal()],
+					counts[Status.FAILED.ordinal()], counts[Status.TIMEOUT.ordinal()], names.size(), (System.nanoTime() - start) / 1e9));
+		}
+		logger.info("Bulk {} on {} beans: {}", Arrays.toString(cmd), names.size(), Arrays.toString(counts));
+		return counts[Status.FAILED.ordinal()] + counts[Status.TIMEOUT.ordinal()] > 0 ? 4 : 0;
+	}
+
+	/**
+	 * Submit the call on one bean. The timeout starts when the call starts, not when it is queued, but a call still
+	 * queued after {@value #QUEUE_TIMEOUT_FACTOR} timeouts is given up.
+	 */
+	private CompletableFuture<Result> submit(ExecutorService executor, ScheduledExecutorService watchdog, ObjectName name) {
+		CompletableFuture<Result> result = new CompletableFuture<>();
+		AtomicBoolean started = new AtomicBoolean();
+		Future<?>[] work = new Future<?>[1];
+		work[0] = executor.submit(() -> {
+			if(!started.compareAndSet(false, true))
+				return; // given up while queued
+			if(watchdog != null) {
+				watchdog.schedule(() -> {
+					if(result.complete(new Result(name, Status.TIMEOUT, "no answer after "+timeout+" ms")) && work[0] != null)
+						work[0].cancel(true);
+				}, timeout, TimeUnit.MILLISECONDS);
+			}
+			try {
+				result.complete(call(name));
+			}
+			catch(IOException | RuntimeException e) {
+				result.completeExceptionally(e);
+			}
+		});
+		if(watchdog != null) {
+			long queueTimeout = QUEUE_TIMEOUT_FACTOR * timeout;
+			watchdog.schedule(() -> {
+				if(started.compareAndSet(false, true))
+					result.complete(new Result(name, Status.TIMEOUT, "not started after "+queueTimeout+" ms, the workers are blocked"));
+			}, queueTimeout, TimeUnit.MILLISECONDS);
+		}
+		return result;
+	}
+
+	private Result take(CompletableFuture<Result> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Bulk command interrupted", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unexpected bulk command failure", e.getCause());
+		}
+	}
+
+	/**
+	 * Resolve the arguments with the MBeanInfo of the bean, then call it unless dry run.
+	 */
+	private Result call(ObjectName name) throws IOException {
+		try {
+			if(invoke) {
+				OperationTable.Call call = jconnect.getIndex().getOperations(name).resolve(cmd[offset], cmd, offset + 1);
+				if(call == null)
+					return new Result(name, Status.FAILED, "operation "+cmd[offset]+" with "+(cmd.length - offset - 1)+" arguments not found");
+				if(dryRun)
+					return new Result(name, Status.DRY_RUN, jconnect.displaySignature(call.getDispatch().getOperation()));
+				Object value = jconnect.getConnection().invoke(name, cmd[offset], call.getParams(), call.getDispatch().getSignature());
+				return new Result(name, Status.OK, value);
+			}
+
+			MBeanInfo info = jconnect.getIndex().getInfo(name);
+			AttributeList list = new AttributeList();
+			for(Map.Entry<String, String> entry : values.entrySet()) {
+				MBeanAttributeInfo attrInfo = JConnect.findAttribute(info, entry.getKey());
+				if(attrInfo == null || !attrInfo.isWritable())
+					return new Result(name, Status.FAILED, "no writable attribute "+entry.getKey());
+				Converters.Converter converter = Converters.forFeature(attrInfo.getType(), attrInfo.getDescriptor());
+				if(converter == null)
+					return new Result(name, Status.FAILED, "invalid non primitive data type "+attrInfo.getType()+" for "+entry.getKey());
+				list.add(new Attribute(entry.getKey(), converter.convert(entry.getValue())));
+			}
+			if(dryRun)
+				return new Result(name, Status.DRY_RUN, values.toString());
+
+			StringBuilder errors = new StringBuilder();
+			for(Map.Entry<String, Object> written : jconnect.setAttributes(name, list).entrySet()) {
+				if(written.getValue() instanceof JConnect.AttributeError) {
+					if(errors.length() > 0)
+						errors.append(", ");
+					errors.append(written.getKey()).append(": ").append(((JConnect.AttributeError) written.getValue()).getCause().getMessage());
+				}
+			}
+			if(errors.length() > 0)
+				return new Result(name, Status.FAILED, errors.toString());
+			return new Result(name, Status.OK, null);
+		}
+		catch(IllegalArgumentException e) {
+			// the arguments cannot be converted for this bean
+			return new Result(name, Status.FAILED, e.getMessage());
+		}
+		catch(JMException | RuntimeException e) {
+			logger.debug("Bulk call failed on "+name, e);
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			return new Result(name, Status.FAILED, cause.toString());
+		}
+	}
+
+	private void write(Writer out, ResultWriter.Format format, Result result, boolean first) throws IOException {
+		String bean = jconnect.getIndex().displayName(result.name);
+		String status = result.status == Status.DRY_RUN ? "DRY-RUN" : result.status.name();
+		switch(format) {
+		case JSON:
+		case NDJSON:
+			if(format == ResultWriter.Format.JSON && !first)
+				out.write(",\n");
+			Map<String, Object> record = new LinkedHashMap<>();
+			record.put("bean", result.name.getCanonicalName());
+			record.put("status", status);
+			record.put(result.status == Status.OK || result.status == Status.DRY_RUN ? "result" : "error", result.value);
+			ResultWriter.writeJson(out, record);
+			if(format == ResultWriter.Format.NDJSON)
+				out.write('\n');
+			break;
+		case CSV:
+			StringBuilder row = new StringBuilder();
+			Watcher.appendCsv(row, result.name.getCanonicalName());
+			row.append(',').append(status).append(',');
+			if(result.value != null)
+				Watcher.appendCsv(row, text(result.value));
+			out.write(row.append('\n').toString());
+			break;
+		default:
+			out.write(String.format("%-8s %s", status, bean));
+			if(result.value != null)
+				out.write(": "+text(result.value));
+			out.write('\n');
+		}
+		out.flush();
+	}
+
+	private static String text(Object value) throws IOException {
+		if(value instanceof String || value instanceof Number || value instanceof Boolean)
+			return value.toString();
+		StringWriter json = new StringWriter();
+		ResultWriter.writeJson(json, value);
+		return json.toString();
+	}
+}
@@ -0,0 +1,518 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.IntPredicate;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The histo command: class histogram of the heap read from the DiagnosticCommand MBean, and its growth over time.<br>
+ * <pre>
+ * histo [every=D] [top=N] [samples=N] [sort=bytes|instances] [all]
+ * </pre>
+ * Each sample calls gcClassHistogram, the remote equivalent of jmap -histo:live (a full GC is triggered, unless all
+ * counts the unreachable objects too). Without every, the top classes by size are printed once. With every, the
+ * classes whose bytes (or instances) grew the most since the previous sample are printed at each interval.<br>
+ * The text of the histogram is parsed in a single pass without splitting it: the class names are hashed in place and
+ * only allocated the first time they are seen. The counts are kept in primitive arrays indexed by the class. The
+ * classes absent from the last two samples are dropped from the table once they outnumber the present ones, so the
+ * memory of the client is bounded by the number of classes of the recent samples whatever the number of samples.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class ClassHistogram {
+
+	/** default number of classes printed */
+	public static final int DEFAULT_TOP = 20;
+	/** size of the class table below which it is never compacted */
+	static final int COMPACT_THRESHOLD = 1024;
+
+	static final String DIAGNOSTIC_COMMAND = "com.sun.management:type=DiagnosticCommand";
+	private static final String[] SIGNATURE = { String[].class.getName() };
+
+	enum Sort { BYTES, INSTANCES }
+
+	final JConnect jconnect;
+	final Logger logger;
+	final MBeanServerConnection mbsc;
+	long every = 0;
+	int top = DEFAULT_TOP;
+	long samples = 0;
+	Sort sort = Sort.BYTES;
+	boolean all = false;
+
+	// state of the samples, indexed by the id of the class in the table
+	final ClassTable classes = new ClassTable();
+	private long[] instances = new long[1024];
+	private long[] bytes = new long[1024];
+	private long[] previousInstances = new long[1024];
+	private long[] previousBytes = new long[1024];
+	private long totalInstances = 0;
+	private long totalBytes = 0;
+	private long previousTotalInstances = 0;
+	private long previousTotalBytes = 0;
+	private boolean hasPrevious = false;
+	private long sampled = 0;
+	private int[] selected = new int[0];
+	private int selectedSize = 0;
+
+	/**
+	 * Dictionary of the class names, looked up from a region of the histogram text without allocation.
+	 */
+	static class ClassTable {
+		private String[] names = new String[1024];
+		private int[] slots = newSlots(2048);
+		private int size = 0;
+
+		private static int[] newSlots(int capacity) {
+			int[] slots = new int[capacity];
+			Arrays.fill(slots, -1);
+			return slots;
+		}
+
+		/**
+		 * @return the id of the class name text[start, end), added to the table if unknown
+		 */
+		int id(String text, int start, int end) {
+			int length = end - start;
+			int hash = 0;
+			for(int i = start; i < end; i++)
+				hash = 31 * hash + text.charAt(i);
+
+			int mask = slots.length - 1;
+			int slot = mix(hash) & mask;
+			for(int id; (id = slots[slot]) >= 0; slot = (slot + 1) & mask) {
+				String name = names[id];
+				if(name.length() == length && text.regionMatches(start, name, 0, length))
+					return id;
+			}
+
+			if(size == names.length)
+				names = Arrays.copyOf(names, size * 2);
+			names[size] = text.substring(start, end);
+			slots[slot] = size;
+			if(++size * 2 > slots.length)
+				rehash(slots.length * 2);
+			return size - 1;
+		}
+
+		/**
+		 * Remove the classes that are not kept, the remaining ones keep their order.
+		 * @return the new id of each previous id, -1 for the removed classes
+		 */
+		int[] compact(IntPredicate keep) {
+			int[] ids = new int[size];
+			int kept = 0;
+			for(int id = 0; id < size; id++) {
+				if(keep.test(id)) {
+					names[kept] = names[id];
+					ids[id] = kept++;
+				}
+				else {
+					ids[id] = -1;
+				}
+			}
+			Arrays.fill(names, kept, size, null);
+			size = kept;
+			rehash(slots.length);
+			return ids;
+		}
+
+		private void rehash(int capacity) {
+			slots = newSlots(capacity);
+			int mask = slots.length - 1;
+			for(int id = 0; id < size; id++) {
+				// the hash of the region is the hashCode of the name
+				int slot = mix(names[id].hashCode()) & mask;
+				while(slots[slot] >= 0)
+					slot = (slot + 1) & mask;
+				slots[slot] = id;
+			}
+		}
+
+		private static int mix(int hash) {
+			return hash ^ (hash >>> 16);
+		}
+
+		String name(int id) {
+			return names[id];
+		}
+
+		int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Parse the arguments of the histo command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "histo"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public ClassHistogram(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.mbsc = jconnect.getConnection();
+
+		for(int i = 1; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(("--every".equals(arg) || "--top".equals(arg) || "--samples".equals(arg) || "--sort".equals(arg)) && i + 1 < cmd.length)
+				arg = arg.substring(2)+"="+cmd[++i];
+
+			if(arg.startsWith("every=")) {
+				every = Replay.parseDuration(arg.substring("every=".length()));
+				if(every <= 0)
+					throw new IllegalArgumentException("Invalid interval "+arg);
+			}
+			else if(arg.startsWith("top=")) {
+				top = parseCount(arg.substring("top=".length()), arg);
+			}
+			else if(arg.startsWith("samples=")) {
+				samples = parseCount(arg.substring("samples=".length()), arg);
+			}
+			else if(arg.startsWith("sort=")) {
+				String value = arg.substring("sort=".length());
+				if("bytes".equalsIgnoreCase(value))
+					sort = Sort.BYTES;
+				else if("instances".equalsIgnoreCase(value))
+					sort = Sort.INSTANCES;
+				else
+					throw new IllegalArgumentException("Invalid sort "+value+", expected bytes or instances");
+			}
+			else if("all".equals(arg) || "-all".equals(arg) || "--all".equals(arg)) {
+				all = true;
+			}
+			else {
+				throw new IllegalArgumentException("Unexpected argument "+arg);
+			}
+		}
+	}
+
+	private static int parseCount(String value, String arg) {
+		try {
+			int count = Integer.parseInt(value);
+			if(count > 0)
+				return count;
+		}
+		catch(NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid "+arg);
+	}
+
+	/**
+	 * Print the histogram once, or its growth at each interval until the number of samples is reached.
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public void run() throws IOException {
+		ResultWriter.Format format = jconnect.output;
+		if(every > 0 && format == ResultWriter.Format.JSON)
+			format = ResultWriter.Format.NDJSON;
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+		try {
+			long start = System.currentTimeMillis();
+			for(long tick = 0; tick == 0 || (every > 0 && (samples <= 0 || tick < samples)); tick++) {
+				long next = start + tick * every;
+				long now = System.currentTimeMillis();
+				if(next > now)
+					Thread.sleep(next - now);
+				else if(tick > 0 && now - next >= every)
+					continue; // the previous histogram lasted more than an interval
+
+				long begin = System.nanoTime();
+				sample();
+				select();
+				write(out, format, Instant.ofEpochMilli(System.currentTimeMillis()).toString(), (System.nanoTime() - begin) / 1000000, tick == 0);
+				out.flush();
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			out.flush();
+		}
+	}
+
+	/**
+	 * Read a histogram and keep the previous counts for the growth.
+	 */
+	private void sample() throws IOException {
+		String text;
+		try {
+			text = (String) mbsc.invoke(new ObjectName(DIAGNOSTIC_COMMAND), "gcClassHistogram",
+					new Object[] { all ? new String[] { "-all" } : new String[0] }, SIGNATURE);
+		}
+		catch(InstanceNotFoundException e) {
+			throw new IllegalStateException("The JVM has no "+DIAGNOSTIC_COMMAND+" bean, a HotSpot JVM 8 or later is required");
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+		catch(JMException e) {
+			throw new IllegalStateException("gcClassHistogram failed: "+e.getMessage(), e);
+		}
+
+		// the arrays of the sample before the previous one are reused for the new one
+		long[] swap = previousInstances;
+		previousInstances = instances;
+		instances = swap;
+		swap = previousBytes;
+		previousBytes = bytes;
+		bytes = swap;
+		Arrays.fill(instances, 0);
+		Arrays.fill(bytes, 0);
+		hasPrevious = sampled++ > 0;
+		previousTotalInstances = totalInstances;
+		previousTotalBytes = totalBytes;
+
+		parse(text);
+		compact();
+	}
+
+	/**
+	 * Drop the classes absent from the current and the previous samples when they outnumber the others: a long run
+	 * sees many short-lived class names (proxies, lambdas, generated classes) that would otherwise be kept forever.
+	 */
+	private void compact() {
+		int size = classes.size();
+		if(size < COMPACT_THRESHOLD)
+			return;
+		IntPredicate present = id -> instances[id] != 0 || previousInstances[id] != 0;
+		int live = 0;
+		for(int id = 0; id < size; id++) {
+			if(present.test(id))
+				live++;
+		}
+		if(live * 2 > size)
+			return;
+
+		// the new ids are lower than the previous ones, the counts are moved in place
+		int[] ids = classes.compact(present);
+		for(int id = 0; id < size; id++) {
+			int to = ids[id];
+			if(to >= 0) {
+				instances[to] = instances[id];
+				bytes[to] = bytes[id];
+				previousInstances[to] = previousInstances[id];
+				previousBytes[to] = previousBytes[id];
+			}
+		}
+		Arrays.fill(instances, live, size, 0);
+		Arrays.fill(bytes, live, size, 0);
+		Arrays.fill(previousInstances, live, size, 0);
+		Arrays.fill(previousBytes, live, size, 0);
+		logger.debug("{} classes absent from the last samples dropped, {} kept", size - live, live);
+	}
+
+	/**
+	 * Parse the lines of the histogram: "   1:  instances  bytes  class-name (module)" and "Total  instances  bytes".
+	 */
+	void parse(String text) {
+		totalInstances = 0;
+		totalBytes = 0;
+		int length = text.length();
+		for(int pos = 0; pos < length; ) {
+			int eol = text.indexOf('\n', pos);
+			if(eol < 0)
+				eol = length;
+			parseLine(text, pos, eol);
+			pos = eol + 1;
+		}
+	}
+
+	private void parseLine(String text, int pos, int eol) {
+		pos = skipSpaces(text, pos, eol);
+		if(text.startsWith("Total", pos)) {
+			pos = skipSpaces(text, pos + "Total".length(), eol);
+			int end = skipDigits(text, pos, eol);
+			totalInstances = parseLong(text, pos, end);
+			pos = skipSpaces(text, end, eol);
+			totalBytes = parseLong(text, pos, skipDigits(text, pos, eol));
+			return;
+		}
+
+		int end = skipDigits(text, pos, eol);
+		if(end == pos || end >= eol || text.charAt(end) != ':')
+			return; // header or separator
+		pos = skipSpaces(text, end + 1, eol);
+		end = skipDigits(text, pos, eol);
+		long count = parseLong(text, pos, end);
+		pos = skipSpaces(text, end, eol);
+		end = skipDigits(text, pos, eol);
+		long size = parseLong(text, pos, end);
+		pos = skipSpaces(text, end, eol);
+		end = pos;
+		while(end < eol && text.charAt(end) != ' ' && text.charAt(end) != '\r')
+			end++;
+		if(end == pos)
+			return;
+
+		int id = classes.id(text, pos, end);
+		if(id >= instances.length)
+			grow(classes.size());
+		// the same name may be loaded by several class loaders
+		instances[id] += count;
+		bytes[id] += size;
+	}
+
+	private void grow(int size) {
+		int capacity = Math.max(size, instances.length * 2);
+		instances = Arrays.copyOf(instances, capacity);
+		bytes = Arrays.copyOf(bytes, capacity);
+		previousInstances = Arrays.copyOf(previousInstances, capacity);
+		previousBytes = Arrays.copyOf(previousBytes, capacity);
+	}
+
+	private static int skipSpaces(String text, int pos, int eol) {
+		while(pos < eol && text.charAt(pos) == ' ')
+			pos++;
+		return pos;
+	}
+
+	private static int skipDigits(String text, int pos, int eol) {
+		while(pos < eol && text.charAt(pos) >= '0' && text.charAt(pos) <= '9')
+			pos++;
+		return pos;
+	}
+
+	private static long parseLong(String text, int start, int end) {
+		long value = 0;
+		for(int i = start; i < end; i++)
+			value = value * 10 + (text.charAt(i) - '0');
+		return value;
+	}
+
+	/**
+	 * Select the top classes by growth since the previous sample, or by size for the first one.
+	 */
+	private void select() {
+		if(selected.length < top)
+			selected = new int[top];
+		selectedSize = 0;
+		for(int id = 0; id < classes.size(); id++) {
+			long key = key(id);
+			if(hasPrevious && key <= 0)
+				continue;
+			if(selectedSize == top && key <= key(selected[top - 1]))
+				continue;
+			int position = Math.min(selectedSize, top - 1);
+			while(position > 0 && key > key(selected[position - 1])) {
+				selected[position] = selected[position - 1];
+				position--;
+			}
+			selected[position] = id;
+			if(selectedSize < top)
+				selectedSize++;
+		}
+	}
+
+	private long key(int id) {
+		long[] current = sort == Sort.BYTES ? bytes : instances;
+		long[] previous = sort == Sort.BYTES ? previousBytes : previousInstances;
+		return hasPrevious ? current[id] - previous[id] : current[id];
+	}
+
+	private void write(Writer out, ResultWriter.Format format, String timestamp, long millis, boolean header) throws IOException {
+		switch(format) {
+		case CSV:
+			if(header)
+				out.write("timestamp,rank,class,instances,instances_delta,bytes,bytes_delta\n");
+			for(int r = 0; r < selectedSize; r++) {
+				int id = selected[r];
+				StringBuilder line = new StringBuilder();
+				line.append(timestamp).append(',').append(r + 1).append(',');
+				Watcher.appendCsv(line, classes.name(id));
+				line.append(',').append(instances[id]).append(',');
+				if(hasPrevious)
+					line.append(instances[id] - previousInstances[id]);
+				line.append(',').append(bytes[id]).append(',');
+				if(hasPrevious)
+					line.append(bytes[id] - previousBytes[id]);
+				out.write(line.append('\n').toString());
+			}
+			break;
+		case JSON:
+		case NDJSON:
+			if(format == ResultWriter.Format.JSON)
+				out.write('[');
+			for(int r = 0; r < selectedSize; r++) {
+				int id = selected[r];
+				Map<String, Object> record = new LinkedHashMap<>();
+				record.put("timestamp", timestamp);
+				record.put("rank", r + 1);
+				record.put("class", classes.name(id));
+				record.put("instances", instances[id]);
+				record.put("instances_delta", hasPrevious ? instances[id] - previousInstances[id] : null);
+				record.put("bytes", bytes[id]);
+				record.put("bytes_delta", hasPrevious ? bytes[id] - previousBytes[id] : null);
+				if(format == ResultWriter.Format.JSON && r > 0)
+					out.write(',');
+				ResultWriter.writeJson(out, record);
+				if(format == ResultWriter.Format.NDJSON)
+					out.write('\n');
+			}
+			if(format == ResultWriter.Format.JSON)
+				out.write("]\n");
+			break;
+		default:
+			if(!header)
+				out.write('\n');
+			out.write(timestamp+"  classes: "+classes.size()+"  instances: "+totalInstances+delta(totalInstances, previousTotalInstances)
+					+"  bytes: "+totalBytes+delta(totalBytes, previousTotalBytes)+"  histogram in "+millis+" ms\n");
+			if(selectedSize == 0) {
+				out.write("no class grew since the previous sample\n");
+				break;
+			}
+			int width = "class".length();
+			for(int r = 0; r < selectedSize; r++)
+				width = Math.max(width, classes.name(selected[r]).length());
+			String row = "%4s  %-"+width+"s  %12s  %12s  %14s  %14s%n";
+			out.write(String.format(row, "rank", "class", "instances", "+instances", "bytes", "+bytes"));
+			for(int r = 0; r < selectedSize; r++) {
+				int id = selected[r];
+				out.write(String.format(row, r + 1, classes.name(id), instances[id], signed(instances[id], previousInstances[id]),
+						bytes[id], signed(bytes[id], previousBytes[id])));
+			}
+		}
+	}
+
+	private String delta(long current, long previous) {
+		return hasPrevious ? " ("+signed(current, previous)+")" : "";
+	}
+
+	private String signed(long current, long previous) {
+		if(!hasPrevious)
+			return "-";
+		long delta = current - previous;
+		return (delta >= 0 ? "+" : "")+delta;
+	}
+}
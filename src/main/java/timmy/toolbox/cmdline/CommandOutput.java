@@ -0,0 +1,267 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per thread capture of System.out and System.err.<br>
+ * executeCommand writes its results directly to System.out and System.err. To run several commands
+ * concurrently, the standard streams are replaced once by routing streams that write into the capture
+ * of the current thread if any, or to the original streams otherwise.<br>
+ * A pass-through capture writes directly to the original streams until it is discarded: the output of a cancelled
+ * command that is still running is then dropped.<br>
+ * The threads started by a command write into the capture of the command.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class CommandOutput {
+
+	// inherited by the threads started by a command, like the scheduler of watch
+	private static final ThreadLocal<CommandOutput> current = new InheritableThreadLocal<>();
+	private static PrintStream stdout = null;
+	private static PrintStream stderr = null;
+
+	private final List<ByteArrayOutputStream> chunks = new ArrayList<>();
+	private final List<Boolean> errors = new ArrayList<>();
+	private final boolean passThrough;
+	private final OutputStream out;
+	private final OutputStream err;
+	private volatile boolean discarded = false;
+
+	private CommandOutput(boolean passThrough) {
+		this(passThrough, null, null);
+	}
+
+	private CommandOutput(boolean passThrough, OutputStream out, OutputStream err) {
+		this.passThrough = passThrough;
+		this.out = out;
+		this.err = err;
+	}
+
+	/**
+	 * Replace System.out and System.err by the routing streams. Does nothing if already installed.
+	 */
+	public static synchronized void install() {
+		if(stdout != null)
+			return;
+
+		stdout = System.out;
+		stderr = System.err;
+		System.setOut(new PrintStream(new RoutingOutputStream(stdout, false), true));
+		System.setErr(new PrintStream(new RoutingOutputStream(stderr, true), true));
+	}
+
+	/**
+	 * @param error true for the original System.err, false for the original System.out
+	 * @return the original standard stream, written directly whatever the output of the current thread
+	 */
+	public static synchronized PrintStream original(boolean error) {
+		install();
+		return error ? stderr : stdout;
+	}
+
+	/**
+	 * Start capturing the output of the current thread.
+	 * @return the new capture
+	 */
+	public static CommandOutput begin() {
+		CommandOutput output = create(false);
+		output.attach();
+		return output;
+	}
+
+	/**
+	 * Create a capture, to be attached later to the thread running the command.
+	 * @param passThrough true to write directly to the original streams instead of capturing
+	 * @return the new capture
+	 */
+	public static CommandOutput create(boolean passThrough) {
+		install();
+		return new CommandOutput(passThrough);
+	}
+
+	/**
+	 * Create an output writing to the given streams instead of the standard ones, to be attached later to the
+	 * thread running the command.
+	 * @param out the stream receiving what the command writes to System.out
+	 * @param err the stream receiving what the command writes to System.err
+	 * @return the new output
+	 */
+	public static CommandOutput redirect(OutputStream out, OutputStream err) {
+		install();
+		return new CommandOutput(true, out, err);
+	}
+
+	/**
+	 * Start capturing the output of the current thread into this capture.
+	 */
+	public void attach() {
+		current.set(this);
+	}
+
+	/**
+	 * Drop the output captured so far and all the output written from now on.
+	 */
+	public synchronized void discard() {
+		discarded = true;
+		chunks.clear();
+		errors.clear();
+	}
+
+	/**
+	 * @return the captured output, stdout and stderr in the order it was produced
+	 */
+	public synchronized String text() {
+		StringBuilder builder = new StringBuilder();
+		for(ByteArrayOutputStream chunk : chunks)
+			builder.append(new String(chunk.toByteArray()));
+		return builder.toString();
+	}
+
+	/**
+	 * @return true if the output of the current thread is captured or redirected instead of being written to the console
+	 */
+	public static boolean isCapturing() {
+		CommandOutput output = current.get();
+		return output != null && (!output.passThrough || output.out != null);
+	}
+
+	/**
+	 * Stop capturing the output of the current thread.
+	 * @return the capture, null if the thread was not capturing
+	 */
+	public static CommandOutput end() {
+		System.out.flush();
+		System.err.flush();
+		CommandOutput output = current.get();
+		current.remove();
+		return output;
+	}
+
+	/**
+	 * Write the captured output to the original standard streams, in the order it was produced.
+	 */
+	public synchronized void replay() {
+		PrintStream out = stdout != null ? stdout : System.out;
+		PrintStream err = stderr != null ? stderr : System.err;
+		for(int i = 0; i < chunks.size(); i++) {
+			PrintStream stream = errors.get(i) ? err : out;
+			byte[] chunk = chunks.get(i).toByteArray();
+			stream.write(chunk, 0, chunk.length);
+		}
+		out.flush();
+		err.flush();
+	}
+
+	/**
+	 * Write the captured output to the original standard streams, each line being prefixed.
+	 * @param prefix the prefix of each line
+	 */
+	public synchronized void replay(String prefix) {
+		PrintStream out = stdout != null ? stdout : System.out;
+		PrintStream err = stderr != null ? stderr : System.err;
+		byte[] bytes = prefix.getBytes();
+		boolean outLineStart = true;
+		boolean errLineStart = true;
+		for(int i = 0; i < chunks.size(); i++) {
+			boolean error = errors.get(i);
+			PrintStream stream = error ? err : out;
+			boolean lineStart = error ? errLineStart : outLineStart;
+			for(byte b : chunks.get(i).toByteArray()) {
+				if(lineStart)
+					stream.write(bytes, 0, bytes.length);
+				stream.write(b);
+				lineStart = b == '\n';
+			}
+			if(error)
+				errLineStart = lineStart;
+			else
+				outLineStart = lineStart;
+		}
+		if(!outLineStart)
+			out.println();
+		if(!errLineStart)
+			err.println();
+		out.flush();
+		err.flush();
+	}
+
+	private synchronized void append(byte[] b, int off, int len, boolean error) {
+		if(discarded)
+			return;
+		if(out != null) {
+			try {
+				(error ? err : out).write(b, off, len);
+			}
+			catch(IOException e) {
+				// the reader is gone, drop the rest of the output
+				discarded = true;
+			}
+			return;
+		}
+		if(passThrough) {
+			PrintStream stream = error ? stderr : stdout;
+			stream.write(b, off, len);
+			stream.flush();
+			return;
+		}
+		int last = chunks.size() - 1;
+		if(last < 0 || errors.get(last) != error) {
+			// a new chunk each time the output switches between stdout and stderr
+			chunks.add(new ByteArrayOutputStream());
+			errors.add(error);
+			last++;
+		}
+		chunks.get(last).write(b, off, len);
+	}
+
+	/**
+	 * Write into the capture of the current thread, or to the original stream.
+	 */
+	static class RoutingOutputStream extends OutputStream {
+		final PrintStream original;
+		final boolean error;
+
+		RoutingOutputStream(PrintStream original, boolean error) {
+			this.original = original;
+			this.error = error;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			CommandOutput output = current.get();
+			if(output != null)
+				output.append(b, off, len, error);
+			else
+				original.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+			original.flush();
+		}
+	}
+}
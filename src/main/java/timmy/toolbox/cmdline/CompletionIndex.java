@@ -0,0 +1,226 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * In memory index used by the console completion.<br>
+ * The short names of the beans are kept in a {@link PrefixTrie} updated with the {@link BeanIndex}.
+ * After the connection, the MBeanInfo of all the beans are prefetched in the background and the names of
+ * their operations and attributes are indexed in their own tries.<br>
+ * The lookups never send a request to the JMX server: a bean whose MBeanInfo is not loaded yet is queued
+ * in front of the prefetch and reported as loading.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class CompletionIndex implements BeanIndex.Listener {
+
+	/** number of MBeanInfo requests sent concurrently by the prefetch */
+	public static final int PREFETCH_PARALLELISM = 8;
+
+	/**
+	 * The operations and attributes of a bean.
+	 */
+	public static class Members {
+		final PrefixTrie operations = new PrefixTrie();
+		final PrefixTrie attributes = new PrefixTrie();
+
+		Members(MBeanInfo info) {
+			for(MBeanOperationInfo operation : info.getOperations())
+				operations.add(operation.getName());
+			for(MBeanAttributeInfo attribute : info.getAttributes())
+				attributes.add(attribute.getName());
+		}
+
+		/**
+		 * @param prefix the typed prefix
+		 * @return the operations matching the prefix, or containing it if none starts with it
+		 */
+		public List<String> operations(String prefix) {
+			return match(operations, prefix);
+		}
+
+		/**
+		 * @param prefix the typed prefix
+		 * @return the attributes matching the prefix, or containing it if none starts with it
+		 */
+		public List<String> attributes(String prefix) {
+			return match(attributes, prefix);
+		}
+	}
+
+	final BeanIndex index;
+	final Logger logger;
+	private final PrefixTrie beans = new PrefixTrie();
+	private final Map<ObjectName, Members> members = new ConcurrentHashMap<>();
+	private final AtomicInteger pending = new AtomicInteger();
+	private ExecutorService prefetcher = null;
+	private ExecutorService urgent = null;
+
+	/**
+	 * @param index the bean index to follow
+	 * @param logger the logger to use
+	 */
+	public CompletionIndex(BeanIndex index, Logger logger) {
+		this.index = index;
+		this.logger = logger;
+	}
+
+	/**
+	 * Index the current beans and start the background prefetch of their MBeanInfo.
+	 */
+	public synchronized void start() {
+		prefetcher = Workers.newBoundedExecutor(PREFETCH_PARALLELISM, "jconnect-prefetch");
+		urgent = Workers.newBoundedExecutor(1, "jconnect-prefetch-urgent");
+		synchronized (index) {
+			index.addListener(this);
+			for(Map.Entry<String, ObjectName> entry : index.getBeans().entrySet())
+				beanAdded(entry.getKey(), entry.getValue());
+		}
+	}
+
+	/**
+	 * Stop the prefetch and stop following the bean index.
+	 */
+	public synchronized void stop() {
+		index.removeListener(this);
+		if(prefetcher != null)
+			prefetcher.shutdownNow();
+		if(urgent != null)
+			urgent.shutdownNow();
+	}
+
+	@Override
+	public void beanAdded(String shortName, ObjectName name) {
+		beans.add(shortName);
+		prefetch(prefetcher, name);
+	}
+
+	@Override
+	public void beanRemoved(String shortName) {
+		beans.remove(shortName);
+	}
+
+	@Override
+	public void indexCleared() {
+		beans.clear();
+		members.clear();
+	}
+
+	/**
+	 * @return true while MBeanInfo are being prefetched
+	 */
+	public boolean isLoading() {
+		return pending.get() > 0;
+	}
+
+	/**
+	 * @param prefix the typed prefix
+	 * @return the short names of the beans matching the prefix, or containing it if none starts with it
+	 */
+	public List<String> beans(String prefix) {
+		return match(beans, prefix);
+	}
+
+	/**
+	 * Get the operations and attributes of a bean from memory.
+	 * @param shortName the short name of the bean
+	 * @return null if the bean is unknown or its MBeanInfo is not loaded yet. In this case it is loaded in priority.
+	 */
+	public Members members(String shortName) {
+		ObjectName name = index.getName(shortName);
+		if(name == null)
+			return null;
+
+		Members result = members.get(name);
+		if(result == null) {
+			MBeanInfo info = index.getCachedInfo(name);
+			if(info != null) {
+				result = new Members(info);
+				members.put(name, result);
+			}
+			else {
+				prefetch(urgent, name);
+			}
+		}
+		return result;
+	}
+
+	private void prefetch(ExecutorService executor, ObjectName name) {
+		if(executor == null || executor.isShutdown() || index.getCachedInfo(name) != null)
+			return;
+
+		pending.incrementAndGet();
+		try {
+			executor.execute(() -> {
+				try {
+					if(index.getCachedInfo(name) == null)
+						index.getInfo(name);
+				}
+				catch(Exception e) {
+					logger.debug("Failed to prefetch the MBeanInfo of "+name+".", e);
+				}
+				finally {
+					pending.decrementAndGet();
+				}
+			});
+		}
+		catch(RuntimeException e) {
+			// rejected after stop
+			pending.decrementAndGet();
+		}
+	}
+
+	static List<String> match(PrefixTrie trie, String prefix) {
+		List<String> result = trie.startingWith(prefix);
+		if(result.isEmpty())
+			result = trie.containing(prefix);
+		return result;
+	}
+
+	/**
+	 * @param names the names to filter
+	 * @param prefix the typed prefix
+	 * @return the names starting with the prefix ignoring the case, or containing it if none starts with it
+	 */
+	static List<String> match(List<String> names, String prefix) {
+		String lower = prefix.toLowerCase();
+		List<String> result = new ArrayList<>();
+		for(String name : names) {
+			if(name.toLowerCase().startsWith(lower))
+				result.add(name);
+		}
+		if(result.isEmpty()) {
+			for(String name : names) {
+				if(name.toLowerCase().contains(lower))
+					result.add(name);
+			}
+		}
+		return result;
+	}
+}
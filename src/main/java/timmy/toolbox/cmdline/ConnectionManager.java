@@ -0,0 +1,513 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationFilter;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Manage the JMX connection of a JConnect session.<br>
+ * The MBeanServerConnection given to the rest of JConnect is a proxy that survives reconnections:
+ * <ul>
+ * <li>the liveness probe (getMBeanCount) is only sent when the connection has been idle for the heartbeat interval,</li>
+ * <li>on a communication failure the connection is reopened with an exponential backoff and jitter,</li>
+ * <li>the notification listeners are registered again on the new connection and the reconnect hook rebuilds the cached state,</li>
+ * <li>only the read-only requests are retried transparently, the other ones fail with an IOException.</li>
+ * <li>a request timed out by the socket read timeout fails with a SocketTimeoutException without reconnecting.</li>
+ * <li>each request is recorded in the {@link RpcStats} of the connection, the liveness probes as "heartbeat".</li>
+ * </ul>
+ * When the connection cannot be reopened before the reconnect timeout, the lost handler is called.<br>
+ * A single thread reopens the connection, without holding the lock of the manager: the requests failing meanwhile wait
+ * for its outcome, and {@link #close()} stops the reconnection during its backoff.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class ConnectionManager implements NotificationListener {
+
+	/** default interval of the liveness probe in milliseconds */
+	public static final long DEFAULT_HEARTBEAT = 5000;
+	/** default time spent trying to reconnect in milliseconds */
+	public static final long DEFAULT_RECONNECT_TIMEOUT = 60000;
+
+	private static final long INITIAL_BACKOFF = 250;
+	private static final long MAX_BACKOFF = 30000;
+
+	/** requests without side effects, retried after a reconnection */
+	private static final Set<String> SAFE_METHODS = new HashSet<>(Arrays.asList(
+			"getAttribute", "getAttributes", "getMBeanInfo", "queryNames", "queryMBeans", "getMBeanCount",
+			"isRegistered", "getObjectInstance", "getDefaultDomain", "getDomains", "isInstanceOf"));
+
+	/** shared by all the sessions: one thread for the heartbeats */
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "jconnect-connection");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/** shared by all the sessions: the asynchronous reconnections, kept apart so that they do not stall the heartbeats */
+	private static final ExecutorService reconnections = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "jconnect-reconnect");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	/**
+	 * A listener registered through the proxy, to be registered again after a reconnection.
+	 */
+	static class Registration {
+		final ObjectName name;
+		final NotificationListener listener;
+		final NotificationFilter filter;
+		final Object handback;
+
+		Registration(ObjectName name, NotificationListener listener, NotificationFilter filter, Object handback) {
+			this.name = name;
+			this.listener = listener;
+			this.filter = filter;
+			this.handback = handback;
+		}
+	}
+
+	final String url;
+	final Map<String, ?> env;
+	final Logger logger;
+	long heartbeat = DEFAULT_HEARTBEAT;
+	long reconnectTimeout = DEFAULT_RECONNECT_TIMEOUT;
+	Runnable onReconnect = null;
+	Consumer<IOException> onLost = null;
+
+	private final MBeanServerConnection proxy;
+	private final RpcStats stats = new RpcStats();
+	private final List<Registration> registrations = new CopyOnWriteArrayList<>();
+	private final List<NotificationListener> connectionListeners = new CopyOnWriteArrayList<>();
+	private volatile JMXConnector connector = null;
+	private volatile MBeanServerConnection connection = null;
+	private volatile long generation = 0;
+	private volatile long lastActivity = 0;
+	private volatile boolean closed = false;
+	private volatile boolean lost = false;
+	private volatile boolean reconnecting = false;
+	/** guards the start and the end of a reconnection, notified by its end and by close() */
+	private final Object reconnection = new Object();
+	private ScheduledFuture<?> heartbeatTask = null;
+
+	/**
+	 * @param url the JMX service URL
+	 * @param env the environment of the connector, may be null
+	 * @param logger the logger to use
+	 */
+	public ConnectionManager(String url, Map<String, ?> env, Logger logger) {
+		this.url = url;
+		this.env = env;
+		this.logger = logger;
+		this.proxy = (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+				new Class<?>[] { MBeanServerConnection.class }, (p, method, args) -> invoke(method.getName(), method, args));
+	}
+
+	/**
+	 * Open the connection and start the heartbeat.
+	 * @throws IOException if the connection fails
+	 */
+	public synchronized void open() throws IOException {
+		connect();
+		if(heartbeat > 0)
+			heartbeatTask = scheduler.scheduleWithFixedDelay(this::probe, heartbeat, heartbeat, TimeUnit.MILLISECONDS);
+	}
+
+	private void connect() throws IOException {
+		JMXConnector newConnector = JMXConnectorFactory.connect(new JMXServiceURL(url), env);
+		newConnector.addConnectionNotificationListener(this, null, null);
+		for(NotificationListener listener : connectionListeners)
+			newConnector.addConnectionNotificationListener(listener, null, null);
+		connector = newConnector;
+		connection = newConnector.getMBeanServerConnection();
+		lastActivity = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return the connection to use, it survives the reconnections
+	 */
+	public MBeanServerConnection getConnection() {
+		return proxy;
+	}
+
+	/**
+	 * @return the statistics of the requests sent through this connection
+	 */
+	public RpcStats getStats() {
+		return stats;
+	}
+
+	/**
+	 * @return the current connector
+	 */
+	public JMXConnector getConnector() {
+		return connector;
+	}
+
+	/**
+	 * @return the number of reconnections since the connection has been opened
+	 */
+	public long getGeneration() {
+		return generation;
+	}
+
+	/**
+	 * @return true while the connection is being reopened
+	 */
+	public boolean isReconnecting() {
+		return reconnecting;
+	}
+
+	/**
+	 * @return true if the connection is lost and has been given up
+	 */
+	public boolean isLost() {
+		return lost;
+	}
+
+	/**
+	 * Add a listener of the connection notifications of the current and of the future connectors.
+	 * @param listener the listener
+	 */
+	public void addConnectionNotificationListener(NotificationListener listener) {
+		connectionListeners.add(listener);
+		JMXConnector current = connector;
+		if(current != null)
+			current.addConnectionNotificationListener(listener, null, null);
+	}
+
+	/**
+	 * Remove a listener of the connection notifications.
+	 * @param listener the listener
+	 */
+	public void removeConnectionNotificationListener(NotificationListener listener) {
+		connectionListeners.remove(listener);
+		JMXConnector current = connector;
+		if(current != null) {
+			try {
+				current.removeConnectionNotificationListener(listener);
+			}
+			catch(ListenerNotFoundException e) {
+				logger.debug("Connection listener not found.", e);
+			}
+		}
+	}
+
+	/**
+	 * Close the connection, it will not be reopened.
+	 * @throws IOException in case of a JMX issue
+	 */
+	public synchronized void close() throws IOException {
+		closed = true;
+		// cut short the backoff of a reconnection in progress
+		synchronized(reconnection) {
+			reconnection.notifyAll();
+		}
+		if(heartbeatTask != null)
+			heartbeatTask.cancel(false);
+		if(connector == null)
+			return;
+		try {
+			connector.close();
+		}
+		catch(IOException e) {
+			// the connector of a broken connection cannot reach the server to close it
+			if(!reconnecting && !lost)
+				throw e;
+			logger.debug("Failed to close the broken connector.", e);
+		}
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		String type = notification.getType();
+		if(closed || !(JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)))
+			return;
+
+		logger.warn(notification);
+		reconnectLater(generation);
+	}
+
+	private void reconnectLater(long failed) {
+		reconnections.execute(() -> {
+			try {
+				reconnect(failed, null);
+			}
+			catch(IOException e) {
+				logger.debug("Reconnection failed.", e);
+			}
+		});
+	}
+
+	/**
+	 * Liveness probe, only sent if no request has been sent since the last heartbeat interval.
+	 */
+	private void probe() {
+		if(closed || lost || System.currentTimeMillis() - lastActivity < heartbeat)
+			return;
+		try {
+			invoke("heartbeat", MBeanServerConnection.class.getMethod("getMBeanCount"), null);
+		}
+		catch(Throwable e) {
+			logger.debug("Liveness probe failed.", e);
+		}
+	}
+
+	/**
+	 * Send a request and record its latency under the name of the operation.
+	 */
+	private Object invoke(String operation, Method method, Object[] args) throws Throwable {
+		if(method.getDeclaringClass() == Object.class)
+			return invokeObjectMethod(method, args);
+
+		long start = System.nanoTime();
+		boolean error = true;
+		try {
+			Object result = invoke(method, args, "heartbeat".equals(operation));
+			error = false;
+			return result;
+		}
+		finally {
+			stats.record(operation, System.nanoTime() - start, error);
+		}
+	}
+
+	private Object invoke(Method method, Object[] args, boolean probe) throws Throwable {
+		boolean safe = SAFE_METHODS.contains(method.getName());
+		String name = method.getName();
+		Registration registration = null;
+		if(args != null && args.length >= 2 && args[1] instanceof NotificationListener) {
+			if("addNotificationListener".equals(name)) {
+				registration = new Registration((ObjectName) args[0], (NotificationListener) args[1],
+						(NotificationFilter) args[2], args[3]);
+			}
+			else if("removeNotificationListener".equals(name)) {
+				// forget the registration first: it must not be restored by a reconnection
+				unregister(args);
+			}
+		}
+
+		while(true) {
+			long current = generation;
+			try {
+				Object result = method.invoke(connection, args);
+				lastActivity = System.currentTimeMillis();
+				if(registration != null)
+					registrations.add(registration);
+				return result;
+			}
+			catch(InvocationTargetException e) {
+				Throwable cause = e.getCause();
+				if(!(cause instanceof IOException) || closed)
+					throw cause;
+				if(!probe && isTimeout(cause)) {
+					// the server is slow, not gone: only the socket of this request is dropped
+					SocketTimeoutException timeout = new SocketTimeoutException("Request "+name+" timed out, it may still complete on the server");
+					timeout.initCause(cause);
+					throw timeout;
+				}
+				if(probe) {
+					// the heartbeat thread does not wait for the reconnection
+					reconnectLater(current);
+					throw cause;
+				}
+
+				if(registration != null) {
+					// registered again on the new connection by the reconnection
+					registrations.add(registration);
+					reconnect(current, (IOException) cause);
+					return null;
+				}
+				if("removeNotificationListener".equals(name)) {
+					// the listeners of the failed connection are gone with it
+					reconnect(current, (IOException) cause);
+					return null;
+				}
+
+				reconnect(current, (IOException) cause);
+				if(!safe)
+					throw new IOException("Connection lost during "+name+", the request has not been retried", cause);
+				logger.info("Retrying {} after the reconnection", name);
+			}
+		}
+	}
+
+	private static boolean isTimeout(Throwable e) {
+		for(; e != null; e = e.getCause()) {
+			if(e instanceof SocketTimeoutException)
+				return true;
+		}
+		return false;
+	}
+
+	private Object invokeObjectMethod(Method method, Object[] args) {
+		switch(method.getName()) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			default:
+				return "ConnectionManager("+url+")";
+		}
+	}
+
+	private void unregister(Object[] args) {
+		for(Registration registration : registrations) {
+			boolean match = Objects.equals(registration.name, args[0]) && registration.listener == args[1];
+			if(match && args.length == 4)
+				match = registration.filter == args[2] && registration.handback == args[3];
+			if(match)
+				registrations.remove(registration);
+		}
+	}
+
+	/**
+	 * Reopen the connection if it has not already been reopened since the failure.<br>
+	 * Only one thread reconnects, the others wait for its outcome.
+	 * @param failedGeneration the generation of the connection that failed
+	 * @param cause the failure, may be null
+	 * @throws IOException if the connection cannot be reopened
+	 */
+	private void reconnect(long failedGeneration, IOException cause) throws IOException {
+		synchronized(reconnection) {
+			try {
+				while(reconnecting && generation == failedGeneration && !closed)
+					reconnection.wait();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Reconnection interrupted", cause);
+			}
+			if(generation != failedGeneration)
+				return; // already reconnected by another thread
+			if(closed)
+				throw new IOException("Connection closed", cause);
+			if(lost)
+				throw new IOException("Connection lost", cause);
+			reconnecting = true;
+		}
+
+		try {
+			if(reconnectTimeout <= 0)
+				giveUp(cause != null ? cause : new IOException("Connection lost"));
+			try {
+				connector.close();
+			}
+			catch(IOException e) {
+				logger.debug("Failed to close the broken connector.", e);
+			}
+
+			System.err.println(System.lineSeparator()+"Connection to "+url+" lost, reconnecting...");
+			long start = System.currentTimeMillis();
+			long backoff = INITIAL_BACKOFF;
+			int attempt = 0;
+			while(true) {
+				attempt++;
+				try {
+					connect();
+					if(closed) {
+						// closed during the attempt: the new connector is not used
+						connector.close();
+						throw new IOException("Connection closed", cause);
+					}
+					generation++;
+					for(Registration registration : registrations) {
+						try {
+							connection.addNotificationListener(registration.name, registration.listener, registration.filter, registration.handback);
+						}
+						catch(InstanceNotFoundException e) {
+							logger.warn("Cannot register again the listener of "+registration.name+", the bean is gone.");
+							registrations.remove(registration);
+						}
+					}
+					if(onReconnect != null)
+						onReconnect.run();
+					logger.info("Reconnected to {} after {} attempts", url, attempt);
+					System.err.println("Reconnected to "+url);
+					return;
+				}
+				catch(IOException e) {
+					if(closed)
+						throw new IOException("Connection closed", e);
+					logger.debug("Reconnection attempt "+attempt+" failed.", e);
+					long delay = backoff + ThreadLocalRandom.current().nextLong(backoff / 2 + 1);
+					// no overflow with an unlimited timeout (Long.MAX_VALUE)
+					if(System.currentTimeMillis() - start + delay > reconnectTimeout)
+						giveUp(e);
+					// the backoff holds no lock and is cut short by close()
+					synchronized(reconnection) {
+						try {
+							if(!closed)
+								reconnection.wait(delay);
+						}
+						catch(InterruptedException ie) {
+							Thread.currentThread().interrupt();
+							throw new IOException("Reconnection interrupted", e);
+						}
+					}
+					backoff = Math.min(backoff * 2, MAX_BACKOFF);
+				}
+			}
+		}
+		finally {
+			synchronized(reconnection) {
+				reconnecting = false;
+				reconnection.notifyAll();
+			}
+		}
+	}
+
+	private void giveUp(IOException cause) throws IOException {
+		lost = true;
+		if(heartbeatTask != null)
+			heartbeatTask.cancel(false);
+		logger.error("Connection to "+url+" lost.", cause);
+		if(onLost != null)
+			onLost.accept(cause);
+		throw cause;
+	}
+}
@@ -0,0 +1,122 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+
+import org.apache.logging.log4j.Logger;
+import org.jline.reader.EndOfFileException;
+import org.jline.reader.LineReader;
+import org.jline.reader.LineReaderBuilder;
+import org.jline.reader.UserInterruptException;
+import org.jline.reader.impl.LineReaderImpl;
+import org.jline.reader.impl.history.DefaultHistory;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+
+/**
+ * The interactive console of JConnect.<br>
+ * It is kept apart from {@link JConnect} so that jline is loaded only by the console: the inline commands and
+ * the batches start without it.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+class Console {
+
+	private static final String COMMAND_PROMPT = "$> ";
+
+	final JConnect jconnect;
+	final Logger logger;
+
+	/**
+	 * @param jconnect the connected JConnect executing the commands
+	 */
+	Console(JConnect jconnect) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+	}
+
+	/**
+	 * Read and execute the commands until exit, quit or ctrl+d.
+	 * @return the exit code
+	 * @throws IOException if the terminal cannot be opened or the connection is lost
+	 */
+	int run() throws IOException {
+		DefaultHistory whistory = null;
+		JConnect.ConsoleCompletor completor = new JConnect.ConsoleCompletor(jconnect);
+		try {
+			Terminal terminal = TerminalBuilder.terminal();
+			jconnect.terminal = terminal;
+			LineReaderImpl consoleReader = (LineReaderImpl) LineReaderBuilder.builder().terminal(terminal)
+					.option(LineReader.Option.CASE_INSENSITIVE, true).build();
+			consoleReader.setCompleter(completor);
+			if(jconnect.historyFile != null) {
+				whistory = new DefaultHistory();
+				consoleReader.setVariable(LineReader.HISTORY_FILE, jconnect.historyFile);
+				consoleReader.setHistory(whistory);
+			}
+			// the commands run on workers: ctrl+c cancels the running command and keeps the console open
+			Jobs jobs = new Jobs(jconnect, consoleReader::printAbove);
+			terminal.handle(Terminal.Signal.INT, signal -> jobs.cancelForeground());
+
+			System.out.println("Welcome to JConnect console. Type help to get started.");
+
+			while (true) {
+				String line;
+				try {
+					line = consoleReader.readLine(COMMAND_PROMPT).trim();
+				}
+				catch(UserInterruptException e) { // ctrl+c on the prompt clears the line
+					continue;
+				}
+				catch(EndOfFileException e) { // ctrl+d
+					break;
+				}
+
+				String[] cmd = line.split("\\s+");
+				if("exit".equals(cmd[0]) || "quit".equals(cmd[0]))
+					break;
+				if("jobs".equals(cmd[0])) {
+					jobs.list();
+				}
+				else if("kill".equals(cmd[0]) && cmd.length == 2) {
+					if(!jobs.kill(cmd[1]))
+						System.err.println("No job "+cmd[1]);
+				}
+				else if(line.endsWith("&")) {
+					String command = line.substring(0, line.length()-1).trim();
+					if(!command.isEmpty())
+						jobs.submit(command, command.split("\\s+"));
+				}
+				else {
+					jconnect.setExitCode(jobs.runForeground(line, cmd));
+				}
+			}
+			jobs.close();
+			jconnect.setExitCode(0);
+			return jconnect.getExitCode();
+		}
+		finally {
+			completor.close();
+			try {
+				if(whistory != null)
+					whistory.save();
+			}
+			catch (IOException e) {
+				logger.error("faile to save history.", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,230 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.lang.reflect.Array;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.management.Descriptor;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.ArrayType;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Registry of the converters of the command line arguments to the types of the JMX operations and attributes.<br>
+ * The converters are resolved once per type and kept in the dispatch tables so that a call does not pay any lookup.
+ * Supported out of the box:
+ * <ul>
+ * <li>primitive types, their wrappers, String, BigDecimal, BigInteger, ObjectName. The booleans are true or false in
+ * any case and the characters exactly one character: unlike the former lenient parsing, "yes" or "ab" are rejected
+ * instead of becoming false or 'a'</li>
+ * <li>Date: epoch milliseconds, ISO-8601 instant (2020-01-31T10:00:00Z) or date (2020-01-31, UTC)</li>
+ * <li>enums available on the classpath of JConnect, by constant name</li>
+ * <li>arrays of the supported types: comma separated elements</li>
+ * <li>CompositeData with an openType descriptor (MXBeans): comma separated key=value items</li>
+ * </ul>
+ * Other types can be supported by {@link #register(String, Converter)}.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Converters {
+
+	/**
+	 * Convert a command line argument to a JMX type.
+	 */
+	@FunctionalInterface
+	public interface Converter {
+		/**
+		 * @param value the argument as typed
+		 * @return the converted value
+		 * @throws IllegalArgumentException if the argument cannot be converted
+		 */
+		Object convert(String value);
+	}
+
+	private static final Map<String, Converter> registry = new ConcurrentHashMap<>();
+
+	static {
+		register(Integer::valueOf, "int", "java.lang.Integer");
+		register(Long::valueOf, "long", "java.lang.Long");
+		register(Double::valueOf, "double", "java.lang.Double");
+		register(Float::valueOf, "float", "java.lang.Float");
+		register(Converters::toBoolean, "boolean", "java.lang.Boolean");
+		register(Byte::valueOf, "byte", "java.lang.Byte");
+		register(Short::valueOf, "short", "java.lang.Short");
+		register(Converters::toCharacter, "char", "java.lang.Character");
+		register(value -> value, "java.lang.String", "java.lang.Object");
+		register(BigDecimal::new, "java.math.BigDecimal");
+		register(BigInteger::new, "java.math.BigInteger");
+		register(Converters::toObjectName, "javax.management.ObjectName");
+		register(Converters::toDate, "java.util.Date");
+	}
+
+	/**
+	 * Register the converter of a type, replacing the existing one if any.
+	 * @param type the class name of the type as found in the MBeanInfo (int, java.lang.String, [J...)
+	 * @param converter the converter
+	 */
+	public static void register(String type, Converter converter) {
+		registry.put(type, converter);
+	}
+
+	private static void register(Converter converter, String... types) {
+		for(String type : types)
+			registry.put(type, converter);
+	}
+
+	/**
+	 * Resolve the converter of a type.
+	 * @param type the class name of the type as found in the MBeanInfo
+	 * @return the converter, null if the type is not supported
+	 */
+	public static Converter forType(String type) {
+		Converter converter = registry.get(type);
+		if(converter != null)
+			return converter;
+
+		// arrays and enums are resolved from the class of the type, when it is available locally
+		Class<?> clazz;
+		try {
+			clazz = Class.forName(type, false, Converters.class.getClassLoader());
+		}
+		catch(ClassNotFoundException | LinkageError e) {
+			return null;
+		}
+
+		if(clazz.isArray()) {
+			Class<?> component = clazz.getComponentType();
+			Converter element = forType(component.getName());
+			if(element == null)
+				return null;
+			converter = value -> toArray(value, component, element);
+		}
+		else if(clazz.isEnum()) {
+			converter = value -> toEnum(value, clazz);
+		}
+		else {
+			return null;
+		}
+
+		registry.putIfAbsent(type, converter);
+		return converter;
+	}
+
+	/**
+	 * Resolve the converter of a parameter or an attribute, using its open type for the CompositeData.
+	 * @param type the class name of the type as found in the MBeanInfo
+	 * @param descriptor the descriptor of the parameter or attribute, may be null
+	 * @return the converter, null if the type is not supported
+	 */
+	public static Converter forFeature(String type, Descriptor descriptor) {
+		Object openType = descriptor != null ? descriptor.getFieldValue("openType") : null;
+		if(openType instanceof CompositeType)
+			return value -> toCompositeData(value, (CompositeType) openType);
+		if(openType instanceof ArrayType && ((ArrayType<?>) openType).getElementOpenType() instanceof CompositeType)
+			return null; // the items and the elements would both be comma separated
+		return forType(type);
+	}
+
+	private static Object toBoolean(String value) {
+		if("true".equalsIgnoreCase(value))
+			return Boolean.TRUE;
+		if("false".equalsIgnoreCase(value))
+			return Boolean.FALSE;
+		throw new IllegalArgumentException("Invalid boolean "+value+", expected true or false");
+	}
+
+	private static Object toCharacter(String value) {
+		if(value.length() != 1)
+			throw new IllegalArgumentException("Invalid character "+value+", expected a single character");
+		return value.charAt(0);
+	}
+
+	private static Object toObjectName(String value) {
+		try {
+			return new ObjectName(value);
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalArgumentException("Invalid ObjectName "+value+": "+e.getMessage());
+		}
+	}
+
+	private static Object toDate(String value) {
+		if(StringUtils.isNumeric(value))
+			return new Date(Long.parseLong(value));
+		try {
+			if(value.length() == 10)
+				return Date.from(LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant());
+			return Date.from(Instant.parse(value));
+		}
+		catch(DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid date "+value+", expected epoch milliseconds or ISO-8601");
+		}
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private static Object toEnum(String value, Class clazz) {
+		return Enum.valueOf(clazz, value);
+	}
+
+	private static Object toArray(String value, Class<?> component, Converter element) {
+		String[] items = value.isEmpty() ? new String[0] : StringUtils.splitPreserveAllTokens(value, ',');
+		Object array = Array.newInstance(component, items.length);
+		for(int i = 0; i < items.length; i++)
+			Array.set(array, i, element.convert(items[i].trim()));
+		return array;
+	}
+
+	private static Object toCompositeData(String value, CompositeType type) {
+		Map<String, Object> items = new HashMap<>();
+		for(String key : type.keySet())
+			items.put(key, null);
+
+		for(String item : StringUtils.split(value, ',')) {
+			int eq = item.indexOf('=');
+			String key = eq > 0 ? item.substring(0, eq).trim() : null;
+			if(key == null || !type.containsKey(key))
+				throw new IllegalArgumentException("Invalid item "+item+", expected key=value with a key in "+type.keySet());
+
+			OpenType<?> itemType = type.getType(key);
+			Converter converter = forType(itemType.getClassName());
+			if(converter == null)
+				throw new IllegalArgumentException("Unsupported type "+itemType.getClassName()+" for the item "+key);
+			items.put(key, converter.convert(item.substring(eq+1).trim()));
+		}
+
+		try {
+			return new CompositeDataSupport(type, items);
+		}
+		catch(OpenDataException e) {
+			throw new IllegalArgumentException("Invalid "+type.getTypeName()+": "+e.getMessage());
+		}
+	}
+}
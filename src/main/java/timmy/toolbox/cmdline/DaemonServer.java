@@ -0,0 +1,386 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Daemon mode of JConnect.<br>
+ * The daemon keeps the JMX connection and the bean index open and executes the inline commands
+ * forwarded by the jconnect launcher on a loopback socket.<br>
+ * The port and a secret token are written in the daemon file (readable only by the owner)
+ * and the daemon stops itself after an idle timeout.<br>
+ * The statistics of the JMX requests are exposed by the MXBean {@value #STATS_NAME} in the JVM of the daemon.<br>
+ * <br>
+ * Protocol (one command per connection, UTF-8 lines):
+ * <pre>
+ * request:  token, number of arguments, then one argument per line
+ * response: "1 " + stdout line, "2 " + stderr line, and finally "X " + exit code
+ * </pre>
+ * The command of a client that disconnects, or whose output cannot be written anymore, is interrupted like a
+ * cancelled console job.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class DaemonServer {
+
+	/** name of the MXBean of the request statistics in the JVM of the daemon */
+	public static final String STATS_NAME = "timmy.toolbox.cmdline:type=RpcStats";
+
+	/** default idle timeout in seconds */
+	public static final long DEFAULT_IDLE_TIMEOUT = 600;
+
+	/** time given to a client to send its command, in milliseconds */
+	static final int REQUEST_TIMEOUT = 10000;
+
+	/** maximum number of arguments of a forwarded command */
+	static final int MAX_ARGUMENTS = 4096;
+
+	final JConnect jconnect;
+	final Logger logger;
+	final File daemonFile;
+	final long idleTimeoutMillis;
+	final String token;
+	final ExecutorService workers;
+	final AtomicInteger active = new AtomicInteger();
+	private volatile long lastActivity;
+
+	/**
+	 * Create a daemon.
+	 * @param jconnect the connected JConnect used to execute the commands
+	 * @param daemonFile the file where the port and the token are published
+	 * @param idleTimeout the idle timeout in seconds
+	 */
+	public DaemonServer(JConnect jconnect, File daemonFile, long idleTimeout) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.daemonFile = daemonFile;
+		this.idleTimeoutMillis = idleTimeout * 1000;
+
+		byte[] secret = new byte[16];
+		new SecureRandom().nextBytes(secret);
+		StringBuilder builder = new StringBuilder();
+		for(byte b : secret)
+			builder.append(String.format("%02x", b));
+		this.token = builder.toString();
+		AtomicInteger count = new AtomicInteger();
+		this.workers = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "jconnect-daemon-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Serve the forwarded commands until the idle timeout expires.
+	 * @return the exit code of the daemon
+	 */
+	public int run() {
+		ObjectName statsName = registerStats();
+		try (ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+			publish(server.getLocalPort());
+			System.out.println("JConnect daemon listening on "+server.getLocalSocketAddress()+", idle timeout "+(idleTimeoutMillis/1000)+"s");
+
+			lastActivity = System.currentTimeMillis();
+			while(true) {
+				// the daemon is not idle while a command is running
+				long remaining = active.get() > 0 ? idleTimeoutMillis : lastActivity + idleTimeoutMillis - System.currentTimeMillis();
+				if(remaining <= 0)
+					break;
+
+				server.setSoTimeout((int) Math.min(remaining, Integer.MAX_VALUE));
+				Socket socket;
+				try {
+					socket = server.accept();
+				}
+				catch(SocketTimeoutException e) {
+					continue;
+				}
+				catch(IOException e) {
+					logger.warn("Failed to accept a forwarded command.", e);
+					continue;
+				}
+
+				// each client runs on its own worker: a long running command does not block the others
+				active.incrementAndGet();
+				lastActivity = System.currentTimeMillis();
+				workers.execute(() -> {
+					try (Socket client = socket) {
+						serve(client);
+					}
+					catch(IOException | RuntimeException e) {
+						logger.warn("Failed to serve a forwarded command.", e);
+					}
+					finally {
+						lastActivity = System.currentTimeMillis();
+						active.decrementAndGet();
+					}
+				});
+			}
+
+			logger.info("JConnect daemon idle for {}s, stopping.", idleTimeoutMillis/1000);
+			return 0;
+		}
+		catch(IOException e) {
+			logger.error("Daemon failure.", e);
+			System.err.println("Daemon failure: "+e.getMessage());
+			return 1;
+		}
+		finally {
+			workers.shutdownNow();
+			daemonFile.delete();
+			unregisterStats(statsName);
+		}
+	}
+
+	/**
+	 * Expose the statistics of the JMX requests of the daemon in its own JVM.
+	 * @return the name of the registered MXBean, null if it cannot be registered
+	 */
+	private ObjectName registerStats() {
+		try {
+			ObjectName name = new ObjectName(STATS_NAME);
+			ManagementFactory.getPlatformMBeanServer().registerMBean(jconnect.getStats(), name);
+			return name;
+		}
+		catch(JMException e) {
+			logger.warn("Cannot register the request statistics MXBean.", e);
+			return null;
+		}
+	}
+
+	private void unregisterStats(ObjectName name) {
+		if(name == null)
+			return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		}
+		catch(JMException e) {
+			logger.debug("Cannot unregister the request statistics MXBean.", e);
+		}
+	}
+
+	private void publish(int port) throws IOException {
+		File dir = daemonFile.getAbsoluteFile().getParentFile();
+		if(dir != null)
+			dir.mkdirs();
+
+		// create the file with owner only permissions before writing the token
+		daemonFile.delete();
+		try {
+			Files.createFile(daemonFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		catch(UnsupportedOperationException e) {
+			Files.createFile(daemonFile.toPath());
+		}
+		// the launcher forwards a command only if it targets the same JMX server with the options of a command without
+		// options (domain, output format and timing), from the same working directory where the relative file
+		// arguments are resolved
+		String line = port+" "+token+" "+jconnect.jmxUrl+" "+jconnect.jmxDomain+" "+jconnect.output.name().toLowerCase()+" "+jconnect.timing
+				+" "+new File("").getAbsolutePath()+"\n";
+		Files.write(daemonFile.toPath(), line.getBytes(StandardCharsets.UTF_8));
+		daemonFile.deleteOnExit();
+	}
+
+	private void serve(Socket socket) throws IOException {
+		// a client that stalls while sending its command is dropped
+		socket.setSoTimeout(REQUEST_TIMEOUT);
+		BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+		OutputStream out = socket.getOutputStream();
+
+		if(!token.equals(reader.readLine())) {
+			logger.warn("Rejected a forwarded command with an invalid token.");
+			return;
+		}
+
+		int count;
+		try {
+			count = Integer.parseInt(reader.readLine());
+		}
+		catch(NumberFormatException e) {
+			count = -1;
+		}
+		if(count < 0 || count > MAX_ARGUMENTS) {
+			logger.warn("Rejected a malformed forwarded command.");
+			return;
+		}
+		String[] cmd = new String[count];
+		for(int i = 0; i < cmd.length; i++) {
+			cmd[i] = reader.readLine();
+			if(cmd[i] == null) {
+				logger.warn("Rejected a truncated forwarded command.");
+				return;
+			}
+		}
+		socket.setSoTimeout(0);
+
+		int code = execute(cmd, reader, out);
+		out.write(("X "+code+"\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * Execute a command with the System.out and System.err of the current thread redirected to the socket.
+	 */
+	private int execute(String[] cmd, BufferedReader reader, OutputStream out) throws IOException {
+		if(cmd.length == 0 || "exit".equals(cmd[0]) || "quit".equals(cmd[0]))
+			return 0;
+
+		Client client = new Client(Thread.currentThread());
+		FramedOutputStream framedOut = new FramedOutputStream(out, '1', client);
+		FramedOutputStream framedErr = new FramedOutputStream(out, '2', client);
+		client.output = CommandOutput.redirect(framedOut, framedErr);
+		client.output.attach();
+		// the client sends nothing after its command: the end of its stream is its disconnection
+		workers.execute(() -> {
+			try {
+				while(reader.read() >= 0)
+					continue;
+			}
+			catch(IOException e) {
+				// closed by the client or by the end of the command
+			}
+			client.cancel();
+		});
+		try {
+			logger.debug("Forwarded command {}", Arrays.toString(cmd));
+			jconnect.executeCommand(cmd);
+			return jconnect.getExitCode();
+		}
+		catch(IOException e) {
+			// the connection has been reopened but the command has not been retried
+			logger.warn("Command interrupted by a connection failure.", e);
+			System.err.println(e.getMessage());
+			return 1;
+		}
+		finally {
+			client.end();
+			CommandOutput.end();
+			framedOut.close();
+			framedErr.close();
+		}
+	}
+
+	/**
+	 * The thread executing the command of a client, interrupted when the client is gone.
+	 */
+	class Client {
+		final Thread thread;
+		CommandOutput output;
+		private boolean running = true;
+
+		Client(Thread thread) {
+			this.thread = thread;
+		}
+
+		synchronized void cancel() {
+			if(!running)
+				return;
+			running = false;
+			logger.info("Client disconnected, forwarded command cancelled.");
+			output.discard();
+			thread.interrupt();
+		}
+
+		synchronized void end() {
+			running = false;
+			// a cancellation racing with the end of the command does not leak to the next client of the worker
+			Thread.interrupted();
+		}
+	}
+
+	/**
+	 * Prefix each line written to the stream by the channel identifier.<br>
+	 * A trailing incomplete line is terminated on close.
+	 */
+	static class FramedOutputStream extends OutputStream {
+		final OutputStream out;
+		final byte channel;
+		final Client client;
+		byte[] line = new byte[256];
+		int length = 0;
+
+		FramedOutputStream(OutputStream out, char channel, Client client) {
+			this.out = out;
+			this.channel = (byte) channel;
+			this.client = client;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if(b == '\n') {
+				frame();
+				return;
+			}
+			if(length == line.length)
+				line = Arrays.copyOf(line, length*2);
+			line[length++] = (byte) b;
+		}
+
+		private void frame() throws IOException {
+			try {
+				synchronized (out) {
+					out.write(channel);
+					out.write(' ');
+					out.write(line, 0, length);
+					out.write('\n');
+				}
+			}
+			catch(IOException e) {
+				// the client is gone
+				client.cancel();
+				throw e;
+			}
+			finally {
+				length = 0;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if(length > 0)
+				frame();
+			out.flush();
+		}
+	}
+}
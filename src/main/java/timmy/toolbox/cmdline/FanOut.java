@@ -0,0 +1,361 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MalformedObjectNameException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fan-out mode of JConnect.<br>
+ * Execute one command on many JMX servers in parallel. Each target has its own connection and
+ * each line of output of a target is printed, prefixed by the target, as soon as it is written.
+ * A summary of the failures and of the latency of each target is printed on stderr at the end.<br>
+ * Slow or dead targets are bounded by the connection timeout and by the RPC timeout of each request, and never block
+ * the others. A target still not connected after both timeouts is abandoned, a connected target runs its command to
+ * the end whatever its number of requests.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class FanOut {
+
+	/** default connection timeout in milliseconds */
+	public static final long DEFAULT_CONNECT_TIMEOUT = 5000;
+	/** default RPC timeout in milliseconds */
+	public static final long DEFAULT_RPC_TIMEOUT = 30000;
+	/** default number of targets processed concurrently */
+	public static final int DEFAULT_PARALLELISM = 32;
+
+	final JConnect parent;
+	final Logger logger;
+	final List<String> targets;
+	final int parallelism;
+	final long connectTimeout;
+	final long rpcTimeout;
+
+	/**
+	 * The result of the command on one target.
+	 */
+	static class TargetResult {
+		final String target;
+		volatile long started = 0;
+		// guarded by this: the worker of an abandoned target may still be running
+		String status = "TIMEOUT";
+		int code = 1;
+		long connectMillis = -1;
+		long commandMillis = -1;
+		String error = null;
+		boolean finished = false;
+		boolean abandoned = false;
+
+		TargetResult(String target) {
+			this.target = target;
+		}
+
+		/**
+		 * Record the connection of the worker.
+		 * @return false if the target has been abandoned meanwhile
+		 */
+		synchronized boolean connected(long millis) {
+			if(abandoned)
+				return false;
+			this.connectMillis = millis;
+			return true;
+		}
+
+		/**
+		 * Record the result of the worker, ignored if the target has been abandoned.
+		 */
+		synchronized void finish(String status, int code, String error, long commandMillis) {
+			if(abandoned)
+				return;
+			this.status = status;
+			this.code = code;
+			this.error = error;
+			if(commandMillis >= 0)
+				this.commandMillis = commandMillis;
+			finished = true;
+		}
+
+		/**
+		 * Give up a target that is still connecting: its result stays a timeout whatever its worker does next.
+		 * @return false if the worker had already connected or finished
+		 */
+		synchronized boolean abandon(long deadline) {
+			if(finished || connectMillis >= 0)
+				return false;
+			abandoned = true;
+			status = "TIMEOUT";
+			code = 1;
+			error = "not connected after "+deadline+"ms";
+			return true;
+		}
+	}
+
+	/**
+	 * Write each complete line to the original stream, prefixed by the target.<br>
+	 * A line is written at once, the lines of the targets are never mixed. A trailing incomplete line is terminated
+	 * on close.
+	 */
+	static class PrefixedOutputStream extends OutputStream {
+		final PrintStream out;
+		final int prefix;
+		/** the prefix followed by the current line */
+		byte[] line;
+		int length;
+
+		PrefixedOutputStream(PrintStream out, String prefix) {
+			this.out = out;
+			byte[] bytes = prefix.getBytes(StandardCharsets.UTF_8);
+			this.prefix = bytes.length;
+			this.line = Arrays.copyOf(bytes, bytes.length + 256);
+			this.length = bytes.length;
+		}
+
+		@Override
+		public void write(int b) {
+			if(length == line.length)
+				line = Arrays.copyOf(line, length*2);
+			line[length++] = (byte) b;
+			if(b == '\n') {
+				// a single write: the lines of stdout and stderr are not mixed either
+				synchronized (out) {
+					out.write(line, 0, length);
+					out.flush();
+				}
+				length = prefix;
+			}
+		}
+
+		@Override
+		public void close() {
+			if(length > prefix)
+				write('\n');
+		}
+	}
+
+	/**
+	 * @param parent the JConnect configured by the command line
+	 * @param targets the host[:port] targets
+	 * @param parallelism the maximum number of targets processed concurrently, 0 for the default
+	 * @param connectTimeout the connection timeout of each target in milliseconds
+	 * @param rpcTimeout the RPC timeout of each target in milliseconds
+	 */
+	public FanOut(JConnect parent, List<String> targets, int parallelism, long connectTimeout, long rpcTimeout) {
+		this.parent = parent;
+		this.logger = parent.logger;
+		this.targets = targets;
+		this.parallelism = parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+		this.connectTimeout = connectTimeout;
+		this.rpcTimeout = rpcTimeout;
+	}
+
+	/**
+	 * Read a host group file: one host[:port] per line, empty lines and lines starting with # are ignored.
+	 * @param file the host group file
+	 * @return the targets of the file
+	 * @throws IOException if the file cannot be read
+	 */
+	public static List<String> readHostsFile(File file) throws IOException {
+		List<String> hosts = new ArrayList<>();
+		for(String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+			line = line.trim();
+			if(!line.isEmpty() && !line.startsWith("#"))
+				hosts.add(line);
+		}
+		return hosts;
+	}
+
+	/**
+	 * Execute the command on all the targets.
+	 * @param cmd the command to execute
+	 * @return 0 if the command succeeded on all the targets, the greatest exit code otherwise
+	 */
+	public int run(String[] cmd) {
+		if(cmd.length == 0) {
+			System.err.println("A command is required with --hosts or --hosts-file");
+			return 2;
+		}
+		if(targets.isEmpty()) {
+			System.err.println("No target to connect to");
+			return 2;
+		}
+
+		// bound the connection and each request of every target
+		if(!TimeoutSocketFactory.install(connectTimeout, rpcTimeout))
+			logger.warn("An RMI socket factory is already installed, the timeouts are not enforced on the sockets.");
+		Map<String, Object> env = new HashMap<>();
+		env.put("jmx.remote.x.notification.fetch.timeout", rpcTimeout/2);
+		parent.connectorEnv = env;
+
+		CommandOutput.install();
+		ExecutorService executor = Workers.newBoundedExecutor(Math.min(parallelism, targets.size()), "jconnect-target");
+		CompletionService<TargetResult> completion = new ExecutorCompletionService<>(executor);
+		Map<Future<TargetResult>, TargetResult> running = new LinkedHashMap<>();
+		List<TargetResult> results = new ArrayList<>();
+		for(String target : targets) {
+			TargetResult result = new TargetResult(target);
+			results.add(result);
+			running.put(completion.submit(() -> execute(result, cmd)), result);
+		}
+
+		// the requests are bounded by the socket timeouts, only a connection stuck despite them is abandoned
+		long deadline = connectTimeout + rpcTimeout;
+		try {
+			while(!running.isEmpty()) {
+				Future<TargetResult> done = completion.poll(100, TimeUnit.MILLISECONDS);
+				if(done != null) {
+					running.remove(done);
+					continue;
+				}
+
+				long now = System.currentTimeMillis();
+				for(Iterator<Map.Entry<Future<TargetResult>, TargetResult>> it = running.entrySet().iterator(); it.hasNext();) {
+					Map.Entry<Future<TargetResult>, TargetResult> entry = it.next();
+					long started = entry.getValue().started;
+					if(started != 0 && now - started > deadline && entry.getValue().abandon(deadline)) {
+						entry.getKey().cancel(true);
+						it.remove();
+					}
+				}
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			executor.shutdownNow();
+		}
+
+		return summarize(results);
+	}
+
+	private TargetResult execute(TargetResult result, String[] cmd) {
+		result.started = System.currentTimeMillis();
+		String host = result.target;
+		String port = parent.jmxport;
+		int colon = host.lastIndexOf(':');
+		if(colon > 0 && colon > host.lastIndexOf(']')) {
+			port = host.substring(colon+1);
+			host = host.substring(0, colon);
+		}
+		if(port == null) {
+			result.finish("INVALID", 1, "no port", -1);
+			return result;
+		}
+
+		JConnect target = new JConnect(parent, host, port);
+		try {
+			long start = System.nanoTime();
+			try {
+				target.connect();
+			}
+			catch(IOException | MalformedObjectNameException | RuntimeException e) {
+				logger.warn("Cannot connect to "+result.target+".", e);
+				result.finish("UNREACHABLE", 1, StringUtils.normalizeSpace(e.toString()), -1);
+				return result;
+			}
+
+			// the lines of the target are printed as they are written
+			PrefixedOutputStream out = new PrefixedOutputStream(CommandOutput.original(false), result.target+"| ");
+			PrefixedOutputStream err = new PrefixedOutputStream(CommandOutput.original(true), result.target+"| ");
+			CommandOutput output = CommandOutput.redirect(out, err);
+			if(!result.connected(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)))
+				return result;
+			output.attach();
+
+			start = System.nanoTime();
+			String status = "ERROR";
+			int code = 5;
+			String error = null;
+			try {
+				target.executeCommand(cmd);
+				code = target.getExitCode();
+				status = code == 0 ? "OK" : "FAILED";
+			}
+			catch(IOException e) {
+				logger.warn("Disconnected from "+result.target+".", e);
+				code = 1;
+				status = "DISCONNECTED";
+				error = StringUtils.normalizeSpace(e.toString());
+			}
+			catch(RuntimeException e) {
+				logger.warn("Unexpected failure on "+result.target+".", e);
+				error = StringUtils.normalizeSpace(e.toString());
+			}
+			finally {
+				CommandOutput.end();
+				out.close();
+				err.close();
+				result.finish(status, code, error, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+			}
+			return result;
+		}
+		finally {
+			// also reached when the connection fails half way
+			try {
+				target.close();
+			}
+			catch(IOException | RuntimeException e) {
+				logger.debug("Failed to close the connection to "+result.target+".", e);
+			}
+		}
+	}
+
+	private int summarize(List<TargetResult> results) {
+		int code = 0;
+		int failures = 0;
+		int width = 0;
+		for(TargetResult result : results)
+			width = Math.max(width, result.target.length());
+
+		System.err.println("--- "+results.size()+" targets");
+		for(TargetResult result : results) {
+			synchronized (result) {
+				if(result.code != 0) {
+					failures++;
+					code = Math.max(code, result.code);
+				}
+				System.err.println(String.format("%-"+width+"s  %-12s code=%d connect=%s command=%s%s",
+						result.target, result.status, result.code,
+						result.connectMillis < 0 ? "-" : result.connectMillis+"ms",
+						result.commandMillis < 0 ? "-" : result.commandMillis+"ms",
+						result.error == null ? "" : "  "+result.error));
+			}
+		}
+		System.err.println("--- "+failures+" of "+results.size()+" targets failed");
+		return code;
+	}
+}
@@ -13,19 +13,28 @@
  */
 package timmy.toolbox.cmdline;
 
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.BindException;
+import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.Timer;
-import java.util.TimerTask;
-import java.util.TreeSet;
+import java.util.Set;
 
 import javax.management.Attribute;
+import javax.management.AttributeList;
 import javax.management.AttributeNotFoundException;
 import javax.management.InstanceNotFoundException;
 import javax.management.IntrospectionException;
@@ -34,7 +43,6 @@ import javax.management.MBeanAttributeInfo;
 import javax.management.MBeanException;
 import javax.management.MBeanInfo;
 import javax.management.MBeanOperationInfo;
-import javax.management.MBeanParameterInfo;
 import javax.management.MBeanServerConnection;
 import javax.management.MalformedObjectNameException;
 import javax.management.Notification;
@@ -42,14 +50,15 @@ import javax.management.NotificationListener;
 import javax.management.ObjectName;
 import javax.management.ReflectionException;
 import javax.management.RuntimeMBeanException;
+import javax.management.remote.JMXConnectionNotification;
 import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
-import javax.management.remote.JMXServiceURL;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.DefaultParser;
 import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.OptionGroup;
 import org.apache.commons.cli.Options;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -58,14 +67,9 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.jline.reader.Candidate;
 import org.jline.reader.Completer;
-import org.jline.reader.EndOfFileException;
 import org.jline.reader.LineReader;
-import org.jline.reader.LineReaderBuilder;
 import org.jline.reader.ParsedLine;
-import org.jline.reader.UserInterruptException;
-import org.jline.reader.impl.LineReaderImpl;
-import org.jline.reader.impl.history.DefaultHistory;
-import org.jline.terminal.TerminalBuilder;
+import org.jline.terminal.Terminal;
 
 /**
  * JConnect: A very simple Command Line JMX Client using jline3 for the command line autocompletion. * 
@@ -75,12 +79,12 @@ import org.jline.terminal.TerminalBuilder;
  */
 public class JConnect implements NotificationListener {
 
-	private static final String COMMAND_PROMPT = "$> ";
 
-	private static String JMX_URL;
-	private JMXConnector jmxc = null;
+	String jmxUrl;
+	Map<String, Object> connectorEnv = null;
+	private ConnectionManager connection = null;
 	private MBeanServerConnection mbsc = null;
-	Timer timer = null;
+	private BeanIndex index = null;
 	Logger logger = LogManager.getLogger("jconnect");
 	
 	// properties
@@ -90,13 +94,37 @@ public class JConnect implements NotificationListener {
 	String jmxhost = "localhost";
 	String jmxport = null;
 	String jmxDomain = "*";
+	String daemonFile = System.getProperty("user.home")+File.separator+".jconnect"+File.separator+"daemon";
+	boolean daemon = false;
+	long idleTimeout = DaemonServer.DEFAULT_IDLE_TIMEOUT;
+	String batchFile = null;
+	boolean failFast = false;
+	int inFlight = 0;
+	List<String> hosts = null;
+	long connectTimeout = FanOut.DEFAULT_CONNECT_TIMEOUT;
+	long rpcTimeout = FanOut.DEFAULT_RPC_TIMEOUT;
+	/** read timeout of each JMX request of a single target in milliseconds, 0 for none */
+	long callTimeout = 0;
+	/** false for the JConnect instances of a fan-out, a lost target must not stop the program */
+	boolean exitOnDisconnect = true;
+	long heartbeat = ConnectionManager.DEFAULT_HEARTBEAT;
+	long reconnectTimeout = ConnectionManager.DEFAULT_RECONNECT_TIMEOUT;
+	ResultWriter.Format output = ResultWriter.Format.TEXT;
+	String attachPid = null;
+	String attachName = null;
+	boolean listJvms = false;
+	boolean timing = false;
+	/** terminal of the console, null outside of the console */
+	Terminal terminal = null;
 	
-	/** status code of the program */
-	int exitCode = 0;
+	/** status code of the last command, kept per thread so that commands may run concurrently */
+	private final ThreadLocal<Integer> exitCode = ThreadLocal.withInitial(() -> 0);
 
 	/**
 	 * The jline3 Completer implementation for JConnect.<br>
-	 * This does the completion of the commands when users press tab.
+	 * This does the completion of the commands when users press tab.<br>
+	 * The completion never waits for the JMX server: the candidates come from the {@link CompletionIndex}
+	 * and a bean whose informations are still loading is reported as such.
 	 * 
 	 */
 	public static class ConsoleCompletor implements Completer {
@@ -104,74 +132,70 @@ public class JConnect implements NotificationListener {
 		final JConnect jconnect;
 		final Logger logger;
 		final String jmxDomain;
+		final CompletionIndex index;
 
 		public ConsoleCompletor(JConnect jconnect) {
 			this.jconnect = jconnect;
 			this.logger = jconnect.logger;
 			this.jmxDomain=jconnect.jmxDomain;
+			this.index = new CompletionIndex(jconnect.getIndex(), logger);
+			this.index.start();
 		}
 
 		@Override
 		public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
-			try
-			{
-				String buffer = line.line();
-				if (StringUtils.isEmpty(buffer) || buffer.indexOf(' ') == -1) {
-					completeCommandName(buffer, candidates);
-				}
-				else {
-					completeOperationsForBean(line, candidates);
-				}
+			if (line.wordIndex() == 0) {
+				completeCommandName(line.word().substring(0, line.wordCursor()), candidates);
 			}
-			catch(IOException e) {
-				logger.error("IOException on completion.", e);
-				System.err.println(System.lineSeparator()+"Disconnected from "+JMX_URL+"! "+System.lineSeparator()+e.toString());
-				System.exit(1);
+			else {
+				completeOperationsForBean(line, candidates);
 			}
 		}
 
-		private void completeOperationsForBean(ParsedLine line, List<Candidate> candidates) throws IOException {
-			try {
-				MBeanInfo infos = jconnect.getBean(line.words().get(0));
-				if(infos == null)
-					return;
+		private void completeOperationsForBean(ParsedLine line, List<Candidate> candidates) {
+			String word = line.word().substring(0, line.wordCursor());
+			CompletionIndex.Members members = index.members(line.words().get(0));
+			if(members == null) {
+				// not loaded yet, the bean has been queued in priority
+				if(jconnect.getIndex().getName(line.words().get(0)) != null)
+					candidates.add(new Candidate(word, "(loading bean information...)", null, null, null, null, false));
+				return;
+			}
 
-				if(line.words().size() == 3 && (line.words().get(1).equals("set") || line.words().get(1).equals("get"))) {
-					for(MBeanAttributeInfo attr : infos.getAttributes()) {
-						Candidate candidate = new Candidate(attr.getName());
-						candidates.add(candidate);
-					}
+			if(line.wordIndex() == 2 && (line.words().get(1).equals("set") || line.words().get(1).equals("get"))) {
+				// get accepts a comma separated list of attributes
+				int comma = line.words().get(1).equals("get") ? word.lastIndexOf(',') : -1;
+				String head = word.substring(0, comma+1);
+				for(String attr : members.attributes(word.substring(comma+1))) {
+					candidates.add(new Candidate(head+attr, attr, null, null, null, null, true));
 				}
-				else if(line.words().size() <= 2) {
-					for(MBeanOperationInfo operation : infos.getOperations()) {
-						Candidate candidate = new Candidate(operation.getName());
-						candidates.add(candidate);
-					}
-
-					candidates.add(new Candidate("set"));
-					candidates.add(new Candidate("get"));
-					candidates.add(new Candidate("operations"));
-					candidates.add(new Candidate("attributes"));
+			}
+			else if(line.wordIndex() == 1) {
+				for(String operation : members.operations(word)) {
+					candidates.add(new Candidate(operation));
 				}
 
-			} catch (MalformedObjectNameException | InstanceNotFoundException | IntrospectionException | ReflectionException e) {
-				logger.error("Exception on completeOperationsForBean.", e);
+				candidates.add(new Candidate("set"));
+				candidates.add(new Candidate("get"));
+				candidates.add(new Candidate("operations"));
+				candidates.add(new Candidate("attributes"));
 			}
 		}
 
-		private void completeCommandName(String buf, List<Candidate> candidates) throws IOException {
-
-			try {
-				for(String name : jconnect.getBeans().keySet()) {
-					Candidate candidate = new Candidate(name);
-					candidates.add(candidate);
-				}
-			}
-			catch (MalformedObjectNameException e) {
-				logger.error("Exception on completeCommandName.", e);
+		private void completeCommandName(String buf, List<Candidate> candidates) {
+			for(String name : index.beans(StringUtils.defaultString(buf))) {
+				Candidate candidate = new Candidate(name);
+				candidates.add(candidate);
 			}
 		}
 
+		/**
+		 * Stop the background loading of the bean informations.
+		 */
+		public void close() {
+			index.stop();
+		}
+
 	}
 	
 	/**
@@ -188,6 +212,7 @@ public class JConnect implements NotificationListener {
 			jmxDomain = getEnv("JMXDOMAIN", jmxDomain);
 			
 			historyFile = getEnv("JCONNECTHISTORY", historyFile);
+			daemonFile = getEnv("JCONNECTDAEMON", daemonFile);
 			
 			// load from properties file (if available)
 			propertiesFile = getEnv("JCONNECTPROPERTIES", propertiesFile);
@@ -198,7 +223,12 @@ public class JConnect implements NotificationListener {
 				jmxport   = props.getProperty("jmxport",   jmxport);
 				jmxDomain = props.getProperty("jmxdomain", jmxDomain);
 				historyFile = props.getProperty("jconnect.history", historyFile);
+				daemonFile = props.getProperty("jconnect.daemon", daemonFile);
 			}
+			// a relative history file stays in the installation directory, whatever the working directory
+			String home = System.getProperty("jconnect.home");
+			if(home != null && historyFile != null && !new File(historyFile).isAbsolute())
+				historyFile = new File(home, historyFile).getPath();
 			
 			// load from command line arguments
 			Options options = new Options();
@@ -206,6 +236,28 @@ public class JConnect implements NotificationListener {
 			options.addOption("h",    "host",   true,  "hostname or ip of the JMX server");
 			options.addOption("p",    "port",   true,  "port of the JMX server");
 			options.addOption("d",    "domain", true,  "JMX domain. * by default.");
+			options.addOption(null,   "daemon", false, "keep the connection open and serve the inline commands forwarded by the jconnect launcher");
+			options.addOption(null,   "idle-timeout", true, "idle timeout of the daemon in seconds. "+DaemonServer.DEFAULT_IDLE_TIMEOUT+" by default.");
+			options.addOption("f",    "file",   true,  "execute the commands of a file, one per line. Use - to read them from stdin.");
+			OptionGroup failurePolicy = new OptionGroup();
+			failurePolicy.addOption(new Option(null, "fail-fast", false, "stop the batch on the first failed command"));
+			failurePolicy.addOption(new Option(null, "continue",  false, "execute all the commands of the batch (default)"));
+			options.addOptionGroup(failurePolicy);
+			options.addOption(null,   "parallel", true,  "maximum number of batch commands or targets processed concurrently. The batch lines starting with the same bean run in order, the others must be independent. 1 for batches and "+FanOut.DEFAULT_PARALLELISM+" for targets by default.");
+			OptionGroup localJvm = new OptionGroup();
+			localJvm.addOption(new Option(null, "pid",  true, "process id of a local JVM to attach to, no remote JMX port is needed"));
+			localJvm.addOption(new Option(null, "name", true, "main class or jar of a local JVM to attach to, no remote JMX port is needed"));
+			localJvm.addOption(new Option(null, "list-jvms", false, "list the local JVMs that can be attached and exit"));
+			options.addOptionGroup(localJvm);
+			options.addOption(null,   "hosts",  true,  "comma separated list of host[:port] targets. The command is executed on all of them in parallel.");
+			options.addOption(null,   "hosts-file", true, "file of host[:port] targets, one per line. The command is executed on all of them in parallel.");
+			options.addOption(null,   "connect-timeout", true, "connection timeout of each target in milliseconds. "+FanOut.DEFAULT_CONNECT_TIMEOUT+" by default.");
+			options.addOption(null,   "timeout", true,  "RPC timeout of each target in milliseconds. "+FanOut.DEFAULT_RPC_TIMEOUT+" by default.");
+			options.addOption(null,   "call-timeout", true, "timeout of each JMX request in milliseconds, 0 to wait forever. 0 by default.");
+			options.addOption(null,   "heartbeat", true, "interval of the liveness probe of an idle connection in milliseconds, 0 to disable. "+ConnectionManager.DEFAULT_HEARTBEAT+" by default.");
+			options.addOption(null,   "timing", false, "print the number of JMX requests and the time spent by each command on stderr");
+			options.addOption("o",    "output", true,  "output format of the results: text, json, ndjson or csv. text by default.");
+			options.addOption(null,   "reconnect-timeout", true, "time spent trying to reconnect a lost connection in milliseconds, 0 to disable. "+ConnectionManager.DEFAULT_RECONNECT_TIMEOUT+" by default.");
 			
 			CommandLineParser parser = new DefaultParser();
 			CommandLine cmd = parser.parse( options, args);
@@ -229,14 +281,66 @@ public class JConnect implements NotificationListener {
 				jmxDomain = cmd.getOptionValue('d');
 			}
 			
-			// check
-			if(jmxport == null)
+			daemon = cmd.hasOption("daemon");
+			if (cmd.hasOption("idle-timeout")) {
+				idleTimeout = Long.parseLong(cmd.getOptionValue("idle-timeout"));
+			}
+			
+			if (cmd.hasOption('f')) {
+				batchFile = cmd.getOptionValue('f');
+				if(!"-".equals(batchFile) && !new File(batchFile).canRead())
+					throw new IOException("Cannot read the batch file "+batchFile);
+			}
+			failFast = cmd.hasOption("fail-fast");
+			if (cmd.hasOption("parallel")) {
+				inFlight = Integer.parseInt(cmd.getOptionValue("parallel"));
+			}
+			
+			if (cmd.hasOption("hosts") || cmd.hasOption("hosts-file")) {
+				hosts = new ArrayList<>();
+				if (cmd.hasOption("hosts"))
+					hosts.addAll(Arrays.asList(StringUtils.split(cmd.getOptionValue("hosts"), ", ")));
+				if (cmd.hasOption("hosts-file"))
+					hosts.addAll(FanOut.readHostsFile(new File(cmd.getOptionValue("hosts-file"))));
+			}
+			if (cmd.hasOption("connect-timeout")) {
+				connectTimeout = Long.parseLong(cmd.getOptionValue("connect-timeout"));
+			}
+			if (cmd.hasOption("timeout")) {
+				rpcTimeout = Long.parseLong(cmd.getOptionValue("timeout"));
+			}
+			if (cmd.hasOption("call-timeout")) {
+				callTimeout = Long.parseLong(cmd.getOptionValue("call-timeout"));
+			}
+			if (cmd.hasOption("heartbeat")) {
+				heartbeat = Long.parseLong(cmd.getOptionValue("heartbeat"));
+			}
+			if (cmd.hasOption("reconnect-timeout")) {
+				reconnectTimeout = Long.parseLong(cmd.getOptionValue("reconnect-timeout"));
+			}
+			if (cmd.hasOption('o')) {
+				output = ResultWriter.Format.parse(cmd.getOptionValue('o'));
+			}
+			
+			attachPid = cmd.getOptionValue("pid");
+			attachName = cmd.getOptionValue("name");
+			listJvms = cmd.hasOption("list-jvms");
+			timing = cmd.hasOption("timing");
+			
+			// check (the targets of a fan-out may all define their own port, local JVMs are attached)
+			boolean local = attachPid != null || attachName != null || listJvms;
+			if(jmxport == null && hosts == null && !local)
 				throw new IOException("property jmxport not found!");
 			
-			// build JMX URL
-			JMX_URL = String.format("service:jmx:rmi:///jndi/rmi://%s:%s/jmxrmi", jmxhost, jmxport);
+			// build JMX URL, the one of a local JVM is only known once attached
+			if(attachPid != null)
+				jmxUrl = "local JVM "+attachPid;
+			else if(attachName != null)
+				jmxUrl = "local JVM "+attachName;
+			else
+				jmxUrl = String.format("service:jmx:rmi:///jndi/rmi://%s:%s/jmxrmi", jmxhost, jmxport);
 		}
-		catch(org.apache.commons.cli.ParseException e){
+		catch(org.apache.commons.cli.ParseException | IllegalArgumentException e){
 			System.err.println(e.getMessage());
 			System.exit(2);
 		}
@@ -247,35 +351,98 @@ public class JConnect implements NotificationListener {
 		}
 	}
 
+	/**
+	 * Create the JConnect of a fan-out target, sharing the configuration of its parent.
+	 * @param parent the JConnect configured by the command line
+	 * @param host the hostname or ip of the target
+	 * @param port the port of the target
+	 */
+	JConnect(JConnect parent, String host, String port) {
+		this.logger = parent.logger;
+		this.props = parent.props;
+		this.jmxhost = host;
+		this.jmxport = port;
+		this.jmxDomain = parent.jmxDomain;
+		this.connectorEnv = parent.connectorEnv;
+		this.output = parent.output;
+		this.timing = parent.timing;
+		this.exitOnDisconnect = false;
+		// a fan-out fails fast: no heartbeat and no reconnection
+		this.heartbeat = 0;
+		this.reconnectTimeout = 0;
+		this.jmxUrl = String.format("service:jmx:rmi:///jndi/rmi://%s:%s/jmxrmi", jmxhost, jmxport);
+	}
+
 	@Override
 	public void handleNotification(Notification notification, Object handback) {
-		logger.warn(notification);
-		System.err.println(System.lineSeparator()+"Disconnected from "+JMX_URL+"!");
+		if(JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType())) {
+			// some MBeanServerDelegate notifications may be lost: rebuild the bean index
+			logger.warn(notification);
+			try {
+				if(index != null)
+					index.build();
+			} catch (IOException e) {
+				logger.error("Failed to rebuild the bean index.", e);
+			}
+			return;
+		}
+	}
+
+	/**
+	 * Called by the connection manager when the connection is lost and cannot be reopened.
+	 * @param cause the last failure
+	 */
+	void disconnected(IOException cause) {
+		if(!exitOnDisconnect)
+			return;
+		System.err.println(System.lineSeparator()+"Disconnected from "+jmxUrl+"! "+System.lineSeparator()+cause.toString());
 		stop(1);
 	}
 	
 	/**
-	 * Get all the available beans.
-	 * @return a Map(Name, ObjectName) of the all the available beans. Never null but may be empty.
-	 * @throws MalformedObjectNameException in case of a JMX issue
-	 * @throws IOException in case of a JMX issue
+	 * Get all the available beans.<br>
+	 * The beans are read from the session index, no request is sent to the JMX server.
+	 * @return a sorted Map(Name, ObjectName) of the all the available beans. Never null but may be empty.
 	 */
-	public Map<String, ObjectName> getBeans() throws MalformedObjectNameException, IOException{
-		HashMap<String, ObjectName> beans = new HashMap<>();
-		
-		for (ObjectName name : new TreeSet<ObjectName>(mbsc.queryNames(new ObjectName(jmxDomain+":*"), null))) {
-			String wName = name.getKeyProperty("type");
-			if(wName == null)
-				wName = StringUtils.substringAfterLast(name.toString(), "=");
-			if(wName.isEmpty())
-				wName=name.toString();
-				
-			beans.put(wName, name);
-		}
-		
-		return beans;
+	public Map<String, ObjectName> getBeans() {
+		return index.getBeans();
 	}
 	
+	/**
+	 * @return the connection to the JMX server, null if not connected
+	 */
+	public MBeanServerConnection getConnection() {
+		return mbsc;
+	}
+
+	/**
+	 * @return the JMX connector, null if not connected
+	 */
+	public JMXConnector getConnector() {
+		return connection == null ? null : connection.getConnector();
+	}
+
+	/**
+	 * @return the manager of the JMX connection, null if not connected
+	 */
+	public ConnectionManager getConnectionManager() {
+		return connection;
+	}
+
+	/**
+	 * @return the session index of the beans, null if not connected
+	 */
+	public BeanIndex getIndex() {
+		return index;
+	}
+
+	/**
+	 * @return the statistics of the JMX requests, null if not connected
+	 */
+	public RpcStats getStats() {
+		return connection != null ? connection.getStats() : null;
+	}
+
 	/**
 	 * Get MBeanInfo of a bean.
 	 * @param name the name of the been we are looking for
@@ -284,14 +451,13 @@ public class JConnect implements NotificationListener {
 	 * @throws IntrospectionException in case of a JMX issue
 	 * @throws ReflectionException in case of a JMX issue
 	 * @throws IOException in case of a JMX issue
-	 * @throws MalformedObjectNameException in case of a JMX issue
 	 */
-	public MBeanInfo getBean(String name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException, MalformedObjectNameException {
-		ObjectName objName = getBeans().get(name);
+	public MBeanInfo getBean(String name) throws InstanceNotFoundException, IntrospectionException, ReflectionException, IOException {
+		ObjectName objName = index.getName(name);
 		if(objName == null)
 			return null;
 		else
-			return mbsc.getMBeanInfo(objName);
+			return index.getInfo(objName);
 	}
 	
 	/**
@@ -312,56 +478,158 @@ public class JConnect implements NotificationListener {
 		return builder.toString();
 	}
 	
+	/**
+	 * Convert an argument of the command line using the {@link Converters} registry.
+	 * @param value the argument
+	 * @param type the class name of the expected type
+	 * @return the converted value
+	 * @throws IllegalArgumentException if the type is not supported or the value cannot be converted
+	 */
 	public Object convert(String value, String type) {
-		Object wResult=null;
-		switch (type) {
-			case "int":
-			case "java.lang.Integer":
-				wResult = Integer.parseInt(value);
-				break;
-			case "double":
-			case "java.lang.Double":
-				wResult = Double.parseDouble(value);
-				break;
-	
-			case "float":
-			case "java.lang.Float":
-				wResult = Float.parseFloat(value);
-				break;
-	
-			case "boolean":
-			case "java.lang.Boolean":
-				wResult = Boolean.parseBoolean(value);
-				break;
-	
-			case "java.lang.String":
-				wResult = value;
-				break;
-	
-			case "long":
-			case "java.lang.Long":
-				wResult = Long.parseLong(value);
-				break;
-	
-			case "byte":
-			case "java.lang.Byte":
-				wResult = Byte.parseByte(value);
-				break;
-	
-			case "short":
-			case "java.lang.Short":
-				wResult = Short.parseShort(value);
-				break;
-	
-			case "char":
-			case "java.lang.Character":
-				wResult = new Character(value.charAt(0));
-				break;
-			default:
-				throw new IllegalArgumentException("Invalid non primitive data type "+type);
+		Converters.Converter converter = Converters.forType(type);
+		if(converter == null)
+			throw new IllegalArgumentException("Invalid non primitive data type "+type);
+		return converter.convert(value);
+	}
+
+	/**
+	 * The failure of a single attribute in a bulk read or write.
+	 */
+	public static class AttributeError {
+		private final Exception cause;
+
+		public AttributeError(Exception cause) {
+			this.cause = cause;
 		}
-		
-		return wResult;
+
+		public Exception getCause() {
+			return cause;
+		}
+
+		@Override
+		public String toString() {
+			return cause.toString();
+		}
+	}
+
+	/**
+	 * Find the description of an attribute in a MBeanInfo.
+	 * @param infos the MBeanInfo of the bean
+	 * @param attr the name of the attribute
+	 * @return null if the bean has no such attribute
+	 */
+	public static MBeanAttributeInfo findAttribute(MBeanInfo infos, String attr) {
+		for(MBeanAttributeInfo attrInfo : infos.getAttributes()) {
+			if(attrInfo.getName().equals(attr))
+				return attrInfo;
+		}
+		return null;
+	}
+
+	/**
+	 * Read several attributes of a bean with a single getAttributes request.<br>
+	 * getAttributes silently omits the attributes that cannot be read, so only those are read again one by one to get their error.
+	 * @param name the ObjectName of the bean
+	 * @param attrs the names of the attributes to read
+	 * @return the values by attribute name in the requested order. Failed attributes are mapped to an {@link AttributeError}.
+	 * @throws InstanceNotFoundException in case of a JMX issue
+	 * @throws ReflectionException in case of a JMX issue
+	 * @throws IOException in case of a JMX issue
+	 */
+	public Map<String, Object> getAttributes(ObjectName name, String[] attrs) throws InstanceNotFoundException, ReflectionException, IOException {
+		Map<String, Object> values = new LinkedHashMap<>();
+		for(String attr : attrs)
+			values.put(attr, null);
+
+		Map<String, Object> found = new HashMap<>();
+		for(Attribute attr : mbsc.getAttributes(name, attrs).asList())
+			found.put(attr.getName(), attr.getValue());
+
+		for(Map.Entry<String, Object> entry : values.entrySet()) {
+			if(found.containsKey(entry.getKey())) {
+				entry.setValue(found.get(entry.getKey()));
+				continue;
+			}
+
+			try {
+				entry.setValue(mbsc.getAttribute(name, entry.getKey()));
+			}
+			catch (AttributeNotFoundException | MBeanException | RuntimeMBeanException e) {
+				entry.setValue(new AttributeError(e));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Write several attributes of a bean with a single setAttributes request.<br>
+	 * setAttributes silently omits the attributes that cannot be written, so only those are written again one by one to get their error.
+	 * @param name the ObjectName of the bean
+	 * @param list the attributes to write
+	 * @return the written values by attribute name in the requested order. Failed attributes are mapped to an {@link AttributeError}.
+	 * @throws InstanceNotFoundException in case of a JMX issue
+	 * @throws ReflectionException in case of a JMX issue
+	 * @throws IOException in case of a JMX issue
+	 */
+	public Map<String, Object> setAttributes(ObjectName name, AttributeList list) throws InstanceNotFoundException, ReflectionException, IOException {
+		Map<String, Object> values = new LinkedHashMap<>();
+		Set<String> written = new HashSet<>();
+		for(Attribute attr : mbsc.setAttributes(name, list).asList())
+			written.add(attr.getName());
+
+		for(Attribute attr : list.asList()) {
+			if(written.contains(attr.getName())) {
+				values.put(attr.getName(), attr.getValue());
+				continue;
+			}
+
+			try {
+				mbsc.setAttribute(name, attr);
+				values.put(attr.getName(), attr.getValue());
+			}
+			catch (AttributeNotFoundException | InvalidAttributeValueException | MBeanException | RuntimeMBeanException e) {
+				values.put(attr.getName(), new AttributeError(e));
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * Read and print several attributes of a bean. Each failed attribute is reported on stderr and sets the exit code to 4.
+	 * @param bean the name of the bean as typed by the user
+	 * @param name the ObjectName of the bean
+	 * @param attrs the names of the attributes to read
+	 * @param withNames prefix each value by "name="
+	 */
+	private void printAttributes(String bean, ObjectName name, String[] attrs, boolean withNames) throws InstanceNotFoundException, ReflectionException, IOException {
+		Map<String, Object> values = getAttributes(name, attrs);
+		for(Iterator<Map.Entry<String, Object>> it = values.entrySet().iterator(); it.hasNext();) {
+			Map.Entry<String, Object> entry = it.next();
+			if(entry.getValue() instanceof AttributeError) {
+				Exception e = ((AttributeError) entry.getValue()).getCause();
+				logger.warn("Invalid attribute "+entry.getKey()+" for "+bean+". ", e);
+				System.err.println("Invalid attribute "+entry.getKey()+" for "+bean+". "+e.getMessage());
+				setExitCode(4);
+				it.remove();
+			}
+		}
+
+		ResultWriter writer = new ResultWriter(output, System.out);
+		if(withNames || output == ResultWriter.Format.TEXT || values.size() > 1)
+			writer.writeAttributes(values, withNames);
+		else if(!values.isEmpty())
+			writer.writeValue(values.values().iterator().next());
+	}
+
+	/**
+	 * @return the status code of the last command executed by the current thread
+	 */
+	public int getExitCode() {
+		return exitCode.get();
+	}
+
+	void setExitCode(int code) {
+		exitCode.set(code);
 	}
 
 	/**
@@ -377,8 +645,7 @@ public class JConnect implements NotificationListener {
 	 */
 	public void stop(int code) {
 		try {
-			timer.cancel();
-			jmxc.close();
+			close();
 		} catch (IOException e1) {
 			logger.error("unexpected error on stop. ",e1);
 		}
@@ -386,188 +653,473 @@ public class JConnect implements NotificationListener {
 			System.exit(code);
 		}
 	}
+
+	/**
+	 * Open the JMX connection and build the bean index.
+	 * @throws IOException if the connection fails
+	 * @throws MalformedObjectNameException if the JMX domain is invalid
+	 */
+	void connect() throws IOException, MalformedObjectNameException {
+		if(attachName != null && attachPid == null)
+			attachPid = LocalAttach.findPid(attachName);
+		if(attachPid != null) {
+			// no RMI registry lookup: the stub of the local connector is in its address
+			jmxUrl = LocalAttach.connectorAddress(attachPid);
+			logger.info("Attached to the local JVM {}: {}", attachPid, jmxUrl);
+		}
+		
+		connection = new ConnectionManager(jmxUrl, connectorEnv, logger);
+		connection.heartbeat = heartbeat;
+		connection.reconnectTimeout = reconnectTimeout;
+		connection.onLost = this::disconnected;
+		connection.addConnectionNotificationListener(this);
+		connection.open();
+		
+		mbsc = connection.getConnection();
+		
+		// index the beans once, it is then updated by the MBeanServerDelegate notifications
+		index = new BeanIndex(mbsc, jmxDomain, logger);
+		index.build();
+		
+		// the notifications may have been missed while reconnecting
+		connection.onReconnect = () -> {
+			try {
+				index.build();
+			} catch (IOException e) {
+				logger.error("Failed to rebuild the bean index.", e);
+			}
+		};
+	}
+
+	/**
+	 * Close the JMX connection without exiting.
+	 * @throws IOException in case of a JMX issue
+	 */
+	void close() throws IOException {
+		if(index != null)
+			index.close();
+		if(connection != null)
+			connection.close();
+	}
 	
 	void executeCommand(String[] cmd) throws IOException {
+		if(!timing) {
+			runCommand(cmd);
+			return;
+		}
+
+		RpcStats stats = getStats();
+		long start = System.nanoTime();
+		stats.begin();
+		try {
+			runCommand(cmd);
+		}
+		finally {
+			RpcStats.CommandTiming result = stats.end();
+			System.err.println(String.format("timing: %d requests %s in %.3f ms, %.3f ms wall", result.getCalls(), result.getOperations(),
+					result.getNanos() / 1e6, (System.nanoTime() - start) / 1e6));
+		}
+	}
+
+	/**
+	 * Print the statistics of the JMX requests of the session.
+	 */
+	private void printStats() {
+		RpcStats stats = getStats();
+		System.out.println(String.format("%-24s %10s %8s %10s %10s %10s %10s %10s", "operation", "calls", "errors", "mean ms", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+		for(RpcStats.OperationSummary summary : stats.getOperations().values()) {
+			System.out.println(String.format("%-24s %10d %8d %10.3f %10.3f %10.3f %10.3f %10.3f", summary.getOperation(), summary.getCalls(), summary.getErrors(),
+					summary.getMean(), summary.getP50(), summary.getP90(), summary.getP99(), summary.getMax()));
+		}
+		System.out.println(String.format("%-24s %10d %8d", "total", stats.getCalls(), stats.getErrors()));
+	}
+
+	/**
+	 * @param cmd the command line
+	 * @return true if the command only reads files and does not need the JMX connection
+	 */
+	static boolean isOffline(String[] cmd) {
+		return cmd.length > 0 && ("diff".equals(cmd[0]) || "replay".equals(cmd[0]));
+	}
+
+	/**
+	 * Execute a command that does not need the JMX connection: diff or replay.
+	 * @param cmd the command line
+	 * @return the exit code of the command
+	 */
+	int runOffline(String[] cmd) {
+		try {
+			if("diff".equals(cmd[0]))
+				new SnapshotDiff(cmd).run();
+			else
+				new Replay(cmd).run();
+			return 0;
+		}
+		catch(IllegalArgumentException | IOException e) {
+			logger.warn("Invalid "+cmd[0]+" command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+			System.err.println(e.getMessage());
+			return 3;
+		}
+	}
+
+	private void runCommand(String[] cmd) throws IOException {
 		try
 		{
-			exitCode=0; // reset code for each command
+			setExitCode(0); // reset code for each command
 			
-			if("?".equals(cmd[0])) {
+			if("?".equals(cmd[0]) && cmd.length == 1) {
 				for(String name : getBeans().keySet())
 					System.out.println(name);
 				return;
 			}
 
+			if("?".equals(cmd[0]) || "query".equals(cmd[0])) {
+				try {
+					QueryParser query = new QueryParser(index.getPattern(), Arrays.copyOfRange(cmd, 1, cmd.length));
+					for(ObjectName name : index.query(query.getPattern(), query.getQuery()))
+						System.out.println(index.displayName(name));
+				}
+				catch(IllegalArgumentException e) {
+					logger.warn("Invalid query: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
 			if("exit".equals(cmd[0]) || "quit".equals(cmd[0]))
 				System.exit(0);
 
 			if("help".equals(cmd[0])) {
 				System.out.println("type '?' to get the list of the beans");
+				System.out.println("Query beans:      query|? [<ObjectName pattern>] [where <attribute> =|!=|<|<=|>|>=|like|in|between <value> [and|or ...]]");
 				System.out.println("Use tab to autocomplete your commands");
 				System.out.println("Set an attribute: <Bean Id> set <attribute> <value>");
-				System.out.println("Get an attribute: <Bean Id> get <attribute>");
+				System.out.println("Set attributes:   <Bean Id> set <attribute>=<value> [<attribute>=<value>...]");
+				System.out.println("Get attributes:   <Bean Id> get <attribute>[,<attribute>...]");
+				System.out.println("Get all:          <Bean Id> attributes");
 				System.out.println("Call a method:    <Bean Id> <method> [arguments...]");
+				System.out.println("Bulk invoke:      invoke [parallel=N] [timeout=<duration>] [dry-run] <ObjectName pattern> <method> [arguments...]");
+				System.out.println("Bulk set:         set [parallel=N] [timeout=<duration>] [dry-run] <ObjectName pattern> <attribute> <value>|<attribute>=<value>...");
+				System.out.println("Notifications:    subscribe <Bean Id>|<ObjectName pattern> [type=TYPE[,TYPE...]] [capacity=N] [overflow=drop-oldest|block|sample] [count=N] [text|ndjson]");
+				System.out.println("Snapshot beans:   snapshot [<ObjectName pattern>] [where <condition>] [parallel=N] [> <file>]");
+				System.out.println("Compare:          diff <snapshot file> <snapshot file>");
+				System.out.println("Record:           record <file> [<Bean Id> <attribute>[,<attribute>...]...] [interval] [capacity=N] [samples=N]");
+				System.out.println("Replay:           replay <file> [<series>] [from=<time>] [to=<time>] [step=<duration>] [csv]");
+				System.out.println("Request stats:    stats [reset]");
+				System.out.println("Aggregate:        agg sum|avg|min|max|count[,...] <attribute> from <ObjectName pattern> [where <condition>] [by <key>]");
+				System.out.println("Top beans:        top <N> <attribute> from <ObjectName pattern> [where <condition>] [by <key>] [asc]");
+				System.out.println("Class histogram:  histo [every=<interval>] [top=N] [samples=N] [sort=bytes|instances] [all]");
+				System.out.println("Flight Recorder:  jfr start [name=<name>] [settings=default|profile] [duration=D] [maxage=D] [maxsize=N] | stop <id> | dump <id> <remote file> | fetch <id> <file> [block=N] [close] | list | close <id>");
+				System.out.println("Top threads:      top [threads] [interval] [sort=cpu|alloc] [n=N] [samples=N]   (q quit, c/a sort, enter stack)");
+				System.out.println("Watch aggregate:  watch agg|top ... [every <interval>] [samples=N]");
+				System.out.println("Watch attributes: watch <Bean Id> <attribute>[,<attribute>...] [<Bean Id> <attributes>...] [interval] [samples=N] [csv|ndjson]");
+				System.out.println("Metrics:          serve [--metrics-port N] --rules <file> [--bind <address>] [ttl=<duration>] [deadline=<duration>] [parallel=N]");
+				System.out.println("Background job:   <command> &   (console only, ctrl+c cancels the running command)");
+				System.out.println("Jobs:             jobs | kill %N");
+				return;
+			}
+
+			if("stats".equals(cmd[0])) {
+				if(cmd.length > 1 && "reset".equals(cmd[1]))
+					getStats().reset();
+				else
+					printStats();
+				return;
+			}
+
+			if("subscribe".equals(cmd[0])) {
+				try {
+					new Subscriber(this, cmd).run();
+				}
+				catch(IllegalArgumentException e) {
+					logger.warn("Invalid subscribe command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("snapshot".equals(cmd[0])) {
+				try {
+					new Snapshot(this, cmd).run();
+				}
+				catch(IllegalArgumentException | FileNotFoundException e) {
+					logger.warn("Invalid snapshot command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if(isOffline(cmd)) {
+				setExitCode(runOffline(cmd));
+				return;
+			}
+
+			if("record".equals(cmd[0])) {
+				try {
+					new Recorder(this, cmd).run();
+				}
+				catch(IllegalArgumentException | IllegalStateException | FileNotFoundException e) {
+					logger.warn("Invalid record command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("serve".equals(cmd[0])) {
+				try {
+					new MetricsExporter(this, cmd).run();
+				}
+				catch(IllegalArgumentException | FileNotFoundException | BindException e) {
+					logger.warn("Invalid serve command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("histo".equals(cmd[0])) {
+				try {
+					new ClassHistogram(this, cmd).run();
+				}
+				catch(IllegalArgumentException | IllegalStateException e) {
+					logger.warn("Invalid histo command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("jfr".equals(cmd[0])) {
+				try {
+					new JfrCommand(this, cmd).run();
+				}
+				catch(IllegalArgumentException | IllegalStateException | FileNotFoundException e) {
+					logger.warn("Invalid jfr command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			// top N ATTR from PATTERN is an aggregation, any other top shows the threads. The keywords of the
+			// aggregations are case insensitive
+			if("top".equals(cmd[0]) && Arrays.stream(cmd).noneMatch("from"::equalsIgnoreCase)) {
+				try {
+					new ThreadTop(this, cmd).run();
+				}
+				catch(IllegalArgumentException | IllegalStateException e) {
+					logger.warn("Invalid top command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("agg".equals(cmd[0]) || "top".equals(cmd[0]) || ("watch".equals(cmd[0]) && cmd.length > 1 && ("agg".equals(cmd[1]) || "top".equals(cmd[1])))) {
+				try {
+					new Aggregator(this, cmd).run();
+				}
+				catch(IllegalArgumentException e) {
+					logger.warn("Invalid aggregation: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if("watch".equals(cmd[0])) {
+				try {
+					new Watcher(this, cmd).run();
+				}
+				catch(IllegalArgumentException e) {
+					logger.warn("Invalid watch command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
+				return;
+			}
+
+			if(("invoke".equals(cmd[0]) || "set".equals(cmd[0])) && index.getName(cmd[0]) == null) {
+				try {
+					setExitCode(new BulkCommand(this, cmd).run());
+				}
+				catch(IllegalArgumentException e) {
+					logger.warn("Invalid "+cmd[0]+" command: "+e.getMessage()+" {}", Arrays.toString(cmd));
+					System.err.println(e.getMessage());
+					setExitCode(3);
+				}
 				return;
 			}
 
 			if(cmd.length < 2) {
 				logger.warn("Error missing arguments: {}", Arrays.toString(cmd));
 				System.err.println("Error missing arguments");
-				exitCode=3;
+				setExitCode(3);
 				return;
 			}
 
-			ObjectName name = getBeans().get(cmd[0]);
+			ObjectName name = index.getName(cmd[0]);
 			if(name == null) {
 				System.err.println("Invalid Bean "+cmd[0]+"!");
 				logger.warn("Invalid Bean {}!", cmd[0]);
-				exitCode=4;
+				setExitCode(4);
 				return;
 			}
 
 			if("set".equals(cmd[1])) {
-				if(cmd.length < 4) {
+				// accepted forms: "set attr value" or "set a=1 b=2 ..."
+				Map<String, String> values = new LinkedHashMap<>();
+				if(cmd.length == 4 && cmd[2].indexOf('=') == -1) {
+					values.put(cmd[2], cmd[3]);
+				}
+				else {
+					for(int i = 2; i < cmd.length; i++) {
+						int eq = cmd[i].indexOf('=');
+						if(eq <= 0) {
+							values.clear();
+							break;
+						}
+						values.put(cmd[i].substring(0, eq), cmd[i].substring(eq+1));
+					}
+				}
+
+				if(values.isEmpty()) {
 					logger.warn("Error missing arguments for set operation: {}", Arrays.toString(cmd));
 					System.err.println("Error missing arguments for set operation");
-					exitCode=3;
+					setExitCode(3);
 					return;
 				}
 
-				try {
-					// find the attribute
-					Object wActualValue = mbsc.getAttribute(name, cmd[2]);
-					
-					// prepare the new value of the attribute + convert the value of the command line to the type of the actual value
-					Attribute attr = new Attribute(cmd[2], convert(cmd[3], wActualValue.getClass().getName()));
-					mbsc.setAttribute(name, attr);
-					System.out.println(cmd[2]+" has been set to "+cmd[3]);
-					logger.info("Successfull call to {}", Arrays.toString(cmd));
-				}
-				catch (InvalidAttributeValueException e) {
-					logger.warn("Invalid value for "+cmd[2]+". ", e);
-					System.err.println(System.lineSeparator()+"Invalid value for "+cmd[2]+". "+e.getMessage());
-					exitCode=4;
-				} catch (AttributeNotFoundException e) {
-					logger.warn("Invalid attribute "+cmd[2]+" for "+cmd[0]+". ", e);
-					System.err.println(System.lineSeparator()+"Invalid attribute "+cmd[2]+" for "+cmd[0]+". "+e.getMessage());
-					exitCode=4;
+				// convert the values of the command line using the types of the cached MBeanInfo
+				MBeanInfo infos = index.getInfo(name);
+				AttributeList list = new AttributeList();
+				for(Map.Entry<String, String> entry : values.entrySet()) {
+					MBeanAttributeInfo attrInfo = findAttribute(infos, entry.getKey());
+					if(attrInfo == null || !attrInfo.isWritable()) {
+						logger.warn("Invalid attribute {} for {}.", entry.getKey(), cmd[0]);
+						System.err.println("Invalid attribute "+entry.getKey()+" for "+cmd[0]+".");
+						setExitCode(4);
+						continue;
+					}
+
+					try {
+						Converters.Converter converter = Converters.forFeature(attrInfo.getType(), attrInfo.getDescriptor());
+						if(converter == null)
+							throw new IllegalArgumentException("Invalid non primitive data type "+attrInfo.getType());
+						list.add(new Attribute(entry.getKey(), converter.convert(entry.getValue())));
+					}
+					catch (IllegalArgumentException e) {
+						logger.warn("Cannot set attribute "+entry.getKey()+": "+e.getMessage()+". {}", Arrays.toString(cmd));
+						System.err.println("Cannot set attribute "+entry.getKey()+": "+e.getMessage());
+						setExitCode(4);
+					}
 				}
-				catch (IllegalArgumentException e) {
-					logger.warn("Cannot set attribute "+cmd[2]+": "+e.getMessage()+". {}", Arrays.toString(cmd));
-					System.err.println("Cannot set attribute "+cmd[2]+": "+e.getMessage());
-					exitCode=4;
+
+				if(list.isEmpty())
+					return;
+
+				for(Map.Entry<String, Object> result : setAttributes(name, list).entrySet()) {
+					if(result.getValue() instanceof AttributeError) {
+						Exception e = ((AttributeError) result.getValue()).getCause();
+						logger.warn("Cannot set attribute "+result.getKey()+" for "+cmd[0]+". ", e);
+						System.err.println("Cannot set attribute "+result.getKey()+" for "+cmd[0]+". "+e.getMessage());
+						setExitCode(4);
+					}
+					else {
+						System.out.println(result.getKey()+" has been set to "+values.get(result.getKey()));
+					}
 				}
+				logger.info("Call to {} ended with code {}", Arrays.toString(cmd), getExitCode());
 			}
 			else if("get".equals(cmd[1])) {
 				if(cmd.length < 3) {
 					logger.warn("Error missing arguments for get operation: {}", Arrays.toString(cmd));
 					System.err.println("Error missing arguments for get operation");
-					exitCode=3;
+					setExitCode(3);
 					return;
 				}
 
-				try {
-					System.out.println(mbsc.getAttribute(name, cmd[2]));
-					logger.info("Successfull call to {}", Arrays.toString(cmd));
-				} catch (AttributeNotFoundException e) {
-					logger.warn("Invalid attribute "+cmd[2]+" for "+cmd[0]+". ", e);
-					System.err.println(System.lineSeparator()+"Invalid attribute "+cmd[2]+" for "+cmd[0]+". "+e.getMessage());
-					exitCode=4;
-				}		
+				// accepted forms: "get attr", "get a,b,c" or "get a b c"
+				List<String> attrs = new ArrayList<>();
+				for(int i = 2; i < cmd.length; i++) {
+					for(String attr : StringUtils.split(cmd[i], ','))
+						attrs.add(attr);
+				}
+
+				printAttributes(cmd[0], name, attrs.toArray(new String[attrs.size()]), attrs.size() > 1);
+				logger.info("Call to {} ended with code {}", Arrays.toString(cmd), getExitCode());
 			}
 			else if("?".equals(cmd[1]) || "operations".equals(cmd[1])) {
 				// display methods signatures
 				
-				MBeanInfo infos = mbsc.getMBeanInfo(name);
+				MBeanInfo infos = index.getInfo(name);
 				MBeanOperationInfo[] ops = infos.getOperations();
 				for(MBeanOperationInfo operation : ops) {
 					System.out.println(displaySignature(operation));
 				}
 			}
 			else if("attributes".equals(cmd[1])) {
-				MBeanInfo infos = mbsc.getMBeanInfo(name);
-				MBeanAttributeInfo[] attrs = infos.getAttributes();
+				MBeanInfo infos = index.getInfo(name);
+				MBeanAttributeInfo[] attrInfos = infos.getAttributes();
 
-				try {
-					if(attrs != null) {
-						for(MBeanAttributeInfo attrInfo : attrs) {
-							System.out.println(attrInfo.getName()+"=M"+mbsc.getAttribute(name, attrInfo.getName()));
-						}
+				if(attrInfos != null) {
+					List<String> attrs = new ArrayList<>(attrInfos.length);
+					for(MBeanAttributeInfo attrInfo : attrInfos) {
+						if(attrInfo.isReadable())
+							attrs.add(attrInfo.getName());
 					}
-					logger.info("Successfull call to {}", Arrays.toString(cmd));
-				} catch (AttributeNotFoundException e) {
-					logger.warn("Exception on getAttribute.", e);
-					System.err.println(System.lineSeparator()+"Exception on getAttribute. "+e.getMessage());
-					exitCode=4;
+					printAttributes(cmd[0], name, attrs.toArray(new String[attrs.size()]), true);
 				}
+				logger.info("Call to {} ended with code {}", Arrays.toString(cmd), getExitCode());
 			}
 			else {
-				MBeanInfo infos = mbsc.getMBeanInfo(name);
-				MBeanOperationInfo op = null;
-				MBeanOperationInfo[] ops = infos.getOperations();
+				OperationTable operations = index.getOperations(name);
 
 				String wFirstArg=(cmd.length >=3)?cmd[2]:null;
 				if("?".equals(wFirstArg)) {
-					for(MBeanOperationInfo operation : ops) {
+					for(MBeanOperationInfo operation : index.getInfo(name).getOperations()) {
 						if(operation.getName().equals(cmd[1])){
 							System.out.println(displaySignature(operation));
 						}
 					}
 				}
 				else {
-					// lets find the operation
-					int i = 0;
-					while(op == null && i < ops.length) {
-						// match the operation name and the number of arguments
-						if(ops[i].getName().equals(cmd[1]) && ops[i].getSignature().length == cmd.length-2)
-							op = ops[i];
-						i++;
+					// lets find the operation: name, number of arguments and then the first overload accepting the arguments
+					OperationTable.Call call;
+					try {
+						call = operations.resolve(cmd[1], cmd, 2);
+					}
+					catch(IllegalArgumentException e) {
+						logger.warn(e.getMessage()+" {}", Arrays.toString(cmd));
+						System.err.println(e.getMessage());
+						setExitCode(4);
+						return;
 					}
 	
-					if(op == null) {
+					if(call == null) {
 						logger.warn("Error, operation "+cmd[1]+" not found ! {}", Arrays.toString(cmd));
 						System.err.println("Error, operation "+cmd[1]+" not found !");
-						exitCode=4;
+						setExitCode(4);
 						return;
 					}
 	
-					Object[] params = new Object[op.getSignature().length];
-					String[] signature = new String[op.getSignature().length];
-	
-					boolean isValid = true;
-					i = 0;
-					for(MBeanParameterInfo param : op.getSignature()) {
-						
-						try {
-							params[i] = convert(cmd[i+2], param.getType());
-						}
-						catch(IllegalArgumentException e) {
-							logger.warn("Cannot call a method using the non primitive data type "+param.getType()+". {}", Arrays.toString(cmd));
-							System.err.println("Cannot call a method using the non primitive data type "+param.getType());
-							exitCode=4;
-							isValid = false;
-						}
-	
-						signature[i] = param.getType();
-						i++;
-					}
-	
-					if(isValid == false)
-						return;
-	
-					Object result = mbsc.invoke(name, cmd[1], params, signature);
-					if(result != null)
-						System.out.println(result.toString().replaceAll("<br>", "\n"));
+					Object result = mbsc.invoke(name, cmd[1], call.getParams(), call.getDispatch().getSignature());
+					if(result != null || output != ResultWriter.Format.TEXT)
+						new ResultWriter(output, System.out).writeValue(result);
 					logger.info("Successfull call to {}", Arrays.toString(cmd));
 				}
 			}
 		
 		}
-		catch (MalformedObjectNameException | InstanceNotFoundException | MBeanException | ReflectionException | IntrospectionException | RuntimeMBeanException e) {
+		catch (InstanceNotFoundException | MBeanException | ReflectionException | IntrospectionException | RuntimeMBeanException e) {
 			logger.error("Unexpected exception.",e);
 			System.err.println(System.lineSeparator()+"Unexpected exception:");
 			e.printStackTrace();
-			exitCode=5;
+			setExitCode(5);
 		}
 	}
 
@@ -578,81 +1130,81 @@ public class JConnect implements NotificationListener {
 	 * @return the exit code of JConnect if not stopped by the method stop(int code)
 	 */
 	public int execute(String[] args)  {
+		if(listJvms) {
+			try {
+				for(LocalAttach.Jvm jvm : LocalAttach.list())
+					System.out.println(jvm);
+				return 0;
+			}
+			catch(IOException e) {
+				logger.error("Cannot list the local JVMs.", e);
+				System.err.println(e.getMessage());
+				return 1;
+			}
+		}
+
+		if(isOffline(args) && batchFile == null && !daemon)
+			return runOffline(args);
+
+		if(hosts != null)
+			return new FanOut(this, hosts, inFlight, connectTimeout, rpcTimeout).run(args);
+
+		if(callTimeout > 0) {
+			// a request blocked on a hung server fails after the read timeout instead of blocking its thread forever
+			if(!TimeoutSocketFactory.install(connectTimeout, callTimeout))
+				logger.warn("An RMI socket factory is already installed, the call timeout is not enforced.");
+			connectorEnv = new HashMap<>();
+			connectorEnv.put("jmx.remote.x.notification.fetch.timeout", callTimeout/2);
+		}
+
 		try
 		{
-			JMXServiceURL url = new JMXServiceURL(JMX_URL);
-			jmxc = JMXConnectorFactory.connect(url, null);
-			jmxc.addConnectionNotificationListener(this, null, jmxc);
-			
-			mbsc = jmxc.getMBeanServerConnection();
-			
-			// add a timer to check if the remote server is alive
-			timer = new Timer();
-			timer.scheduleAtFixedRate(new TimerTask() {
-				  @Override
-				  public void run() {
-				    try {
-						mbsc.getMBeanCount();
-					} catch (IOException e) {
-					}
-				  }
-				}, 1000, 1000);
+			connect();
 		}
 		catch (IOException e) {
-			System.err.println("Cannot connect to "+JMX_URL+"! "+System.lineSeparator()+e.toString());
+			String target = attachPid != null && !jmxUrl.startsWith("local") ? "local JVM "+attachPid : jmxUrl;
+			System.err.println("Cannot connect to "+target+"! "+System.lineSeparator()+e.toString());
 			System.exit(1);
 		}
+		catch (MalformedObjectNameException e) {
+			System.err.println("Invalid JMX domain "+jmxDomain+"! "+System.lineSeparator()+e.getMessage());
+			System.exit(2);
+		}
+
+		if(daemon)
+			return new DaemonServer(this, new File(daemonFile), idleTimeout).run();
 
-		DefaultHistory whistory = null;
 		try
 		{
-			if(args.length > 0) {
+			if(batchFile != null) {
+				
+				InputStream input = "-".equals(batchFile) ? System.in : new FileInputStream(batchFile);
+				try (BufferedReader reader = new BufferedReader(new InputStreamReader(input))) {
+					return new BatchRunner(this, failFast, Math.max(1, inFlight)).run(reader);
+				}
+				
+			}
+			else if(args.length > 0) {
 				
 				executeCommand(args);
 				
 			}
 			else {
-				LineReaderImpl consoleReader = (LineReaderImpl) LineReaderBuilder.builder().terminal(TerminalBuilder.terminal()).build();
-				consoleReader.setCompleter(new ConsoleCompletor(this));
-				if(historyFile != null) {
-					whistory = new DefaultHistory();
-					consoleReader.setVariable(LineReader.HISTORY_FILE, historyFile);
-					consoleReader.setHistory(whistory);
-				}
-
-	
-				System.out.println("Welcome to JConnect console. Type help to get started.");
-				
-				String line;
-				while ((line = consoleReader.readLine(COMMAND_PROMPT)) != null) {
-					
-					String[] cmd = line.split("\\s+");
-					executeCommand(cmd);
-	
-				}
-			
+				return new Console(this).run();
 			}
 			
-			return exitCode;
+			return getExitCode();
 
 		}
-		catch(IOException e) {
-			logger.error("Disconnected from {}!",JMX_URL);
-			System.err.println(System.lineSeparator()+"Disconnected from "+JMX_URL+"! "+System.lineSeparator()+e.toString());
+		catch(SocketTimeoutException e) {
+			logger.warn("Request timed out.", e);
+			System.err.println(e.getMessage());
 			return 1;
 		}
-		catch(EndOfFileException | UserInterruptException e) { // Exception received on ctrl+d and crtl+c
-			stop();
-			return 0;
-		}
-		finally {
-			try {
-				if(whistory != null)
-					whistory.save();
-			}
-			catch (IOException e) {
-				logger.error("faile to save history.", e);
-			}
+		catch(IOException e) {
+			logger.error("Disconnected from {}!",jmxUrl);
+			System.err.println(System.lineSeparator()+"Disconnected from "+jmxUrl+"! "+System.lineSeparator()+e.toString());
+			return 1;
 		}
 
 	}
@@ -697,8 +1249,35 @@ public class JConnect implements NotificationListener {
 		return new ImmutablePair<String[], String[]>(opts, cmds);
 	}
 
+	/**
+	 * Initializing log4j-core takes a large part of the startup of a short command, and its default configuration
+	 * discards the logs anyway. The inline commands and the batches log through the simple logger of log4j-api,
+	 * off unless org.apache.logging.log4j.simplelog.level is set. log4j-core is kept for the console, the daemon,
+	 * the exporter, and when a log4j configuration or context factory is given explicitly.
+	 * @param opts the options of the command line
+	 * @param cmds the inline command
+	 */
+	static void selectLogger(String[] opts, String[] cmds) {
+		if(System.getProperty("log4j2.loggerContextFactory") != null || System.getProperty("log4j.configurationFile") != null
+				|| System.getProperty("log4j2.configurationFile") != null)
+			return;
+		boolean batch = false;
+		for(String opt : opts) {
+			if("--daemon".equals(opt))
+				return;
+			if(opt.startsWith("-f") || opt.startsWith("--file"))
+				batch = true;
+		}
+		if((cmds.length == 0 && !batch) || (cmds.length > 0 && "serve".equals(cmds[0])))
+			return;
+		System.setProperty("log4j2.loggerContextFactory", "org.apache.logging.log4j.simple.SimpleLoggerContextFactory");
+		if(System.getProperty("org.apache.logging.log4j.simplelog.level") == null)
+			System.setProperty("org.apache.logging.log4j.simplelog.level", "OFF");
+	}
+
 	public static void main(String[] args) {
 		Pair<String[], String[]> optAndCmd = splitOptionsAndCommand(args);
+		selectLogger(optAndCmd.getLeft(), optAndCmd.getRight());
 		System.exit(new JConnect(optAndCmd.getLeft()).execute(optAndCmd.getRight()));
 	}
 
@@ -0,0 +1,411 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The jfr command: control the Flight Recorder of the JVM and download its recordings.<br>
+ * <pre>
+ * jfr start [name=NAME] [settings=default|profile] [duration=D] [maxage=D] [maxsize=BYTES]
+ * jfr stop ID
+ * jfr dump ID REMOTE-FILE                   write the recording on the disk of the server
+ * jfr fetch ID FILE [block=BYTES] [close]   download the recording to a local file
+ * jfr list
+ * jfr close ID
+ * </pre>
+ * The recordings are managed by their id through jdk.management.jfr:type=FlightRecorder. A running recording is
+ * fetched through a stopped clone, so it keeps running.<br>
+ * The download streams the recording with openStream/readStream: the requests are sent back to back by the command
+ * thread while a writer thread appends the chunks to the file with a FileChannel, the network and the disk are used
+ * concurrently. The chunks are 1 MB by default instead of the 50 KB of the server. The file is written as FILE.part
+ * and renamed at the end, the progress and the throughput are printed on stderr.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class JfrCommand {
+
+	/** default size of the downloaded chunks in bytes */
+	public static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+
+	static final String FLIGHT_RECORDER = "jdk.management.jfr:type=FlightRecorder";
+	private static final String[] ID = { long.class.getName() };
+	private static final String[] ID_AND_STRING = { long.class.getName(), String.class.getName() };
+	private static final String[] ID_AND_MAP = { long.class.getName(), TabularData.class.getName() };
+	private static final String[] ID_AND_BOOLEAN = { long.class.getName(), boolean.class.getName() };
+	private static final byte[] END = new byte[0];
+	private static final int PIPELINE = 4;
+
+	final JConnect jconnect;
+	final Logger logger;
+	final MBeanServerConnection mbsc;
+	final ObjectName recorder;
+	final String[] cmd;
+
+	/**
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "jfr"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public JfrCommand(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.mbsc = jconnect.getConnection();
+		this.cmd = cmd;
+		try {
+			this.recorder = new ObjectName(FLIGHT_RECORDER);
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+		if(cmd.length < 2)
+			throw new IllegalArgumentException("Usage: jfr start|stop|dump|fetch|list|close ...");
+	}
+
+	/**
+	 * Execute the sub-command.
+	 * @throws IOException if the JMX connection is lost or the local file cannot be written
+	 */
+	public void run() throws IOException {
+		try {
+			switch(cmd[1]) {
+			case "start":
+				start();
+				break;
+			case "stop":
+				System.out.println(((Boolean) call("stopRecording", new Object[] { id(2) }, ID)) ? "Recording "+id(2)+" stopped" : "Recording "+id(2)+" was not running");
+				break;
+			case "dump":
+				if(cmd.length < 4)
+					throw new IllegalArgumentException("Usage: jfr dump ID REMOTE-FILE");
+				call("copyTo", new Object[] { id(2), cmd[3] }, ID_AND_STRING);
+				System.out.println("Recording "+id(2)+" written to "+cmd[3]+" on the server");
+				break;
+			case "fetch":
+				fetch();
+				break;
+			case "list":
+				list();
+				break;
+			case "close":
+				call("closeRecording", new Object[] { id(2) }, ID);
+				System.out.println("Recording "+id(2)+" closed");
+				break;
+			default:
+				throw new IllegalArgumentException("Unknown jfr command "+cmd[1]+", expected start, stop, dump, fetch, list or close");
+			}
+		}
+		catch(InstanceNotFoundException e) {
+			throw new IllegalStateException("The JVM has no "+FLIGHT_RECORDER+" bean, the Flight Recorder requires a JDK 11 or a JDK 8u262 or later");
+		}
+		catch(JMException | RuntimeMBeanException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			throw new IllegalStateException("jfr "+cmd[1]+" failed: "+cause.getMessage(), e);
+		}
+	}
+
+	private long id(int index) {
+		if(cmd.length <= index)
+			throw new IllegalArgumentException("Missing recording id");
+		try {
+			return Long.parseLong(cmd[index]);
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid recording id "+cmd[index]);
+		}
+	}
+
+	private Object call(String operation, Object[] params, String[] signature) throws IOException, JMException {
+		return mbsc.invoke(recorder, operation, params, signature);
+	}
+
+	private void start() throws IOException, JMException {
+		String settings = "default";
+		Map<String, String> options = new LinkedHashMap<>();
+		for(int i = 2; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(arg.startsWith("name="))
+				options.put("name", arg.substring("name=".length()));
+			else if(arg.startsWith("settings="))
+				settings = arg.substring("settings=".length());
+			else if(arg.startsWith("duration="))
+				options.put("duration", Replay.parseDuration(arg.substring("duration=".length()))+" ms");
+			else if(arg.startsWith("maxage="))
+				options.put("maxAge", Replay.parseDuration(arg.substring("maxage=".length()))+" ms");
+			else if(arg.startsWith("maxsize="))
+				options.put("maxSize", Long.toString(parseSize(arg.substring("maxsize=".length()))));
+			else
+				throw new IllegalArgumentException("Unexpected argument "+arg);
+		}
+
+		long id = (Long) call("newRecording", new Object[0], new String[0]);
+		try {
+			call("setPredefinedConfiguration", new Object[] { id, settings }, ID_AND_STRING);
+			if(!options.isEmpty())
+				call("setRecordingOptions", new Object[] { id, map("setRecordingOptions", options) }, ID_AND_MAP);
+			call("startRecording", new Object[] { id }, ID);
+		}
+		catch(JMException | RuntimeException e) {
+			call("closeRecording", new Object[] { id }, ID);
+			throw e;
+		}
+		System.out.println(id);
+	}
+
+	private void list() throws IOException, JMException {
+		CompositeData[] recordings = (CompositeData[]) mbsc.getAttribute(recorder, "Recordings");
+		System.out.println(String.format("%6s  %-24s  %-8s  %12s  %10s", "id", "name", "state", "size", "duration"));
+		for(CompositeData recording : recordings) {
+			Object duration = recording.get("duration");
+			System.out.println(String.format("%6s  %-24s  %-8s  %12s  %10s", recording.get("id"), recording.get("name"), recording.get("state"),
+					recording.get("size"), duration instanceof Long && (Long) duration > 0 ? Replay.formatDuration((Long) duration * 1000) : "-"));
+		}
+	}
+
+	/**
+	 * Download a recording to a local file.
+	 */
+	private void fetch() throws IOException, JMException {
+		if(cmd.length < 4)
+			throw new IllegalArgumentException("Usage: jfr fetch ID FILE [block=BYTES] [close]");
+		long id = id(2);
+		File file = new File(cmd[3]);
+		int block = DEFAULT_BLOCK_SIZE;
+		boolean close = false;
+		for(int i = 4; i < cmd.length; i++) {
+			if(cmd[i].startsWith("block="))
+				block = (int) Math.min(Integer.MAX_VALUE, parseSize(cmd[i].substring("block=".length())));
+			else if("close".equals(cmd[i]))
+				close = true;
+			else
+				throw new IllegalArgumentException("Unexpected argument "+cmd[i]);
+		}
+		File parent = file.getAbsoluteFile().getParentFile();
+		if(parent != null && !parent.isDirectory())
+			throw new FileNotFoundException(parent+" is not a directory");
+
+		// a running recording is streamed through a stopped clone
+		CompositeData info = recording(id);
+		boolean running = info != null && "RUNNING".equals(info.get("state"));
+		long streamed = running ? (Long) call("cloneRecording", new Object[] { id, true }, ID_AND_BOOLEAN) : id;
+		try {
+			Map<String, String> options = new LinkedHashMap<>();
+			options.put("blockSize", Integer.toString(block));
+			long stream = (Long) call("openStream", new Object[] { streamed, map("openStream", options) }, ID_AND_MAP);
+			long expected = -1;
+			CompositeData streamedInfo = running ? recording(streamed) : info;
+			if(streamedInfo != null && streamedInfo.get("size") instanceof Long)
+				expected = (Long) streamedInfo.get("size");
+			try {
+				download(stream, file, expected);
+			}
+			finally {
+				try {
+					call("closeStream", new Object[] { stream }, ID);
+				}
+				catch(JMException | IOException e) {
+					logger.debug("Cannot close the stream "+stream, e);
+				}
+			}
+		}
+		finally {
+			if(running)
+				call("closeRecording", new Object[] { streamed }, ID);
+		}
+		if(close)
+			call("closeRecording", new Object[] { id }, ID);
+	}
+
+	/**
+	 * Pull the chunks of the stream while a writer thread appends them to the file.
+	 */
+	private void download(long stream, File file, long expected) throws IOException, JMException {
+		File part = new File(file.getPath()+".part");
+		BlockingQueue<byte[]> chunks = new ArrayBlockingQueue<>(PIPELINE);
+		ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "jconnect-jfr-writer");
+			thread.setDaemon(true);
+			return thread;
+		});
+		long start = System.nanoTime();
+		boolean done = false;
+		try(FileChannel channel = FileChannel.open(part.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			Future<Long> written = writer.submit(() -> {
+				long total = 0;
+				for(byte[] chunk = chunks.take(); chunk != END; chunk = chunks.take()) {
+					ByteBuffer buffer = ByteBuffer.wrap(chunk);
+					while(buffer.hasRemaining())
+						total += channel.write(buffer);
+				}
+				return total;
+			});
+
+			long received = 0;
+			long report = start;
+			boolean complete = false;
+			try {
+				for(byte[] chunk = (byte[]) call("readStream", new Object[] { stream }, ID); chunk != null; chunk = (byte[]) call("readStream", new Object[] { stream }, ID)) {
+					received += chunk.length;
+					put(chunks, chunk, written);
+					long now = System.nanoTime();
+					if(now - report > 1000000000L) {
+						report = now;
+						System.err.print("\r"+progress(received, expected, now - start)+"   ");
+					}
+				}
+				// the writer drains the pending chunks before the end marker
+				put(chunks, END, written);
+				complete = true;
+			}
+			finally {
+				if(!complete) {
+					// the download failed, the pending chunks are useless: stop the writer now
+					chunks.clear();
+					chunks.offer(END);
+				}
+			}
+
+			long total;
+			try {
+				total = written.get();
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Download of "+file+" interrupted", e);
+			}
+			catch(ExecutionException e) {
+				throw new IOException("Cannot write "+part+": "+e.getCause().getMessage(), e.getCause());
+			}
+			if(total != received)
+				throw new IOException("Incomplete download of "+file+": "+total+" bytes written out of "+received+" received");
+			channel.force(false);
+			System.err.println("\r"+progress(total, total, System.nanoTime() - start)+"   ");
+			done = true;
+		}
+		finally {
+			writer.shutdownNow();
+			if(!done)
+				Files.deleteIfExists(part.toPath());
+		}
+		Files.move(part.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		System.out.println("Recording fetched to "+file);
+	}
+
+	private static void put(BlockingQueue<byte[]> chunks, byte[] chunk, Future<Long> writer) throws IOException {
+		try {
+			while(!chunks.offer(chunk, 100, java.util.concurrent.TimeUnit.MILLISECONDS)) {
+				if(writer.isDone())
+					throw new IOException("The writer of the recording has stopped");
+			}
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Download interrupted", e);
+		}
+	}
+
+	private static String progress(long bytes, long expected, long nanos) {
+		double seconds = Math.max(nanos, 1) / 1e9;
+		String percent = expected > 0 ? String.format(" (%d%%)", Math.min(100, bytes * 100 / expected)) : "";
+		return String.format("%.1f MB%s in %.1f s, %.1f MB/s", bytes / 1048576.0, percent, seconds, bytes / 1048576.0 / seconds);
+	}
+
+	private CompositeData recording(long id) throws IOException, JMException {
+		for(CompositeData recording : (CompositeData[]) mbsc.getAttribute(recorder, "Recordings")) {
+			if(Long.valueOf(id).equals(recording.get("id")))
+				return recording;
+		}
+		throw new IllegalArgumentException("No recording "+id);
+	}
+
+	/**
+	 * Build the TabularData of a Map&lt;String, String&gt; parameter, with the open type declared by the operation.
+	 */
+	private TabularData map(String operation, Map<String, String> values) throws IOException, JMException {
+		TabularType type = null;
+		for(MBeanOperationInfo info : jconnect.getIndex().getInfo(recorder).getOperations()) {
+			MBeanParameterInfo[] signature = info.getSignature();
+			if(info.getName().equals(operation) && signature.length == 2)
+				type = (TabularType) signature[1].getDescriptor().getFieldValue("openType");
+		}
+		if(type == null)
+			throw new IllegalStateException("Unexpected signature of "+operation);
+		try {
+			TabularDataSupport data = new TabularDataSupport(type);
+			for(Map.Entry<String, String> entry : values.entrySet())
+				data.put(new CompositeDataSupport(type.getRowType(), new String[] { "key", "value" }, new Object[] { entry.getKey(), entry.getValue() }));
+			return data;
+		}
+		catch(OpenDataException e) {
+			throw new IllegalStateException("Unexpected type of "+operation+": "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * @param value a size in bytes with the optional suffix k, m or g
+	 * @return the size in bytes
+	 */
+	static long parseSize(String value) {
+		String lower = value.toLowerCase();
+		long unit = 1;
+		if(lower.endsWith("k"))
+			unit = 1 << 10;
+		else if(lower.endsWith("m"))
+			unit = 1 << 20;
+		else if(lower.endsWith("g"))
+			unit = 1 << 30;
+		try {
+			long size = Long.parseLong(unit == 1 ? lower : lower.substring(0, lower.length() - 1)) * unit;
+			if(size > 0)
+				return size;
+		}
+		catch(NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid size "+value);
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Execution of the console commands on worker threads, so that the console stays responsive.<br>
+ * The foreground command writes directly to the console and can be cancelled by ctrl+c: its thread is
+ * interrupted and its remaining output is dropped. A JMX request already sent cannot be cancelled and may still
+ * complete on the server, the call timeout (--call-timeout) bounds the time its thread stays blocked.<br>
+ * A command ending with '&amp;' is a background job: its output is captured and printed when it completes.
+ * Several jobs run concurrently over the shared connection.
+ * <pre>
+ * jobs           list the running jobs
+ * kill %N        cancel the job N
+ * </pre>
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Jobs {
+
+	/** exit code of a cancelled command */
+	public static final int CANCELLED = 130;
+
+	final JConnect jconnect;
+	final Logger logger;
+	final ExecutorService executor;
+	final Map<Integer, Job> jobs = new ConcurrentSkipListMap<>();
+	final AtomicInteger ids = new AtomicInteger();
+	final Consumer<String> printer;
+	private volatile Job foreground = null;
+
+	/**
+	 * A command running on a worker thread.
+	 */
+	static class Job {
+		final int id;
+		final String command;
+		final long start = System.currentTimeMillis();
+		final CommandOutput output;
+		Future<Integer> future;
+
+		Job(int id, String command, CommandOutput output) {
+			this.id = id;
+			this.command = command;
+			this.output = output;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("[%d] %-8s %8.1fs  %s", id, future.isDone() ? "done" : "running",
+					(System.currentTimeMillis() - start) / 1000.0, command);
+		}
+	}
+
+	/**
+	 * @param jconnect the connected JConnect executing the commands
+	 * @param printer prints the output of the completed jobs without breaking the line being typed
+	 */
+	public Jobs(JConnect jconnect, Consumer<String> printer) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.printer = printer;
+		AtomicInteger count = new AtomicInteger();
+		this.executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "jconnect-command-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * Execute a command in the foreground and wait for its end or its cancellation.
+	 * @param line the command line as typed
+	 * @param cmd the arguments of the command
+	 * @return the exit code of the command, {@value #CANCELLED} if cancelled
+	 */
+	public int runForeground(String line, String[] cmd) {
+		Job job = new Job(0, line, CommandOutput.create(true));
+		job.future = executor.submit(() -> execute(job, cmd));
+		foreground = job;
+		try {
+			return job.future.get();
+		}
+		catch(CancellationException e) {
+			System.err.println("Cancelled: "+line);
+			return CANCELLED;
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cancel(job);
+			return CANCELLED;
+		}
+		catch(ExecutionException e) {
+			logger.error("Unexpected failure of "+line, e.getCause());
+			System.err.println("Unexpected failure: "+e.getCause());
+			return 5;
+		}
+		finally {
+			foreground = null;
+		}
+	}
+
+	/**
+	 * Cancel the foreground command, if any. Called by the ctrl+c handler.
+	 */
+	public void cancelForeground() {
+		Job job = foreground;
+		if(job != null)
+			cancel(job);
+	}
+
+	/**
+	 * Execute a command in the background.
+	 * @param line the command line as typed, without the '&amp;'
+	 * @param cmd the arguments of the command
+	 */
+	public void submit(String line, String[] cmd) {
+		Job job = new Job(ids.incrementAndGet(), line, CommandOutput.create(false));
+		jobs.put(job.id, job);
+		job.future = executor.submit(() -> {
+			int code = execute(job, cmd);
+			if(jobs.remove(job.id) != null)
+				printer.accept(String.format("[%d] done, exit code %d: %s%n%s", job.id, code, line, job.output.text()));
+			return code;
+		});
+		System.out.println("["+job.id+"] "+line);
+	}
+
+	/**
+	 * Print the running jobs.
+	 */
+	public void list() {
+		for(Job job : jobs.values())
+			System.out.println(job);
+	}
+
+	/**
+	 * Cancel a background job.
+	 * @param id the number of the job, with or without %
+	 * @return false if there is no such job
+	 */
+	public boolean kill(String id) {
+		Job job;
+		try {
+			job = jobs.remove(Integer.parseInt(id.startsWith("%") ? id.substring(1) : id));
+		}
+		catch(NumberFormatException e) {
+			return false;
+		}
+		if(job == null)
+			return false;
+		cancel(job);
+		System.out.println("["+job.id+"] cancelled: "+job.command);
+		return true;
+	}
+
+	/**
+	 * Cancel all the commands and stop the workers.
+	 */
+	public void close() {
+		for(Job job : jobs.values())
+			cancel(job);
+		executor.shutdownNow();
+	}
+
+	private void cancel(Job job) {
+		job.output.discard();
+		job.future.cancel(true);
+	}
+
+	private int execute(Job job, String[] cmd) {
+		job.output.attach();
+		try {
+			jconnect.executeCommand(cmd);
+			return jconnect.getExitCode();
+		}
+		catch(IOException e) {
+			// the connection has been reopened but the command has not been retried
+			logger.warn("Command interrupted by a connection failure.", e);
+			System.err.println(e.getMessage());
+			return 1;
+		}
+		finally {
+			CommandOutput.end();
+		}
+	}
+}
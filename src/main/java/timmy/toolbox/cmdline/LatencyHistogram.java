@@ -0,0 +1,133 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, in the spirit of HdrHistogram.<br>
+ * The latencies are recorded in microseconds: exactly up to 64us, and then in 32 buckets per power of two,
+ * i.e. with a relative error below 3.2%, up to 2^41us (25 days). Recording is a few atomic increments
+ * without allocation, the percentiles are computed on demand from a consistent enough snapshot.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class LatencyHistogram {
+
+	private static final int LINEAR = 64;
+	private static final int SUB_BUCKETS = 32;
+	private static final int MAX_EXPONENT = 40;
+	private static final int SIZE = LINEAR + (MAX_EXPONENT - 5) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(SIZE);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Record a latency.
+	 * @param nanos the latency in nanoseconds
+	 */
+	public void record(long nanos) {
+		long micros = Math.max(0, nanos / 1000);
+		counts.incrementAndGet(index(micros));
+		count.increment();
+		sum.add(micros);
+		long current;
+		while(micros > (current = max.get()) && !max.compareAndSet(current, micros))
+			;
+	}
+
+	static int index(long micros) {
+		if(micros < LINEAR)
+			return (int) micros;
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if(exponent > MAX_EXPONENT)
+			return SIZE - 1;
+		int shift = exponent - 5;
+		return LINEAR + (exponent - 6) * SUB_BUCKETS + (int) ((micros >> shift) - SUB_BUCKETS);
+	}
+
+	/**
+	 * @return the highest latency of a bucket, in microseconds
+	 */
+	static long upperBound(int index) {
+		if(index < LINEAR)
+			return index;
+		int exponent = (index - LINEAR) / SUB_BUCKETS + 6;
+		long sub = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+		int shift = exponent - 5;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+
+	/**
+	 * @return the mean latency in microseconds, 0 if nothing has been recorded
+	 */
+	public double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/**
+	 * @return the highest latency in microseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the latency in microseconds under which this percentage of the calls completed, 0 if nothing has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0;
+		long[] snapshot = new long[SIZE];
+		for(int i = 0; i < SIZE; i++) {
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+		if(total == 0)
+			return 0;
+
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * total));
+		long seen = 0;
+		for(int i = 0; i < SIZE; i++) {
+			seen += snapshot[i];
+			if(seen >= rank)
+				return Math.min(upperBound(i), max.get());
+		}
+		return max.get();
+	}
+
+	/**
+	 * Forget all the recorded latencies.
+	 */
+	public void reset() {
+		for(int i = 0; i < SIZE; i++)
+			counts.set(i, 0);
+		count.reset();
+		sum.reset();
+		max.set(0);
+	}
+}
@@ -0,0 +1,197 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Connection to the JVMs of the local host through the Attach API.<br>
+ * The local management agent of the target is started if needed and JConnect connects to its local connector
+ * address: no remote JMX port nor RMI registry lookup is required.<br>
+ * The Attach API is loaded by reflection: it is part of the jdk.attach module since Java 9 and of the tools.jar
+ * of the JDK in Java 8. It is not available in a JRE.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class LocalAttach {
+
+	/**
+	 * A JVM of the local host.
+	 */
+	public static class Jvm {
+		final String pid;
+		final String displayName;
+
+		Jvm(String pid, String displayName) {
+			this.pid = pid;
+			this.displayName = displayName;
+		}
+
+		/**
+		 * @return the process id of the JVM
+		 */
+		public String getPid() {
+			return pid;
+		}
+
+		/**
+		 * @return the main class or jar and the arguments of the JVM, may be empty
+		 */
+		public String getDisplayName() {
+			return displayName;
+		}
+
+		@Override
+		public String toString() {
+			return pid+" "+displayName;
+		}
+	}
+
+	private static Class<?> virtualMachine = null;
+
+	private LocalAttach() {
+	}
+
+	private static synchronized Class<?> virtualMachine() throws IOException {
+		if(virtualMachine != null)
+			return virtualMachine;
+
+		try {
+			virtualMachine = Class.forName("com.sun.tools.attach.VirtualMachine");
+		}
+		catch(ClassNotFoundException e) {
+			// Java 8: the Attach API is in the tools.jar of the JDK
+			File toolsJar = new File(System.getProperty("java.home"), ".."+File.separator+"lib"+File.separator+"tools.jar");
+			if(!toolsJar.exists())
+				throw new IOException("The Attach API is not available, a JDK is required to attach to a local JVM");
+			try {
+				@SuppressWarnings("resource") // the class loader is kept for the life of JConnect
+				URLClassLoader loader = new URLClassLoader(new URL[] { toolsJar.toURI().toURL() }, LocalAttach.class.getClassLoader());
+				virtualMachine = Class.forName("com.sun.tools.attach.VirtualMachine", true, loader);
+			}
+			catch(ClassNotFoundException | MalformedURLException e1) {
+				throw new IOException("The Attach API is not available in "+toolsJar, e1);
+			}
+		}
+		return virtualMachine;
+	}
+
+	/**
+	 * List the JVMs of the local host that can be attached by the current user.
+	 * @return the JVMs
+	 * @throws IOException if the Attach API is not available
+	 */
+	public static List<Jvm> list() throws IOException {
+		try {
+			Class<?> vmClass = virtualMachine();
+			List<Jvm> jvms = new ArrayList<>();
+			for(Object descriptor : (List<?>) vmClass.getMethod("list").invoke(null)) {
+				Class<?> descriptorClass = descriptor.getClass();
+				String pid = (String) descriptorClass.getMethod("id").invoke(descriptor);
+				String displayName = (String) descriptorClass.getMethod("displayName").invoke(descriptor);
+				jvms.add(new Jvm(pid, displayName != null ? displayName : ""));
+			}
+			return jvms;
+		}
+		catch(InvocationTargetException e) {
+			throw new IOException("Cannot list the local JVMs: "+e.getCause().getMessage(), e.getCause());
+		}
+		catch(ReflectiveOperationException e) {
+			throw new IOException("Cannot list the local JVMs: "+e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Find the process id of a local JVM from its main class or jar.
+	 * @param name the main class or jar, or a part of it
+	 * @return the pid of the only JVM matching the name
+	 * @throws IOException if no JVM or several JVMs match the name, or if the Attach API is not available
+	 */
+	public static String findPid(String name) throws IOException {
+		// the JVM of JConnect itself always matches through its arguments
+		String self = ManagementFactory.getRuntimeMXBean().getName().split("@", 2)[0];
+		List<Jvm> exact = new ArrayList<>();
+		List<Jvm> partial = new ArrayList<>();
+		for(Jvm jvm : list()) {
+			if(jvm.pid.equals(self))
+				continue;
+			String main = jvm.displayName.split(" ", 2)[0];
+			if(main.equals(name) || main.endsWith("/"+name) || main.endsWith("."+name))
+				exact.add(jvm);
+			else if(jvm.displayName.contains(name))
+				partial.add(jvm);
+		}
+
+		// an exact match of the main class or jar wins over a partial match
+		List<Jvm> matches = exact.isEmpty() ? partial : exact;
+		if(matches.isEmpty())
+			throw new IOException("No local JVM matching "+name);
+		if(matches.size() > 1) {
+			StringBuilder builder = new StringBuilder("Several local JVMs match "+name+", use --pid:");
+			for(Jvm jvm : matches)
+				builder.append(System.lineSeparator()).append(jvm);
+			throw new IOException(builder.toString());
+		}
+		return matches.get(0).pid;
+	}
+
+	/**
+	 * Attach to a local JVM and get the address of its local JMX connector, starting the local management agent if needed.
+	 * @param pid the process id of the JVM
+	 * @return the JMX service URL of the local connector
+	 * @throws IOException if the JVM cannot be attached
+	 */
+	public static String connectorAddress(String pid) throws IOException {
+		Class<?> vmClass = virtualMachine();
+		Object vm;
+		try {
+			vm = vmClass.getMethod("attach", String.class).invoke(null, pid);
+		}
+		catch(InvocationTargetException e) {
+			throw new IOException("Cannot attach to the JVM "+pid+": "+e.getCause().getMessage(), e.getCause());
+		}
+		catch(ReflectiveOperationException e) {
+			throw new IOException("Cannot attach to the JVM "+pid+": "+e.getMessage(), e);
+		}
+
+		try {
+			Method start = vmClass.getMethod("startLocalManagementAgent");
+			return (String) start.invoke(vm);
+		}
+		catch(InvocationTargetException e) {
+			throw new IOException("Cannot start the management agent of the JVM "+pid+": "+e.getCause().getMessage(), e.getCause());
+		}
+		catch(ReflectiveOperationException e) {
+			throw new IOException("Cannot start the management agent of the JVM "+pid+": "+e.getMessage(), e);
+		}
+		finally {
+			try {
+				vmClass.getMethod("detach").invoke(vm);
+			}
+			catch(ReflectiveOperationException e) {
+				// the address is known, the JVM is detached on exit anyway
+			}
+		}
+	}
+}
@@ -0,0 +1,723 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.logging.log4j.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * The serve command: expose the attributes of the beans to Prometheus.<br>
+ * <pre>
+ * serve [--metrics-port N] --rules FILE [--bind ADDRESS] [ttl=D] [deadline=D] [parallel=N]
+ * </pre>
+ * The rules file maps the beans to the metrics, one rule per line (empty lines and lines starting with # are ignored):
+ * <pre>
+ * ObjectName-pattern attribute[,attribute...]|* [name=template] [labels=key[,key...]] [type=gauge|counter|untyped] [help=text...]
+ * </pre>
+ * The name template may reference {domain}, {attr} and any key property of the bean like {type}, by default
+ * {domain}_{type}_{attr}. The key properties that are not part of the name become labels, unless labels lists them.
+ * A series is exported once: a bean whose name and labels are those of a bean already exported, typically because
+ * labels omits the key distinguishing them, is skipped with a warning.
+ * The numeric and boolean attributes are exported, the numeric items of a CompositeData as {attr}_{item}.<br>
+ * Each scrape reads the beans matching the rules, found in the bean index without any request, with one getAttributes
+ * per bean sent in parallel. The beans not read before the deadline of the scrape are missing from its response.
+ * The response is kept for the TTL and shared by the concurrent scrapes, so several scrapers cost a single collection
+ * to the JMX server. The samples are written in a reused buffer from the encoded name and labels of each series.<br>
+ * The connection is reopened without time limit while serving, jconnect_up is 0 while the server cannot be reached.
+ * The reconnect timeout of the session is restored when serve ends.<br>
+ * The endpoint is not authenticated: it listens on the loopback interface unless --bind gives another address.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class MetricsExporter {
+
+	/** default port of the HTTP endpoint */
+	public static final int DEFAULT_PORT = 9404;
+	/** default time to live of a collection in milliseconds */
+	public static final long DEFAULT_TTL = 1000;
+	/** default deadline of a collection in milliseconds */
+	public static final long DEFAULT_DEADLINE = 10000;
+	/** default number of beans read concurrently */
+	public static final int DEFAULT_PARALLELISM = 8;
+
+	static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+	static final String DEFAULT_NAME = "{domain}_{type}_{attr}";
+	private static final Pattern PLACEHOLDER = Pattern.compile("\\{([^}]+)\\}");
+
+	final JConnect jconnect;
+	final Logger logger;
+	final MBeanServerConnection mbsc;
+	int port = DEFAULT_PORT;
+	String bind = null;
+	String rulesFile = null;
+	long ttl = DEFAULT_TTL;
+	long deadline = DEFAULT_DEADLINE;
+	int parallelism = DEFAULT_PARALLELISM;
+	final List<Rule> rules;
+
+	// state of the collections, only used under the lock of the exporter
+	private Map<ObjectName, Target> targets = new HashMap<>();
+	private final Map<String, Family> families = new TreeMap<>();
+	/** the bean exporting each encoded name and labels */
+	private final Map<String, ObjectName> owners = new HashMap<>();
+	private final MetricsBuffer buffer = new MetricsBuffer(64 * 1024);
+	private ExecutorService executor = null;
+
+	// the last response, shared by the scrapes until its TTL expires
+	private volatile byte[] page = null;
+	private volatile long collected = 0;
+
+	/**
+	 * A line of the rules file.
+	 */
+	static class Rule {
+		final ObjectName pattern;
+		/** null for all the attributes */
+		final String[] attributes;
+		final String name;
+		/** null for the key properties not used by the name */
+		final String[] labels;
+		final String type;
+		final String help;
+
+		Rule(ObjectName pattern, String[] attributes, String name, String[] labels, String type, String help) {
+			this.pattern = pattern;
+			this.attributes = attributes;
+			this.name = name;
+			this.labels = labels;
+			this.type = type;
+			this.help = help;
+		}
+
+		boolean exports(String attribute) {
+			return attributes == null || Arrays.asList(attributes).contains(attribute);
+		}
+	}
+
+	/**
+	 * The samples of a metric name, in the order of the beans.
+	 */
+	static class Family {
+		final byte[] header;
+		byte[][] prefixes = new byte[16][];
+		double[] values = new double[16];
+		int size = 0;
+
+		Family(String name, Rule rule, String attribute) {
+			String help = rule.help != null ? rule.help : attribute+" of "+rule.pattern.getCanonicalName();
+			header = ("# HELP "+name+" "+help.replace("\\", "\\\\").replace("\n", "\\n")+"\n# TYPE "+name+" "+rule.type+"\n")
+					.getBytes(StandardCharsets.UTF_8);
+		}
+
+		void add(byte[] prefix, double value) {
+			if(size == values.length) {
+				prefixes = Arrays.copyOf(prefixes, size * 2);
+				values = Arrays.copyOf(values, size * 2);
+			}
+			prefixes[size] = prefix;
+			values[size++] = value;
+		}
+	}
+
+	/**
+	 * An exported attribute of a bean, with its encoded name and labels.
+	 */
+	static class Series {
+		final Rule rule;
+		final String attribute;
+		final int index;
+		/** null if another bean exports the same name and labels */
+		final Family family;
+		final byte[] prefix;
+		/** the series of the items of a CompositeData attribute */
+		Map<String, Series> items = null;
+
+		Series(Rule rule, String attribute, int index, Family family, byte[] prefix) {
+			this.rule = rule;
+			this.attribute = attribute;
+			this.index = index;
+			this.family = family;
+			this.prefix = prefix;
+		}
+	}
+
+	/**
+	 * A bean matching the rules, with the attributes read by its getAttributes.
+	 */
+	static class Target {
+		final ObjectName name;
+		final String[] attributes;
+		final List<Series> series;
+
+		Target(ObjectName name, String[] attributes, List<Series> series) {
+			this.name = name;
+			this.attributes = attributes;
+			this.series = series;
+		}
+
+		int indexOf(String attribute) {
+			for(int i = 0; i < attributes.length; i++) {
+				if(attributes[i].equals(attribute))
+					return i;
+			}
+			return -1;
+		}
+	}
+
+	/**
+	 * Parse the arguments of the serve command and load the rules.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "serve"
+	 * @throws IllegalArgumentException if the command or the rules are invalid
+	 * @throws IOException if the rules file cannot be read
+	 */
+	public MetricsExporter(JConnect jconnect, String[] cmd) throws IOException {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.mbsc = jconnect.getConnection();
+
+		for(int i = 1; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(("--metrics-port".equals(arg) || "--rules".equals(arg) || "--bind".equals(arg)) && i + 1 < cmd.length)
+				arg = arg.substring(2)+"="+cmd[++i];
+
+			if(arg.startsWith("metrics-port=") || arg.startsWith("port=")) {
+				port = parseInt(arg.substring(arg.indexOf('=')+1), arg);
+			}
+			else if(arg.startsWith("rules=")) {
+				rulesFile = arg.substring("rules=".length());
+			}
+			else if(arg.startsWith("bind=")) {
+				bind = arg.substring("bind=".length());
+			}
+			else if(arg.startsWith("ttl=")) {
+				ttl = Replay.parseDuration(arg.substring("ttl=".length()));
+			}
+			else if(arg.startsWith("deadline=")) {
+				deadline = Replay.parseDuration(arg.substring("deadline=".length()));
+			}
+			else if(arg.startsWith("parallel=")) {
+				parallelism = parseInt(arg.substring("parallel=".length()), arg);
+			}
+			else {
+				throw new IllegalArgumentException("Unexpected argument "+arg);
+			}
+		}
+		if(rulesFile == null)
+			throw new IllegalArgumentException("Missing rules file: serve --rules FILE");
+		if(port < 0 || port > 65535 || parallelism < 1 || deadline <= 0)
+			throw new IllegalArgumentException("Invalid serve command "+String.join(" ", cmd));
+
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(rulesFile), StandardCharsets.UTF_8))) {
+			rules = parseRules(reader, rulesFile);
+		}
+		if(rules.isEmpty())
+			throw new IllegalArgumentException("No rule in "+rulesFile);
+	}
+
+	private static int parseInt(String value, String arg) {
+		try {
+			return Integer.parseInt(value);
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number "+arg);
+		}
+	}
+
+	/**
+	 * Parse the rules, one per line.
+	 * @param reader the rules
+	 * @param source the name of the rules in the error messages
+	 * @return the rules in the order of the lines
+	 * @throws IOException if the rules cannot be read
+	 * @throws IllegalArgumentException if a rule is invalid
+	 */
+	static List<Rule> parseRules(BufferedReader reader, String source) throws IOException {
+		List<Rule> rules = new ArrayList<>();
+		String line;
+		int number = 0;
+		while((line = reader.readLine()) != null) {
+			number++;
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#"))
+				continue;
+
+			String help = null;
+			int helpIndex = line.indexOf(" help=");
+			if(helpIndex > 0) {
+				help = line.substring(helpIndex + " help=".length()).trim();
+				line = line.substring(0, helpIndex);
+			}
+			String[] tokens = line.split("\\s+");
+			if(tokens.length < 2)
+				throw new IllegalArgumentException(source+":"+number+": expected an ObjectName pattern and attributes");
+
+			ObjectName pattern;
+			try {
+				pattern = new ObjectName(tokens[0]);
+			}
+			catch(MalformedObjectNameException e) {
+				throw new IllegalArgumentException(source+":"+number+": invalid ObjectName pattern "+tokens[0]);
+			}
+			String[] attributes = "*".equals(tokens[1]) ? null : tokens[1].split(",");
+			String name = DEFAULT_NAME;
+			String[] labels = null;
+			String type = "untyped";
+			for(int i = 2; i < tokens.length; i++) {
+				String token = tokens[i];
+				if(token.startsWith("name="))
+					name = token.substring("name=".length());
+				else if(token.startsWith("labels="))
+					labels = token.length() > "labels=".length() ? token.substring("labels=".length()).split(",") : new String[0];
+				else if(token.startsWith("type=") && Arrays.asList("gauge", "counter", "untyped").contains(token.substring("type=".length())))
+					type = token.substring("type=".length());
+				else
+					throw new IllegalArgumentException(source+":"+number+": unexpected "+token);
+			}
+			rules.add(new Rule(pattern, attributes, name, labels, type, help));
+		}
+		return rules;
+	}
+
+	/**
+	 * Serve the metrics until the thread is interrupted.
+	 * @throws IOException if the HTTP endpoint cannot be started
+	 */
+	public void run() throws IOException {
+		// the unauthenticated endpoint is only exposed beyond the host on request
+		InetSocketAddress address = bind != null ? new InetSocketAddress(bind, port) : new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+		HttpServer server = HttpServer.create(address, 64);
+		ExecutorService http = Workers.newBoundedExecutor(4, "jconnect-http");
+		executor = Workers.newBoundedExecutor(parallelism, "jconnect-metrics");
+		server.createContext("/metrics", this::handle);
+		server.setExecutor(http);
+		server.start();
+		logger.info("Serving the metrics of {} rules on {}", rules.size(), server.getAddress());
+		System.out.println("Serving "+rules.size()+" rules on http://"+server.getAddress().getHostString()+":"+server.getAddress().getPort()+"/metrics");
+
+		// the connection is reopened without time limit while serving, the session gets its own timeout back after
+		ConnectionManager connection = jconnect.getConnectionManager();
+		long reconnectTimeout = connection != null ? connection.reconnectTimeout : 0;
+		if(connection != null)
+			connection.reconnectTimeout = Long.MAX_VALUE;
+		try {
+			new CountDownLatch(1).await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			if(connection != null)
+				connection.reconnectTimeout = reconnectTimeout;
+			server.stop(0);
+			http.shutdownNow();
+			executor.shutdownNow();
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String method = exchange.getRequestMethod();
+			if(!"GET".equals(method) && !"HEAD".equals(method)) {
+				exchange.sendResponseHeaders(405, -1);
+				return;
+			}
+			byte[] body = scrape();
+			exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+			if("HEAD".equals(method)) {
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+			exchange.sendResponseHeaders(200, body.length);
+			try(OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		}
+		catch(RuntimeException e) {
+			logger.error("Scrape failed.", e);
+			exchange.sendResponseHeaders(500, -1);
+		}
+		finally {
+			exchange.close();
+		}
+	}
+
+	/**
+	 * @return the last response if it is younger than the TTL, a new collection otherwise
+	 */
+	byte[] scrape() {
+		byte[] current = page;
+		if(current != null && System.nanoTime() - collected < TimeUnit.MILLISECONDS.toNanos(ttl))
+			return current;
+		synchronized(this) {
+			// the scrapes waiting for the lock use the response of the collection that held it
+			if(page != null && System.nanoTime() - collected < TimeUnit.MILLISECONDS.toNanos(ttl))
+				return page;
+			page = collect();
+			collected = System.nanoTime();
+			return page;
+		}
+	}
+
+	/**
+	 * Read the beans and write the response, under the lock of the exporter.
+	 */
+	private byte[] collect() {
+		long start = System.nanoTime();
+		long end = start + TimeUnit.MILLISECONDS.toNanos(deadline);
+
+		// the beans are found in the index, kept up to date by the MBeanServerDelegate notifications
+		Map<ObjectName, Target> previous = targets;
+		Map<ObjectName, Target> current = new TreeMap<>();
+		int errors = 0;
+		int timeouts = 0;
+		boolean up = connectionUp();
+		for(Rule rule : rules) {
+			for(ObjectName name : jconnect.getIndex().match(rule.pattern)) {
+				if(current.containsKey(name))
+					continue;
+				Target target = previous.get(name);
+				if(target == null) {
+					try {
+						target = plan(name);
+					}
+					catch(IOException | JMException e) {
+						logger.debug("Cannot read the attributes of "+name, e);
+						errors++;
+						up &= !(e instanceof IOException);
+						continue;
+					}
+				}
+				current.put(name, target);
+			}
+		}
+		// the series of the unregistered beans can be exported by the next ones
+		if(!current.keySet().containsAll(previous.keySet()))
+			owners.values().retainAll(current.keySet());
+		targets = current;
+
+		List<Target> reading = new ArrayList<>(current.size());
+		List<Future<AttributeList>> futures = new ArrayList<>(current.size());
+		for(Target target : current.values()) {
+			if(target.attributes.length == 0)
+				continue;
+			reading.add(target);
+			futures.add(executor.submit(() -> mbsc.getAttributes(target.name, target.attributes)));
+		}
+
+		for(Family family : families.values())
+			family.size = 0;
+		int samples = 0;
+		Object[] values = new Object[0];
+		for(int i = 0; i < futures.size(); i++) {
+			Future<AttributeList> future = futures.get(i);
+			Target target = reading.get(i);
+			AttributeList list;
+			try {
+				list = future.get(Math.max(0, end - System.nanoTime()), TimeUnit.NANOSECONDS);
+			}
+			catch(TimeoutException e) {
+				// the request cannot be cancelled, only its result is dropped
+				future.cancel(true);
+				timeouts++;
+				continue;
+			}
+			catch(ExecutionException e) {
+				logger.debug("Cannot read the attributes of "+target.name, e.getCause());
+				errors++;
+				up &= !(e.getCause() instanceof IOException);
+				continue;
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				for(int j = i; j < futures.size(); j++)
+					futures.get(j).cancel(true);
+				break;
+			}
+
+			if(values.length < target.attributes.length)
+				values = new Object[target.attributes.length];
+			Arrays.fill(values, null);
+			for(Attribute attribute : list.asList()) {
+				int index = target.indexOf(attribute.getName());
+				if(index >= 0)
+					values[index] = attribute.getValue();
+			}
+			for(Series series : target.series)
+				samples += emit(target, series, values[series.index]);
+		}
+
+		// the reads may have found the connection broken
+		up &= connectionUp();
+		buffer.reset();
+		for(Family family : families.values()) {
+			if(family.size == 0)
+				continue;
+			buffer.write(family.header);
+			for(int i = 0; i < family.size; i++) {
+				buffer.write(family.prefixes[i]);
+				buffer.writeDouble(family.values[i]);
+				buffer.write('\n');
+			}
+		}
+		writeSelf("jconnect_up", "gauge", "1 if the JMX server answered the last collection.", up ? 1 : 0);
+		writeSelf("jconnect_scrape_duration_seconds", "gauge", "Duration of the last collection.", (System.nanoTime() - start) / 1e9);
+		writeSelf("jconnect_scrape_beans", "gauge", "Number of beans matching the rules.", current.size());
+		writeSelf("jconnect_scrape_samples", "gauge", "Number of samples of the last collection.", samples);
+		writeSelf("jconnect_scrape_errors", "gauge", "Number of beans that could not be read.", errors);
+		writeSelf("jconnect_scrape_timeouts", "gauge", "Number of beans not read before the deadline.", timeouts);
+		if(timeouts > 0)
+			logger.warn("{} beans not read before the deadline of {} ms", timeouts, deadline);
+		return buffer.toByteArray();
+	}
+
+	private boolean connectionUp() {
+		ConnectionManager connection = jconnect.getConnectionManager();
+		return connection == null || !(connection.isLost() || connection.isReconnecting());
+	}
+
+	private void writeSelf(String name, String type, String help, double value) {
+		buffer.writeAscii("# HELP "+name+" "+help+"\n# TYPE "+name+" "+type+"\n"+name+" ");
+		buffer.writeDouble(value);
+		buffer.write('\n');
+	}
+
+	/**
+	 * Add the samples of an attribute to their family.
+	 * @return the number of samples
+	 */
+	private int emit(Target target, Series series, Object value) {
+		if(series.family == null)
+			return 0;
+		if(value instanceof Number) {
+			series.family.add(series.prefix, ((Number) value).doubleValue());
+			return 1;
+		}
+		if(value instanceof Boolean) {
+			series.family.add(series.prefix, ((Boolean) value) ? 1 : 0);
+			return 1;
+		}
+		if(!(value instanceof CompositeData))
+			return 0;
+
+		CompositeData data = (CompositeData) value;
+		if(series.items == null)
+			series.items = new HashMap<>();
+		int count = 0;
+		for(String key : data.getCompositeType().keySet()) {
+			Object item = data.get(key);
+			if(!(item instanceof Number) && !(item instanceof Boolean))
+				continue;
+			Series child = series.items.get(key);
+			if(child == null) {
+				child = series(target.name, series.rule, series.attribute+"_"+key, series.index);
+				series.items.put(key, child);
+			}
+			count += emit(target, child, item);
+		}
+		return count;
+	}
+
+	/**
+	 * Find the attributes of a bean exported by the rules and encode their series.
+	 */
+	private Target plan(ObjectName name) throws IOException, JMException {
+		MBeanAttributeInfo[] infos = jconnect.getIndex().getInfo(name).getAttributes();
+		Map<String, Integer> attributes = new LinkedHashMap<>();
+		List<Series> series = new ArrayList<>();
+		for(Rule rule : rules) {
+			if(!rule.pattern.apply(name))
+				continue;
+			for(MBeanAttributeInfo info : infos) {
+				String attribute = info.getName();
+				if(!info.isReadable() || !rule.exports(attribute) || attributes.containsKey(attribute))
+					continue;
+				int index = attributes.size();
+				attributes.put(attribute, index);
+				series.add(series(name, rule, attribute, index));
+			}
+		}
+		return new Target(name, attributes.keySet().toArray(new String[attributes.size()]), series);
+	}
+
+	/**
+	 * Build the series of an attribute: resolve its metric name and encode its name and labels once.
+	 */
+	private Series series(ObjectName bean, Rule rule, String attribute, int index) {
+		Map<String, String> keys = new TreeMap<>(bean.getKeyPropertyList());
+		Matcher matcher = PLACEHOLDER.matcher(rule.name);
+		StringBuffer resolved = new StringBuffer();
+		List<String> used = new ArrayList<>();
+		while(matcher.find()) {
+			String key = matcher.group(1);
+			String value = "attr".equals(key) ? attribute : "domain".equals(key) ? bean.getDomain() : keys.get(key);
+			used.add(key);
+			matcher.appendReplacement(resolved, Matcher.quoteReplacement(value != null ? value : ""));
+		}
+		matcher.appendTail(resolved);
+		String name = sanitize(resolved.toString());
+
+		StringBuilder prefix = new StringBuilder(name);
+		List<String> labels = rule.labels != null ? Arrays.asList(rule.labels) : new ArrayList<>(keys.keySet());
+		String separator = "{";
+		for(String label : labels) {
+			String value = keys.get(label);
+			if(value == null || (rule.labels == null && used.contains(label)))
+				continue;
+			prefix.append(separator).append(sanitize(label)).append("=\"").append(escapeLabel(value.startsWith("\"") ? ObjectName.unquote(value) : value)).append('"');
+			separator = ",";
+		}
+		if(!"{".equals(separator))
+			prefix.append('}');
+		prefix.append(' ');
+
+		String encoded = prefix.toString();
+		ObjectName owner = owners.putIfAbsent(encoded, bean);
+		if(owner != null && !owner.equals(bean)) {
+			logger.warn("{} of {} not exported, {} already exports {}: add the key distinguishing them to the labels of the rule",
+					attribute, bean, owner, encoded.trim());
+			return new Series(rule, attribute, index, null, null);
+		}
+
+		Family family = families.get(name);
+		if(family == null) {
+			family = new Family(name, rule, attribute);
+			families.put(name, family);
+		}
+		return new Series(rule, attribute, index, family, encoded.getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * @return a valid metric or label name: [a-zA-Z_:][a-zA-Z0-9_:]*, without repeated or trailing underscores
+	 */
+	static String sanitize(String name) {
+		String sanitized = name.replaceAll("[^a-zA-Z0-9_:]", "_").replaceAll("__+", "_").replaceAll("^_|_$", "");
+		if(sanitized.isEmpty() || Character.isDigit(sanitized.charAt(0)))
+			sanitized = "_"+sanitized;
+		return sanitized;
+	}
+
+	static String escapeLabel(String value) {
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	/**
+	 * Growable byte buffer reused by the collections, the numbers are written without intermediate strings.
+	 */
+	static class MetricsBuffer {
+		private byte[] bytes;
+		private int size = 0;
+
+		MetricsBuffer(int capacity) {
+			bytes = new byte[capacity];
+		}
+
+		void reset() {
+			size = 0;
+		}
+
+		private void ensure(int length) {
+			if(size + length > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + length));
+		}
+
+		void write(int b) {
+			ensure(1);
+			bytes[size++] = (byte) b;
+		}
+
+		void write(byte[] b) {
+			ensure(b.length);
+			System.arraycopy(b, 0, bytes, size, b.length);
+			size += b.length;
+		}
+
+		void writeAscii(String s) {
+			ensure(s.length());
+			for(int i = 0; i < s.length(); i++)
+				bytes[size++] = (byte) s.charAt(i);
+		}
+
+		void writeLong(long value) {
+			if(value == Long.MIN_VALUE) {
+				writeAscii("-9223372036854775808");
+				return;
+			}
+			ensure(20);
+			if(value < 0) {
+				bytes[size++] = '-';
+				value = -value;
+			}
+			int digits = 1;
+			for(long v = value / 10; v > 0; v /= 10)
+				digits++;
+			for(int i = size + digits - 1; i >= size; i--) {
+				bytes[i] = (byte) ('0' + value % 10);
+				value /= 10;
+			}
+			size += digits;
+		}
+
+		void writeDouble(double value) {
+			if(Double.isNaN(value))
+				writeAscii("NaN");
+			else if(Double.isInfinite(value))
+				writeAscii(value > 0 ? "+Inf" : "-Inf");
+			else if(value == Math.rint(value) && Math.abs(value) < 1e15)
+				writeLong((long) value);
+			else
+				writeAscii(Double.toString(value));
+		}
+
+		byte[] toByteArray() {
+			return Arrays.copyOf(bytes, size);
+		}
+	}
+}
@@ -0,0 +1,145 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.management.Notification;
+
+/**
+ * Bounded lock-free queue between the JMX notification callbacks and the writer thread.<br>
+ * The producers never take a lock: the capacity is enforced by an atomic counter and the overflow
+ * is handled by the configured policy. Every notification dropped is counted.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class NotificationQueue {
+
+	/** what to do when the queue is full */
+	public enum Overflow {
+		/** drop the oldest queued notification to make room */
+		DROP_OLDEST,
+		/** wait for the writer, the JMX server may then lose notifications on its side */
+		BLOCK,
+		/** above half the capacity keep only one notification out of {@link NotificationQueue#SAMPLING}, drop the new ones when full */
+		SAMPLE;
+
+		/**
+		 * @param name drop-oldest, block or sample
+		 * @return the policy
+		 */
+		public static Overflow parse(String name) {
+			return valueOf(name.toUpperCase().replace('-', '_'));
+		}
+	}
+
+	/** sampling ratio of the SAMPLE policy */
+	public static final int SAMPLING = 10;
+
+	private final ConcurrentLinkedQueue<Notification> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicInteger size = new AtomicInteger();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong sampled = new AtomicLong();
+	private final int capacity;
+	private final Overflow overflow;
+	private volatile Thread consumer = null;
+
+	/**
+	 * @param capacity the maximum number of queued notifications
+	 * @param overflow the overflow policy
+	 */
+	public NotificationQueue(int capacity, Overflow overflow) {
+		this.capacity = Math.max(1, capacity);
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Queue a notification, applying the overflow policy.
+	 * @param notification the notification
+	 */
+	public void offer(Notification notification) {
+		if(overflow == Overflow.SAMPLE && size.get() >= capacity / 2 && sampled.incrementAndGet() % SAMPLING != 0) {
+			dropped.incrementAndGet();
+			return;
+		}
+
+		while(true) {
+			int current = size.get();
+			if(current < capacity) {
+				if(size.compareAndSet(current, current + 1))
+					break;
+				continue;
+			}
+
+			if(overflow == Overflow.DROP_OLDEST) {
+				if(queue.poll() != null) {
+					size.decrementAndGet();
+					dropped.incrementAndGet();
+				}
+			}
+			else if(overflow == Overflow.BLOCK) {
+				wakeUp();
+				LockSupport.parkNanos(100_000);
+			}
+			else {
+				dropped.incrementAndGet();
+				return;
+			}
+		}
+
+		queue.offer(notification);
+		wakeUp();
+	}
+
+	private void wakeUp() {
+		Thread thread = consumer;
+		if(thread != null)
+			LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Take the next notification, waiting at most the given time. Must be called by a single consumer thread.
+	 * @param nanos the maximum waiting time in nanoseconds
+	 * @return the notification or null if none arrived in time
+	 */
+	public Notification poll(long nanos) {
+		consumer = Thread.currentThread();
+		Notification notification = queue.poll();
+		if(notification == null) {
+			LockSupport.parkNanos(this, nanos);
+			notification = queue.poll();
+		}
+		if(notification != null)
+			size.decrementAndGet();
+		return notification;
+	}
+
+	/**
+	 * @return the number of queued notifications
+	 */
+	public int size() {
+		return size.get();
+	}
+
+	/**
+	 * @return the number of notifications dropped by the overflow policy
+	 */
+	public long dropped() {
+		return dropped.get();
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanParameterInfo;
+
+/**
+ * Dispatch table of the operations of a bean, built once from its MBeanInfo.<br>
+ * The operations are indexed by name and number of arguments, and each parameter has its converter resolved
+ * from the {@link Converters} registry. A call is then resolved without scanning the MBeanInfo nor looking up
+ * the types.<br>
+ * Overloads with the same number of arguments are tried from the most specific signature to the least specific
+ * one (arrays, then String and Object parameters last): the first one whose arguments are all converted is called.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class OperationTable {
+
+	/**
+	 * An operation with its pre-resolved signature and converters.
+	 */
+	public static class Dispatch {
+		final MBeanOperationInfo operation;
+		final String[] signature;
+		final Converters.Converter[] converters;
+		final int weakness;
+
+		Dispatch(MBeanOperationInfo operation) {
+			this.operation = operation;
+			MBeanParameterInfo[] params = operation.getSignature();
+			this.signature = new String[params.length];
+			this.converters = new Converters.Converter[params.length];
+			int weak = 0;
+			for(int i = 0; i < params.length; i++) {
+				signature[i] = params[i].getType();
+				converters[i] = Converters.forFeature(params[i].getType(), params[i].getDescriptor());
+				// a single value is also a valid array of one element, prefer the scalar overloads
+				if("java.lang.String".equals(signature[i]) || "java.lang.Object".equals(signature[i]))
+					weak += 2;
+				else if(signature[i].startsWith("["))
+					weak++;
+			}
+			this.weakness = weak;
+		}
+
+		/**
+		 * @return the operation
+		 */
+		public MBeanOperationInfo getOperation() {
+			return operation;
+		}
+
+		/**
+		 * @return the class names of the parameters, as expected by invoke
+		 */
+		public String[] getSignature() {
+			return signature;
+		}
+
+		/**
+		 * @return the type of the first parameter that cannot be converted, null if the operation is callable
+		 */
+		public String getUnsupportedType() {
+			for(int i = 0; i < converters.length; i++) {
+				if(converters[i] == null)
+					return signature[i];
+			}
+			return null;
+		}
+
+		/**
+		 * Convert the arguments of the command line.
+		 * @param args the arguments
+		 * @param offset the index of the first argument of the operation
+		 * @return the converted parameters
+		 * @throws IllegalArgumentException if an argument cannot be converted
+		 */
+		public Object[] convert(String[] args, int offset) {
+			Object[] params = new Object[converters.length];
+			for(int i = 0; i < converters.length; i++) {
+				if(converters[i] == null)
+					throw new IllegalArgumentException("Cannot call a method using the non primitive data type "+signature[i]);
+				try {
+					params[i] = converters[i].convert(args[offset+i]);
+				}
+				catch(IllegalArgumentException e) {
+					throw new IllegalArgumentException("Invalid argument "+args[offset+i]+" for the parameter "+operation.getSignature()[i].getName()+" of type "+signature[i]+(e.getMessage() != null ? ": "+e.getMessage() : ""));
+				}
+			}
+			return params;
+		}
+	}
+
+	/**
+	 * An operation ready to be invoked.
+	 */
+	public static class Call {
+		final Dispatch dispatch;
+		final Object[] params;
+
+		Call(Dispatch dispatch, Object[] params) {
+			this.dispatch = dispatch;
+			this.params = params;
+		}
+
+		/**
+		 * @return the called operation
+		 */
+		public Dispatch getDispatch() {
+			return dispatch;
+		}
+
+		/**
+		 * @return the converted parameters
+		 */
+		public Object[] getParams() {
+			return params;
+		}
+	}
+
+	private final Map<String, Map<Integer, List<Dispatch>>> operations = new HashMap<>();
+
+	/**
+	 * @param info the MBeanInfo of the bean
+	 */
+	public OperationTable(MBeanInfo info) {
+		for(MBeanOperationInfo operation : info.getOperations()) {
+			operations.computeIfAbsent(operation.getName(), k -> new HashMap<>())
+				.computeIfAbsent(operation.getSignature().length, k -> new ArrayList<>())
+				.add(new Dispatch(operation));
+		}
+		for(Map<Integer, List<Dispatch>> overloads : operations.values()) {
+			for(List<Dispatch> dispatches : overloads.values())
+				dispatches.sort((a, b) -> Integer.compare(a.weakness, b.weakness));
+		}
+	}
+
+	/**
+	 * @param name the name of an operation
+	 * @return true if the bean has an operation with this name
+	 */
+	public boolean contains(String name) {
+		return operations.containsKey(name);
+	}
+
+	/**
+	 * @param name the name of an operation
+	 * @param arity the number of arguments
+	 * @return the overloads of the operation with this number of arguments, most specific first. Never null but may be empty.
+	 */
+	public List<Dispatch> get(String name, int arity) {
+		Map<Integer, List<Dispatch>> overloads = operations.get(name);
+		if(overloads == null)
+			return Collections.emptyList();
+		List<Dispatch> dispatches = overloads.get(arity);
+		return dispatches != null ? dispatches : Collections.emptyList();
+	}
+
+	/**
+	 * Resolve the operation called by the command line.
+	 * @param name the name of the operation
+	 * @param args the arguments of the command line
+	 * @param offset the index of the first argument of the operation
+	 * @return the call, null if the bean has no operation with this name and number of arguments
+	 * @throws IllegalArgumentException if no overload accepts the arguments, with the error of the most specific one
+	 */
+	public Call resolve(String name, String[] args, int offset) {
+		List<Dispatch> dispatches = get(name, args.length - offset);
+		IllegalArgumentException error = null;
+		for(Dispatch dispatch : dispatches) {
+			try {
+				return new Call(dispatch, dispatch.convert(args, offset));
+			}
+			catch(IllegalArgumentException e) {
+				if(error == null)
+					error = e;
+			}
+		}
+		if(error != null)
+			throw error;
+		return null;
+	}
+}
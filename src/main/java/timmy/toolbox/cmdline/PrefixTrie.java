@@ -0,0 +1,180 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Case insensitive prefix trie of names.<br>
+ * Each node keeps its children in sorted primitive arrays, so the lookup of a prefix only walks
+ * the characters of the prefix and then collects the names below the node.
+ * Names differing only by their case share the same node.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class PrefixTrie {
+
+	private static final char[] NO_KEYS = new char[0];
+	private static final Node[] NO_CHILDREN = new Node[0];
+
+	static final class Node {
+		char[] keys = NO_KEYS;
+		Node[] children = NO_CHILDREN;
+		String[] values = null;
+
+		Node child(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			return i < 0 ? null : children[i];
+		}
+
+		Node getOrCreate(char c) {
+			int i = Arrays.binarySearch(keys, c);
+			if(i >= 0)
+				return children[i];
+
+			i = -i - 1;
+			char[] newKeys = new char[keys.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(keys, 0, newKeys, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			newKeys[i] = c;
+			newChildren[i] = new Node();
+			System.arraycopy(keys, i, newKeys, i + 1, keys.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+			keys = newKeys;
+			children = newChildren;
+			return newChildren[i];
+		}
+	}
+
+	private final Node root = new Node();
+	private int size = 0;
+
+	/**
+	 * Add a name. Does nothing if already present.
+	 * @param name the name
+	 */
+	public synchronized void add(String name) {
+		Node node = root;
+		for(int i = 0; i < name.length(); i++)
+			node = node.getOrCreate(Character.toLowerCase(name.charAt(i)));
+
+		if(node.values == null) {
+			node.values = new String[] { name };
+		}
+		else {
+			for(String value : node.values) {
+				if(value.equals(name))
+					return;
+			}
+			node.values = Arrays.copyOf(node.values, node.values.length + 1);
+			node.values[node.values.length - 1] = name;
+		}
+		size++;
+	}
+
+	/**
+	 * Remove a name. Does nothing if absent.
+	 * @param name the name
+	 */
+	public synchronized void remove(String name) {
+		Node node = root;
+		for(int i = 0; i < name.length() && node != null; i++)
+			node = node.child(Character.toLowerCase(name.charAt(i)));
+		if(node == null || node.values == null)
+			return;
+
+		for(int i = 0; i < node.values.length; i++) {
+			if(node.values[i].equals(name)) {
+				String[] values = new String[node.values.length - 1];
+				System.arraycopy(node.values, 0, values, 0, i);
+				System.arraycopy(node.values, i + 1, values, i, values.length - i);
+				node.values = values.length == 0 ? null : values;
+				size--;
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Remove all the names.
+	 */
+	public synchronized void clear() {
+		root.keys = NO_KEYS;
+		root.children = NO_CHILDREN;
+		root.values = null;
+		size = 0;
+	}
+
+	/**
+	 * @return the number of names
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Find the names starting with a prefix, ignoring the case.
+	 * @param prefix the prefix, empty for all the names
+	 * @return the names in case insensitive order
+	 */
+	public synchronized List<String> startingWith(String prefix) {
+		Node node = root;
+		for(int i = 0; i < prefix.length() && node != null; i++)
+			node = node.child(Character.toLowerCase(prefix.charAt(i)));
+
+		List<String> result = new ArrayList<>();
+		if(node != null)
+			collect(node, result);
+		return result;
+	}
+
+	/**
+	 * Find the names containing a string, ignoring the case.
+	 * @param part the string to look for
+	 * @return the names in case insensitive order
+	 */
+	public synchronized List<String> containing(String part) {
+		List<String> result = new ArrayList<>();
+		if(part.isEmpty()) {
+			collect(root, result);
+			return result;
+		}
+		contains(root, new StringBuilder(), part.toLowerCase(), result);
+		return result;
+	}
+
+	private static void collect(Node node, List<String> result) {
+		if(node.values != null)
+			result.addAll(Arrays.asList(node.values));
+		for(Node child : node.children)
+			collect(child, result);
+	}
+
+	private static void contains(Node node, StringBuilder path, String part, List<String> result) {
+		if(path.length() >= part.length() && path.indexOf(part, path.length() - part.length()) >= 0) {
+			// every name below this node contains the string
+			collect(node, result);
+			return;
+		}
+		for(int i = 0; i < node.keys.length; i++) {
+			path.append(node.keys[i]);
+			contains(node.children[i], path, part, result);
+			path.setLength(path.length() - 1);
+		}
+	}
+}
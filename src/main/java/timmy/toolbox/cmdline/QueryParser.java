@@ -0,0 +1,251 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.Query;
+import javax.management.QueryExp;
+import javax.management.ValueExp;
+
+/**
+ * Compile the arguments of the query command into an ObjectName pattern and a {@link QueryExp}.<br>
+ * Both are given to queryNames so that the filtering runs inside the target JVM and only the matching names
+ * are sent back.
+ * <pre>
+ * query [ObjectName pattern] [where condition]
+ *
+ * condition:  condition or condition | condition and condition | not condition | ( condition )
+ *             attribute = | != | &lt; | &lt;= | &gt; | &gt;= value
+ *             attribute like 'wildcard'          (* and ? as in ObjectName patterns)
+ *             attribute in (value, value...)
+ *             attribute between value and value
+ * value:      number, true, false, 'string' or "string"
+ * </pre>
+ * Keywords are case insensitive. The beans that do not have the attribute do not match.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class QueryParser {
+
+	final ObjectName pattern;
+	final QueryExp query;
+
+	private final List<String> tokens;
+	private int position = 0;
+
+	/**
+	 * @param defaultPattern the pattern used when the arguments do not start with one
+	 * @param args the arguments of the command, as typed
+	 * @throws IllegalArgumentException if the pattern or the condition is invalid
+	 */
+	public QueryParser(ObjectName defaultPattern, String[] args) {
+		this.tokens = tokenize(String.join(" ", args));
+
+		if(position < tokens.size() && !"where".equalsIgnoreCase(tokens.get(position))) {
+			String text = unquote(tokens.get(position++));
+			try {
+				pattern = new ObjectName(text);
+			}
+			catch(MalformedObjectNameException e) {
+				throw new IllegalArgumentException("Invalid ObjectName pattern "+text+": "+e.getMessage());
+			}
+		}
+		else {
+			pattern = defaultPattern;
+		}
+
+		if(position < tokens.size()) {
+			expect("where");
+			query = or();
+			if(position < tokens.size())
+				throw new IllegalArgumentException("Unexpected "+tokens.get(position)+" in the query condition");
+		}
+		else {
+			query = null;
+		}
+	}
+
+	/**
+	 * @return the ObjectName pattern of the query
+	 */
+	public ObjectName getPattern() {
+		return pattern;
+	}
+
+	/**
+	 * @return the condition of the query, null if there is none
+	 */
+	public QueryExp getQuery() {
+		return query;
+	}
+
+	private QueryExp or() {
+		QueryExp left = and();
+		while(accept("or"))
+			left = Query.or(left, and());
+		return left;
+	}
+
+	private QueryExp and() {
+		QueryExp left = not();
+		while(accept("and"))
+			left = Query.and(left, not());
+		return left;
+	}
+
+	private QueryExp not() {
+		if(accept("not"))
+			return Query.not(not());
+		if(accept("(")) {
+			QueryExp inner = or();
+			expect(")");
+			return inner;
+		}
+		return comparison();
+	}
+
+	private QueryExp comparison() {
+		String name = next("attribute name");
+		if(isSymbol(name))
+			throw new IllegalArgumentException("Expected an attribute name instead of "+name);
+		ValueExp attr = Query.attr(name);
+
+		String operator = next("operator").toLowerCase();
+		switch(operator) {
+		case "=":
+		case "==":
+			return Query.eq(attr, value());
+		case "!=":
+		case "<>":
+			return Query.not(Query.eq(attr, value()));
+		case "<":
+			return Query.lt(attr, value());
+		case "<=":
+			return Query.leq(attr, value());
+		case ">":
+			return Query.gt(attr, value());
+		case ">=":
+			return Query.geq(attr, value());
+		case "like":
+			return Query.match(Query.attr(name), Query.value(unquote(next("wildcard"))));
+		case "in":
+			expect("(");
+			List<ValueExp> values = new ArrayList<>();
+			do {
+				values.add(value());
+			} while(accept(","));
+			expect(")");
+			return Query.in(attr, values.toArray(new ValueExp[values.size()]));
+		case "between":
+			ValueExp low = value();
+			expect("and");
+			return Query.between(attr, low, value());
+		default:
+			throw new IllegalArgumentException("Unknown operator "+operator+" after "+name);
+		}
+	}
+
+	private ValueExp value() {
+		String token = next("value");
+		if(token.startsWith("'") || token.startsWith("\""))
+			return Query.value(unquote(token));
+		if("true".equalsIgnoreCase(token) || "false".equalsIgnoreCase(token))
+			return Query.value(Boolean.parseBoolean(token));
+		try {
+			if(token.indexOf('.') == -1 && token.indexOf('e') == -1 && token.indexOf('E') == -1)
+				return Query.value(Long.parseLong(token));
+			return Query.value(Double.parseDouble(token));
+		}
+		catch(NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid value "+token+", strings must be quoted");
+		}
+	}
+
+	private String next(String expected) {
+		if(position >= tokens.size())
+			throw new IllegalArgumentException("Missing "+expected+" at the end of the query condition");
+		return tokens.get(position++);
+	}
+
+	private boolean accept(String keyword) {
+		if(position < tokens.size() && keyword.equalsIgnoreCase(tokens.get(position))) {
+			position++;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(String keyword) {
+		if(!accept(keyword))
+			throw new IllegalArgumentException("Expected "+keyword+(position < tokens.size() ? " instead of "+tokens.get(position) : " at the end of the query"));
+	}
+
+	private static boolean isSymbol(String token) {
+		return "(".equals(token) || ")".equals(token) || ",".equals(token);
+	}
+
+	private static String unquote(String token) {
+		if(token.length() >= 2 && (token.charAt(0) == '\'' || token.charAt(0) == '"') && token.charAt(token.length()-1) == token.charAt(0))
+			return token.substring(1, token.length()-1);
+		return token;
+	}
+
+	/**
+	 * Split the query into quoted strings, parentheses, commas, comparison operators and words.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> result = new ArrayList<>();
+		int i = 0;
+		while(i < text.length()) {
+			char c = text.charAt(i);
+			if(Character.isWhitespace(c)) {
+				i++;
+			}
+			else if(c == '\'' || c == '"') {
+				int end = text.indexOf(c, i+1);
+				if(end == -1)
+					throw new IllegalArgumentException("Unterminated string "+text.substring(i));
+				result.add(text.substring(i, end+1));
+				i = end+1;
+			}
+			else if(c == '(' || c == ')' || c == ',') {
+				result.add(String.valueOf(c));
+				i++;
+			}
+			else if(c == '<' || c == '>' || c == '=' || c == '!') {
+				int end = i+1;
+				while(end < text.length() && "<>=!".indexOf(text.charAt(end)) != -1)
+					end++;
+				result.add(text.substring(i, end));
+				i = end;
+			}
+			else {
+				// the unquoted pattern is the first token, it may contain '=' and ','
+				int end = i;
+				boolean pattern = result.isEmpty();
+				while(end < text.length() && !Character.isWhitespace(text.charAt(end))
+						&& (pattern || "()<>=!,'\"".indexOf(text.charAt(end)) == -1))
+					end++;
+				result.add(text.substring(i, end));
+				i = end;
+			}
+		}
+		return result;
+	}
+}
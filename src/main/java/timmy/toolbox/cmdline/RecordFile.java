@@ -0,0 +1,402 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fixed size ring of samples in a memory-mapped file, written by the record command and read by the replay command.<br>
+ * The file is columnar: a column of timestamps and one column of 8 bytes values per series. Once the capacity is
+ * reached, each new sample replaces the oldest one, so the size of the file and the memory used do not depend on the
+ * duration of the recording.
+ * <pre>
+ * header     magic, version, header size, series count, capacity, interval, count,
+ *            oldest timestamps[2], last timestamps[2]
+ * dictionary the distinct bean and attribute names (UTF-8), then per series: bean id, attribute id, type
+ * timestamps int[capacity + 1], milliseconds since the previous sample
+ * values     long[capacity + 1] per series: the long value or the bits of the double value
+ * </pre>
+ * The timestamp of the oldest sample is kept in the header and the others are rebuilt from the deltas.
+ * Missing samples are stored as {@link Long#MIN_VALUE} in the long columns and NaN in the double columns.<br>
+ * The ring has one row more than the capacity: a new sample is written in the spare row, outside of the samples kept,
+ * and its timestamps in the copy of the header timestamps selected by the parity of the next count. The count is
+ * written last, so a sample becomes visible in a single write and a recording interrupted in the middle of an append
+ * leaves the previous samples intact. The file survives the restart of the client.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class RecordFile implements Closeable {
+
+	/** "JCREC" + version */
+	public static final long MAGIC = 0x4a43524543000002L;
+
+	/** type of the series of integer values */
+	public static final byte LONG = 1;
+	/** type of the series of floating point values */
+	public static final byte DOUBLE = 2;
+
+	/** value of the missing samples in the long columns */
+	public static final long MISSING = Long.MIN_VALUE;
+
+	private static final int HEADER_SIZE = 8;
+	private static final int SERIES = 12;
+	private static final int CAPACITY = 16;
+	private static final int INTERVAL = 24;
+	private static final int COUNT = 32;
+	private static final int OLDEST = 40;
+	private static final int LAST = 56;
+	private static final int DICTIONARY = 72;
+	private static final int PAGE = 4096;
+
+	final File file;
+	final FileChannel channel;
+	final MappedByteBuffer buffer;
+	final String[] beans;
+	final String[] attributes;
+	final byte[] types;
+	final int capacity;
+	final int rows;
+	final int valuesStart;
+	final boolean writable;
+
+	private RecordFile(File file, FileChannel channel, MappedByteBuffer buffer, String[] beans, String[] attributes, byte[] types,
+			boolean writable) {
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.beans = beans;
+		this.attributes = attributes;
+		this.types = types;
+		this.capacity = buffer.getInt(CAPACITY);
+		this.rows = capacity + 1;
+		this.valuesStart = buffer.getInt(HEADER_SIZE) + align8(4L * rows);
+		this.writable = writable;
+	}
+
+	private static int align8(long size) {
+		return (int) ((size + 7) & ~7L);
+	}
+
+	/**
+	 * Create a new record file, replacing the existing one.
+	 * @param file the file
+	 * @param beans the canonical names of the beans of the series
+	 * @param attributes the attributes of the series
+	 * @param types the types of the series
+	 * @param capacity the number of samples kept
+	 * @param interval the sampling interval in milliseconds
+	 * @return the file open for writing
+	 * @throws IOException if the file cannot be created
+	 * @throws IllegalArgumentException if the file would be too large
+	 */
+	public static RecordFile create(File file, String[] beans, String[] attributes, byte[] types, int capacity, long interval) throws IOException {
+		if(capacity < 2)
+			throw new IllegalArgumentException("The capacity must be at least 2 samples");
+
+		// dictionary of the distinct names
+		Map<String, Integer> ids = new LinkedHashMap<>();
+		for(int s = 0; s < beans.length; s++) {
+			ids.putIfAbsent(beans[s], ids.size());
+			ids.putIfAbsent(attributes[s], ids.size());
+		}
+		List<byte[]> strings = new ArrayList<>();
+		int dictionarySize = 4;
+		for(String text : ids.keySet()) {
+			byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+			if(bytes.length > 0xffff)
+				throw new IllegalArgumentException("Name too long: "+text.substring(0, 64)+"...");
+			strings.add(bytes);
+			dictionarySize += 2 + bytes.length;
+		}
+		dictionarySize += 9 * beans.length;
+
+		long headerSize = ((long) DICTIONARY + dictionarySize + PAGE - 1) / PAGE * PAGE;
+		long size = headerSize + align8(4L * (capacity + 1)) + 8L * (capacity + 1) * beans.length;
+		if(size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Record file of "+(size >> 20)+" MB too large, reduce the capacity or the number of series");
+
+		file.delete();
+		try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			raf.setLength(size);
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		FileChannel channel = raf.getChannel();
+		MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+		buffer.putInt(HEADER_SIZE, (int) headerSize);
+		buffer.putInt(SERIES, beans.length);
+		buffer.putInt(CAPACITY, capacity);
+		buffer.putLong(INTERVAL, interval);
+		buffer.putLong(COUNT, 0);
+		ByteBuffer dictionary = (ByteBuffer) buffer.duplicate().position(DICTIONARY);
+		dictionary.putInt(strings.size());
+		for(byte[] bytes : strings) {
+			dictionary.putShort((short) bytes.length);
+			dictionary.put(bytes);
+		}
+		for(int s = 0; s < beans.length; s++) {
+			dictionary.putInt(ids.get(beans[s]));
+			dictionary.putInt(ids.get(attributes[s]));
+			dictionary.put(types[s]);
+		}
+		// the magic is written last: a file interrupted during its creation is not valid
+		buffer.putLong(0, MAGIC);
+		return new RecordFile(file, channel, buffer, beans.clone(), attributes.clone(), types.clone(), true);
+	}
+
+	/**
+	 * Open an existing record file.
+	 * @param file the file
+	 * @param writable true to append samples
+	 * @return the open file
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException if the file is not a record file
+	 */
+	public static RecordFile open(File file, boolean writable) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+		FileChannel channel = raf.getChannel();
+		try {
+			long size = channel.size();
+			if(size < DICTIONARY || size > Integer.MAX_VALUE)
+				throw new IllegalArgumentException(file+" is not a record file");
+			MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+			if(buffer.getLong(0) != MAGIC)
+				throw new IllegalArgumentException(file+" is not a record file");
+
+			int series = buffer.getInt(SERIES);
+			int capacity = buffer.getInt(CAPACITY);
+			long expected = buffer.getInt(HEADER_SIZE) + align8(4L * (capacity + 1)) + 8L * (capacity + 1) * series;
+			if(expected != size)
+				throw new IllegalArgumentException(file+" is truncated");
+
+			ByteBuffer dictionary = (ByteBuffer) buffer.duplicate().position(DICTIONARY);
+			String[] strings = new String[dictionary.getInt()];
+			for(int i = 0; i < strings.length; i++) {
+				byte[] bytes = new byte[dictionary.getShort() & 0xffff];
+				dictionary.get(bytes);
+				strings[i] = new String(bytes, StandardCharsets.UTF_8);
+			}
+			String[] beans = new String[series];
+			String[] attributes = new String[series];
+			byte[] types = new byte[series];
+			for(int s = 0; s < series; s++) {
+				beans[s] = strings[dictionary.getInt()];
+				attributes[s] = strings[dictionary.getInt()];
+				types[s] = dictionary.get();
+			}
+			return new RecordFile(file, channel, buffer, beans, attributes, types, writable);
+		}
+		catch(IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the number of series
+	 */
+	public int getSeriesCount() {
+		return types.length;
+	}
+
+	/**
+	 * @param series the index of the series
+	 * @return the canonical name of the bean of the series
+	 */
+	public String getBean(int series) {
+		return beans[series];
+	}
+
+	/**
+	 * @param series the index of the series
+	 * @return the attribute of the series
+	 */
+	public String getAttribute(int series) {
+		return attributes[series];
+	}
+
+	/**
+	 * @param series the index of the series
+	 * @return {@link #LONG} or {@link #DOUBLE}
+	 */
+	public byte getType(int series) {
+		return types[series];
+	}
+
+	/**
+	 * @return the maximum number of samples kept
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return the sampling interval in milliseconds
+	 */
+	public long getInterval() {
+		return buffer.getLong(INTERVAL);
+	}
+
+	/**
+	 * @param interval the sampling interval in milliseconds
+	 */
+	public void setInterval(long interval) {
+		buffer.putLong(INTERVAL, interval);
+	}
+
+	/**
+	 * @return the number of samples written since the creation of the file
+	 */
+	public long getCount() {
+		return buffer.getLong(COUNT);
+	}
+
+	/**
+	 * @return the number of samples kept
+	 */
+	public int size() {
+		return (int) Math.min(getCount(), capacity);
+	}
+
+	/**
+	 * @return the timestamp of the oldest sample kept
+	 */
+	public long getOldestTimestamp() {
+		return buffer.getLong(OLDEST + 8 * (int) (getCount() & 1));
+	}
+
+	/**
+	 * @return the timestamp of the last sample
+	 */
+	public long getLastTimestamp() {
+		return buffer.getLong(LAST + 8 * (int) (getCount() & 1));
+	}
+
+	/**
+	 * Append a sample, replacing the oldest one if the file is full.
+	 * @param timestamp the time of the sample in milliseconds
+	 * @param values the values of the series: the long values, or the bits of the double values
+	 * @throws IllegalStateException if the previous sample is too old to be followed by a delta
+	 */
+	public void append(long timestamp, long[] values) {
+		long count = buffer.getLong(COUNT);
+		int current = 8 * (int) (count & 1);
+		int next = 8 - current;
+		long last = buffer.getLong(LAST + current);
+		long delta = 0;
+		if(count > 0) {
+			delta = Math.max(0, timestamp - last);
+			if(delta > Integer.MAX_VALUE)
+				throw new IllegalStateException("The last sample of "+file+" is more than 24 days old, record into a new file");
+		}
+
+		int timestamps = buffer.getInt(HEADER_SIZE);
+		long oldest = count == 0 ? timestamp : buffer.getLong(OLDEST + current);
+		if(count >= capacity) {
+			// the oldest sample is dropped: the next one becomes the oldest
+			oldest += buffer.getInt(timestamps + 4 * (int) ((count - capacity + 1) % rows));
+		}
+
+		// the spare row is not part of the samples kept, and the timestamps go in the copy not in use
+		int row = (int) (count % rows);
+		buffer.putInt(timestamps + 4 * row, (int) delta);
+		for(int s = 0; s < values.length; s++)
+			buffer.putLong(valuesStart + 8 * (s * rows + row), values[s]);
+		buffer.putLong(OLDEST + next, oldest);
+		buffer.putLong(LAST + next, count == 0 ? timestamp : last + delta);
+		// publish the sample
+		buffer.putLong(COUNT, count + 1);
+	}
+
+	/**
+	 * @return a cursor over the samples kept, from the oldest to the last
+	 */
+	public Cursor cursor() {
+		return new Cursor();
+	}
+
+	/**
+	 * Sequential reader of the samples, reading the mapped file in place.
+	 */
+	public class Cursor {
+		final long start;
+		final long end;
+		final int timestamps;
+		long index;
+		long timestamp;
+		int row;
+
+		Cursor() {
+			end = getCount();
+			start = Math.max(0, end - capacity);
+			index = start;
+			timestamp = buffer.getLong(OLDEST + 8 * (int) (end & 1));
+			timestamps = buffer.getInt(HEADER_SIZE);
+		}
+
+		/**
+		 * Move to the next sample.
+		 * @return false at the end of the samples
+		 */
+		public boolean next() {
+			if(index >= end)
+				return false;
+			row = (int) (index % rows);
+			if(index > start)
+				timestamp += buffer.getInt(timestamps + 4 * row);
+			index++;
+			return true;
+		}
+
+		/**
+		 * @return the timestamp of the current sample in milliseconds
+		 */
+		public long timestamp() {
+			return timestamp;
+		}
+
+		/**
+		 * @param series the index of the series
+		 * @return the value of the series in the current sample, NaN if missing
+		 */
+		public double value(int series) {
+			long bits = buffer.getLong(valuesStart + 8 * (series * rows + row));
+			if(types[series] == DOUBLE)
+				return Double.longBitsToDouble(bits);
+			return bits == MISSING ? Double.NaN : bits;
+		}
+	}
+
+	/**
+	 * Flush the samples to the disk and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(writable)
+			buffer.force();
+		channel.close();
+	}
+}
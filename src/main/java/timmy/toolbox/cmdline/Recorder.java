@@ -0,0 +1,380 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.JMException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The record command: sample numeric attributes at a fixed rate into a {@link RecordFile}.<br>
+ * <pre>
+ * record FILE [BEAN attr[,attr...]...] [interval] [capacity=N] [samples=N]
+ * </pre>
+ * An attribute may be an item of a CompositeData attribute (HeapMemoryUsage.used). Each tick reads the attributes
+ * of each bean with a single getAttributes request. The type of each series is the one of its first value.<br>
+ * If the file already exists, the recording goes on in it: the beans and attributes may then be omitted, and must be
+ * the ones of the file otherwise. The capacity (86400 samples by default) is only used when the file is created.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Recorder {
+
+	/** default number of samples kept in a new file */
+	public static final int DEFAULT_CAPACITY = 86400;
+
+	private static final Pattern INTERVAL = Pattern.compile("(\\d+)(ms|s|m)?");
+
+	final MBeanServerConnection mbsc;
+	final Logger logger;
+	final File file;
+	final List<ObjectName> beans = new ArrayList<>();
+	final List<String[]> requests = new ArrayList<>();
+	long interval = -1;
+	long samples = 0;
+	int capacity = DEFAULT_CAPACITY;
+
+	// series: bean, position of the attribute in the request of the bean, item of the CompositeData
+	private final List<String> seriesBeans = new ArrayList<>();
+	private final List<String> seriesAttributes = new ArrayList<>();
+	private int[] seriesBean;
+	private int[] seriesRequest;
+	private String[] seriesItem;
+
+	// sampling state, only used by the scheduler thread
+	private RecordFile record;
+	private long[] values;
+	private Object[] sample;
+	private Object[][] found;
+	private long start;
+	private long ticks = 0;
+	private long written = 0;
+	private long missing = 0;
+	private volatile Exception failure = null;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Parse the arguments of the record command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "record"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public Recorder(JConnect jconnect, String[] cmd) {
+		this.mbsc = jconnect.getConnection();
+		this.logger = jconnect.logger;
+		if(cmd.length < 2)
+			throw new IllegalArgumentException("Missing record file");
+		this.file = new File(cmd[1]);
+
+		int i = 2;
+		while(i < cmd.length) {
+			String arg = cmd[i];
+			Matcher matcher = INTERVAL.matcher(arg);
+			if(matcher.matches()) {
+				interval = Long.parseLong(matcher.group(1));
+				if(matcher.group(2) == null || "s".equals(matcher.group(2)))
+					interval *= 1000;
+				else if("m".equals(matcher.group(2)))
+					interval *= 60000;
+				if(interval <= 0)
+					throw new IllegalArgumentException("Invalid interval "+arg);
+				i++;
+			}
+			else if(arg.startsWith("samples=")) {
+				samples = Long.parseLong(arg.substring("samples=".length()));
+				i++;
+			}
+			else if(arg.startsWith("capacity=")) {
+				capacity = Integer.parseInt(arg.substring("capacity=".length()));
+				i++;
+			}
+			else {
+				ObjectName name = jconnect.getIndex().getName(arg);
+				if(name == null)
+					throw new IllegalArgumentException("Invalid Bean "+arg+"!");
+				if(i+1 >= cmd.length)
+					throw new IllegalArgumentException("Missing attributes for "+arg);
+				for(String attr : StringUtils.split(cmd[i+1], ',')) {
+					seriesBeans.add(name.getCanonicalName());
+					seriesAttributes.add(attr);
+				}
+				i += 2;
+			}
+		}
+	}
+
+	/**
+	 * Record until the number of samples is reached, the thread is interrupted or the JVM stops.
+	 * @throws IOException if the JMX connection is lost or the file cannot be written
+	 */
+	public void run() throws IOException {
+		boolean resumed = file.exists() && file.length() > 0;
+		if(resumed) {
+			record = RecordFile.open(file, true);
+			List<String> fileBeans = new ArrayList<>();
+			List<String> fileAttributes = new ArrayList<>();
+			for(int s = 0; s < record.getSeriesCount(); s++) {
+				fileBeans.add(record.getBean(s));
+				fileAttributes.add(record.getAttribute(s));
+			}
+			if(!seriesBeans.isEmpty() && (!seriesBeans.equals(fileBeans) || !seriesAttributes.equals(fileAttributes))) {
+				record.close();
+				throw new IllegalArgumentException(file+" records other attributes, use a new file");
+			}
+			seriesBeans.clear();
+			seriesBeans.addAll(fileBeans);
+			seriesAttributes.clear();
+			seriesAttributes.addAll(fileAttributes);
+			if(interval > 0)
+				record.setInterval(interval);
+			interval = record.getInterval();
+		}
+		else if(seriesBeans.isEmpty()) {
+			throw new IllegalArgumentException("Missing bean and attributes to record");
+		}
+		if(interval <= 0)
+			interval = 1000;
+
+		try {
+			prepare();
+			if(!resumed) {
+				// the type of each series is the one of its first value
+				Object[] first = new Object[seriesBeans.size()];
+				for(int b = 0; b < beans.size(); b++)
+					read(b, first);
+				byte[] types = new byte[first.length];
+				for(int s = 0; s < first.length; s++) {
+					if(first[s] == null)
+						throw new IllegalArgumentException("Cannot read "+seriesAttributes.get(s)+" of "+seriesBeans.get(s));
+					if(!(first[s] instanceof Number) && !(first[s] instanceof Boolean))
+						throw new IllegalArgumentException(seriesAttributes.get(s)+" of "+seriesBeans.get(s)+" is not numeric");
+					types[s] = first[s] instanceof Double || first[s] instanceof Float ? RecordFile.DOUBLE : RecordFile.LONG;
+				}
+				record = RecordFile.create(file, seriesBeans.toArray(new String[0]), seriesAttributes.toArray(new String[0]), types, capacity, interval);
+			}
+		}
+		catch(IOException | RuntimeException e) {
+			if(record != null)
+				record.close();
+			throw e;
+		}
+
+		System.err.println(String.format("Recording %d series into %s every %d ms, %d samples kept (%s)%s", seriesBeans.size(), file, interval,
+				record.getCapacity(), Replay.formatDuration(record.getCapacity() * interval), resumed ? ", resumed after "+record.size()+" samples" : ""));
+
+		values = new long[seriesBeans.size()];
+		sample = new Object[seriesBeans.size()];
+		// flush the file even if the recording is stopped by ctrl+c
+		Thread hook = new Thread(this::close);
+		Runtime.getRuntime().addShutdownHook(hook);
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "jconnect-record");
+			thread.setDaemon(true);
+			return thread;
+		});
+		start = System.currentTimeMillis();
+		scheduler.scheduleAtFixedRate(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+		try {
+			done.await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			scheduler.shutdownNow();
+			try {
+				scheduler.awaitTermination(interval, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Runtime.getRuntime().removeShutdownHook(hook);
+			close();
+		}
+
+		System.err.println("Recorded "+written+" samples, "+missing+" missing values");
+		if(failure instanceof IOException)
+			throw (IOException) failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+	}
+
+	/**
+	 * Group the series by bean: one request per bean, with the attributes holding the composite items.
+	 */
+	private void prepare() {
+		Map<String, Integer> beanIds = new LinkedHashMap<>();
+		List<List<String>> attrs = new ArrayList<>();
+		seriesBean = new int[seriesBeans.size()];
+		seriesRequest = new int[seriesBeans.size()];
+		seriesItem = new String[seriesBeans.size()];
+		for(int s = 0; s < seriesBeans.size(); s++) {
+			String bean = seriesBeans.get(s);
+			Integer b = beanIds.get(bean);
+			if(b == null) {
+				b = beanIds.size();
+				beanIds.put(bean, b);
+				try {
+					beans.add(new ObjectName(bean));
+				}
+				catch(MalformedObjectNameException e) {
+					throw new IllegalArgumentException("Invalid bean "+bean, e);
+				}
+				attrs.add(new ArrayList<>());
+			}
+
+			String attr = seriesAttributes.get(s);
+			int dot = attr.indexOf('.');
+			if(dot > 0 && !hasAttribute(beans.get(b), attr)) {
+				seriesItem[s] = attr.substring(dot + 1);
+				attr = attr.substring(0, dot);
+			}
+			int position = attrs.get(b).indexOf(attr);
+			if(position < 0) {
+				position = attrs.get(b).size();
+				attrs.get(b).add(attr);
+			}
+			seriesBean[s] = b;
+			seriesRequest[s] = position;
+		}
+		found = new Object[attrs.size()][];
+		for(int b = 0; b < attrs.size(); b++) {
+			requests.add(attrs.get(b).toArray(new String[attrs.get(b).size()]));
+			found[b] = new Object[attrs.get(b).size()];
+		}
+	}
+
+	private boolean hasAttribute(ObjectName name, String attr) {
+		try {
+			MBeanInfo info = mbsc.getMBeanInfo(name);
+			return JConnect.findAttribute(info, attr) != null;
+		}
+		catch(JMException | IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Read the attributes of a bean into the values of its series.
+	 */
+	private void read(int b, Object[] result) throws IOException {
+		String[] attrs = requests.get(b);
+		Object[] found = this.found[b];
+		Arrays.fill(found, null);
+		try {
+			AttributeList list = mbsc.getAttributes(beans.get(b), attrs);
+			for(int a = 0; a < attrs.length; a++) {
+				// the result follows the order of the request but omits the attributes that failed
+				for(int j = Math.min(a, list.size()-1); j >= 0; j--) {
+					Attribute attr = (Attribute) list.get(j);
+					if(attr.getName().equals(attrs[a])) {
+						found[a] = attr.getValue();
+						break;
+					}
+				}
+			}
+		}
+		catch(InstanceNotFoundException | ReflectionException e) {
+			logger.warn("Cannot sample "+beans.get(b)+".", e);
+		}
+
+		for(int s = 0; s < seriesBean.length; s++) {
+			if(seriesBean[s] != b)
+				continue;
+			Object value = found[seriesRequest[s]];
+			if(seriesItem[s] != null)
+				value = value instanceof CompositeData && ((CompositeData) value).containsKey(seriesItem[s]) ? ((CompositeData) value).get(seriesItem[s]) : null;
+			result[s] = value;
+		}
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		if(now < start + ticks * interval)
+			return; // catch-up execution of a tick already skipped
+		ticks = (now - start) / interval + 1;
+
+		try {
+			for(int b = 0; b < beans.size(); b++)
+				read(b, sample);
+			for(int s = 0; s < values.length; s++) {
+				Object value = sample[s];
+				if(value instanceof Boolean)
+					value = ((Boolean) value) ? 1L : 0L;
+				if(!(value instanceof Number)) {
+					missing++;
+					values[s] = record.getType(s) == RecordFile.DOUBLE ? Double.doubleToRawLongBits(Double.NaN) : RecordFile.MISSING;
+				}
+				else if(record.getType(s) == RecordFile.DOUBLE) {
+					values[s] = Double.doubleToRawLongBits(((Number) value).doubleValue());
+				}
+				else {
+					values[s] = ((Number) value).longValue();
+				}
+			}
+			synchronized (this) {
+				if(record == null)
+					return;
+				record.append(now, values);
+			}
+			written++;
+		}
+		catch(IOException | RuntimeException e) {
+			failure = e;
+			done.countDown();
+			return;
+		}
+
+		if(samples > 0 && written >= samples)
+			done.countDown();
+	}
+
+	private synchronized void close() {
+		if(record == null)
+			return;
+		try {
+			record.close();
+		}
+		catch(IOException e) {
+			logger.warn("Cannot close "+file, e);
+		}
+		record = null;
+	}
+}
@@ -0,0 +1,366 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * The replay command: read a file written by the record command.<br>
+ * <pre>
+ * replay FILE                                  list the series of the file
+ * replay FILE SERIES [from=T] [to=T] [step=D] [csv]
+ * </pre>
+ * SERIES is the number of a series or a case insensitive part of its name (Memory.HeapMemoryUsage.used), all the
+ * matching series are reported. T is an ISO-8601 instant, a time in epoch milliseconds or a negative duration
+ * relative to the last sample (-2h). D is a duration (ms, s, m, h, d).<br>
+ * For each series, the count, minimum, mean, maximum and the 50th, 90th and 99th percentiles of the range are
+ * printed, preceded by one row per step when a step is given.<br>
+ * Everything is computed by scanning the mapped file: the percentiles are found by successive passes over a fixed
+ * number of bins narrowing the range of the value, so the memory used does not depend on the number of samples.
+ * The replay does not need a JMX connection.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Replay {
+
+	private static final Pattern DURATION = Pattern.compile("(\\d+)(ms|s|m|h|d)?");
+	private static final int BINS = 4096;
+	private static final int PASSES = 4;
+	private static final double[] PERCENTILES = { 50, 90, 99 };
+
+	final String file;
+	final String selector;
+	String from = null;
+	String to = null;
+	long step = 0;
+	boolean csv = false;
+
+	private final long[] bins = new long[BINS];
+
+	/**
+	 * Aggregates of a series over a range.
+	 */
+	static class Aggregate {
+		long count = 0;
+		double min = Double.POSITIVE_INFINITY;
+		double max = Double.NEGATIVE_INFINITY;
+		double sum = 0;
+
+		void add(double value) {
+			count++;
+			sum += value;
+			if(value < min)
+				min = value;
+			if(value > max)
+				max = value;
+		}
+
+		void reset() {
+			count = 0;
+			min = Double.POSITIVE_INFINITY;
+			max = Double.NEGATIVE_INFINITY;
+			sum = 0;
+		}
+
+		double mean() {
+			return count == 0 ? Double.NaN : sum / count;
+		}
+	}
+
+	/**
+	 * Parse the arguments of the replay command.
+	 * @param cmd the command line, cmd[0] being "replay"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public Replay(String[] cmd) {
+		if(cmd.length < 2)
+			throw new IllegalArgumentException("Usage: replay <file> [<series>] [from=<time>] [to=<time>] [step=<duration>] [csv]");
+		this.file = cmd[1];
+
+		String series = null;
+		for(int i = 2; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(arg.startsWith("from="))
+				from = arg.substring("from=".length());
+			else if(arg.startsWith("to="))
+				to = arg.substring("to=".length());
+			else if(arg.startsWith("step="))
+				step = parseDuration(arg.substring("step=".length()));
+			else if("csv".equalsIgnoreCase(arg))
+				csv = true;
+			else if(series == null)
+				series = arg;
+			else
+				throw new IllegalArgumentException("Unexpected argument "+arg);
+		}
+		this.selector = series;
+	}
+
+	/**
+	 * Print the series or the aggregates of the selected series on stdout.
+	 * @throws IOException if the file cannot be read
+	 * @throws IllegalArgumentException if the file is not a record file or a time is invalid
+	 */
+	public void run() throws IOException {
+		try (RecordFile record = RecordFile.open(new File(file), false)) {
+			if(selector == null) {
+				list(record);
+				return;
+			}
+
+			long last = record.getLastTimestamp();
+			long start = from == null ? Long.MIN_VALUE : parseTime(from, last);
+			long end = to == null ? Long.MAX_VALUE : parseTime(to, last);
+			boolean found = false;
+			if(csv)
+				System.out.println("series,time,count,min,mean,max,p50,p90,p99");
+			for(int s = 0; s < record.getSeriesCount(); s++) {
+				if(matches(record, s)) {
+					found = true;
+					report(record, s, start, end);
+				}
+			}
+			if(!found)
+				throw new IllegalArgumentException("No series matching "+selector+" in "+file);
+		}
+	}
+
+	private void list(RecordFile record) {
+		int size = record.size();
+		System.out.println(String.format("%s: %d series, %d samples of %d every %d ms", file, record.getSeriesCount(), size, record.getCapacity(),
+				record.getInterval()));
+		if(size > 0)
+			System.out.println(String.format("from %s to %s (%s)", Instant.ofEpochMilli(record.getOldestTimestamp()),
+					Instant.ofEpochMilli(record.getLastTimestamp()), formatDuration(record.getLastTimestamp() - record.getOldestTimestamp())));
+		for(int s = 0; s < record.getSeriesCount(); s++)
+			System.out.println(String.format("%4d %-6s %s", s, record.getType(s) == RecordFile.DOUBLE ? "double" : "long", label(record, s)));
+	}
+
+	private boolean matches(RecordFile record, int series) {
+		if(selector.matches("\\d+"))
+			return Integer.parseInt(selector) == series;
+		String lower = selector.toLowerCase();
+		return label(record, series).toLowerCase().contains(lower)
+				|| (record.getBean(series)+"."+record.getAttribute(series)).toLowerCase().contains(lower);
+	}
+
+	/**
+	 * @return the short name of the bean and the attribute of the series
+	 */
+	static String label(RecordFile record, int series) {
+		try {
+			return BeanIndex.shortName(new ObjectName(record.getBean(series)))+"."+record.getAttribute(series);
+		}
+		catch(MalformedObjectNameException e) {
+			return record.getBean(series)+"."+record.getAttribute(series);
+		}
+	}
+
+	private void report(RecordFile record, int series, long start, long end) {
+		String label = label(record, series);
+		Aggregate total = new Aggregate();
+		Aggregate bucket = new Aggregate();
+		long bucketStart = Long.MIN_VALUE;
+
+		RecordFile.Cursor cursor = record.cursor();
+		while(cursor.next()) {
+			long time = cursor.timestamp();
+			if(time < start)
+				continue;
+			if(time > end)
+				break;
+			double value = cursor.value(series);
+			if(Double.isNaN(value))
+				continue;
+
+			if(step > 0) {
+				if(bucketStart == Long.MIN_VALUE || time >= bucketStart + step) {
+					if(bucketStart == Long.MIN_VALUE && !csv)
+						System.out.println(String.format("%-48s %-24s %10s %14s %14s %14s", "series", "time", "count", "min", "mean", "max"));
+					if(bucket.count > 0)
+						printRow(label, Instant.ofEpochMilli(bucketStart).toString(), bucket);
+					bucket.reset();
+					// buckets aligned on the start of the range, or on the step
+					long origin = start != Long.MIN_VALUE ? start : 0;
+					bucketStart = time - Math.floorMod(time - origin, step);
+				}
+				bucket.add(value);
+			}
+			total.add(value);
+		}
+		if(bucket.count > 0)
+			printRow(label, Instant.ofEpochMilli(bucketStart).toString(), bucket);
+
+		double[] percentiles = new double[PERCENTILES.length];
+		for(int p = 0; p < PERCENTILES.length; p++)
+			percentiles[p] = total.count == 0 ? Double.NaN : percentile(record, series, start, end, total, PERCENTILES[p]);
+
+		if(csv) {
+			System.out.println(csvField(label)+",total,"+total.count+","+total.min+","+total.mean()+","+total.max+","
+					+percentiles[0]+","+percentiles[1]+","+percentiles[2]);
+		}
+		else {
+			if(total.count == 0) {
+				System.out.println(label+": no sample in the range");
+				return;
+			}
+			System.out.println(String.format("%-48s %10s %14s %14s %14s %14s %14s %14s", label, "count", "min", "mean", "max", "p50", "p90", "p99"));
+			System.out.println(String.format("%-48s %10d %14.6g %14.6g %14.6g %14.6g %14.6g %14.6g", "", total.count, total.min, total.mean(),
+					total.max, percentiles[0], percentiles[1], percentiles[2]));
+		}
+	}
+
+	private void printRow(String label, String time, Aggregate bucket) {
+		if(csv)
+			System.out.println(csvField(label)+","+time+","+bucket.count+","+bucket.min+","+bucket.mean()+","+bucket.max+",,,");
+		else
+			System.out.println(String.format("%-48s %-24s %10d %14.6g %14.6g %14.6g", label, time, bucket.count, bucket.min, bucket.mean(), bucket.max));
+	}
+
+	private static String csvField(String value) {
+		StringBuilder builder = new StringBuilder();
+		Watcher.appendCsv(builder, value);
+		return builder.toString();
+	}
+
+	/**
+	 * Find the nearest rank percentile of a series over a range.<br>
+	 * Each pass counts the values in {@value #BINS} bins over the current range of the value and keeps the bin holding
+	 * the rank. A last pass returns the smallest sample of the final bin.
+	 */
+	private double percentile(RecordFile record, int series, long start, long end, Aggregate total, double percentile) {
+		long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total.count));
+		double lo = total.min;
+		double hi = total.max;
+		boolean hiIncluded = true;
+
+		for(int pass = 0; pass < PASSES && hi > lo; pass++) {
+			Arrays.fill(bins, 0);
+			long below = 0;
+			double width = (hi - lo) / BINS;
+			RecordFile.Cursor cursor = record.cursor();
+			while(cursor.next()) {
+				long time = cursor.timestamp();
+				if(time < start)
+					continue;
+				if(time > end)
+					break;
+				double value = cursor.value(series);
+				if(Double.isNaN(value))
+					continue;
+				if(value < lo)
+					below++;
+				else if(value < hi || (hiIncluded && value == hi))
+					bins[Math.min(BINS - 1, (int) ((value - lo) / width))]++;
+			}
+
+			long count = below;
+			int bin = 0;
+			while(bin < BINS && (count += bins[bin]) < rank)
+				bin++;
+			if(bin == BINS)
+				break; // rounding at the bounds of the bins, keep the current range
+			double newLo = lo + bin * width;
+			if(bin < BINS - 1) {
+				hi = lo + (bin + 1) * width;
+				hiIncluded = false;
+			}
+			lo = newLo;
+		}
+
+		double result = Double.NaN;
+		RecordFile.Cursor cursor = record.cursor();
+		while(cursor.next()) {
+			long time = cursor.timestamp();
+			if(time < start)
+				continue;
+			if(time > end)
+				break;
+			double value = cursor.value(series);
+			if(value >= lo && (value < hi || (hiIncluded && value == hi)) && !(value >= result))
+				result = value;
+		}
+		return Double.isNaN(result) ? lo : result;
+	}
+
+	/**
+	 * Parse a time: ISO-8601 instant, epoch milliseconds or negative duration relative to a reference.
+	 * @param value the time
+	 * @param reference the reference of the relative times
+	 * @return the time in epoch milliseconds
+	 */
+	static long parseTime(String value, long reference) {
+		if(value.startsWith("-"))
+			return reference - parseDuration(value.substring(1));
+		if(value.matches("\\d+"))
+			return Long.parseLong(value);
+		try {
+			return Instant.parse(value).toEpochMilli();
+		}
+		catch(DateTimeParseException e) {
+			throw new IllegalArgumentException("Invalid time "+value);
+		}
+	}
+
+	/**
+	 * Parse a duration with the suffix ms, s (default), m, h or d.
+	 * @param value the duration
+	 * @return the duration in milliseconds
+	 */
+	static long parseDuration(String value) {
+		Matcher matcher = DURATION.matcher(value);
+		if(!matcher.matches())
+			throw new IllegalArgumentException("Invalid duration "+value);
+		long duration = Long.parseLong(matcher.group(1));
+		String unit = matcher.group(2) == null ? "s" : matcher.group(2);
+		switch(unit) {
+		case "ms": return duration;
+		case "m": return duration * 60000;
+		case "h": return duration * 3600000;
+		case "d": return duration * 86400000;
+		default: return duration * 1000;
+		}
+	}
+
+	/**
+	 * @param millis a duration in milliseconds
+	 * @return the duration in the largest units, like 1d2h or 5m30s
+	 */
+	static String formatDuration(long millis) {
+		List<String> parts = new ArrayList<>();
+		long[] units = { 86400000, 3600000, 60000, 1000 };
+		String[] names = { "d", "h", "m", "s" };
+		for(int u = 0; u < units.length && parts.size() < 2; u++) {
+			if(millis >= units[u] || (!parts.isEmpty())) {
+				long count = millis / units[u];
+				millis %= units[u];
+				if(count > 0)
+					parts.add(count+names[u]);
+			}
+		}
+		return parts.isEmpty() ? millis+"ms" : String.join("", parts);
+	}
+}
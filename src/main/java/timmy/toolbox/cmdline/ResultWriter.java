@@ -0,0 +1,408 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Array;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Streaming renderer of the results of the commands.<br>
+ * The values are walked incrementally: CompositeData, TabularData, arrays, collections and maps are written
+ * element by element to a buffered writer over stdout, the rendering of a result is never built as a whole.
+ * <ul>
+ * <li>text: the historical output, toString of the result with the &lt;br&gt; tags translated to new lines</li>
+ * <li>json: one JSON document per result</li>
+ * <li>ndjson: one JSON document per line, the rows of a TabularData and the elements of an array or
+ * a collection are written on their own line</li>
+ * <li>csv: a header and one line per row of a TabularData, per element of an array or collection of
+ * CompositeData, or per attribute. Nested values are written as JSON in their cell.</li>
+ * </ul>
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class ResultWriter {
+
+	/** output format of the results */
+	public enum Format {
+		TEXT, JSON, NDJSON, CSV;
+
+		/**
+		 * @param value the name of the format, case insensitive
+		 * @return the format
+		 * @throws IllegalArgumentException if the format is unknown
+		 */
+		public static Format parse(String value) {
+			try {
+				return valueOf(value.toUpperCase());
+			}
+			catch(IllegalArgumentException e) {
+				throw new IllegalArgumentException("Invalid output format "+value+", expected text, json, ndjson or csv");
+			}
+		}
+	}
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	final Format format;
+	final Writer out;
+	private final StringWriter cell = new StringWriter();
+
+	/**
+	 * @param format the output format
+	 * @param stream the destination, usually System.out. It is flushed but never closed.
+	 */
+	public ResultWriter(Format format, OutputStream stream) {
+		this.format = format;
+		Charset charset = format == Format.TEXT ? Charset.defaultCharset() : StandardCharsets.UTF_8;
+		this.out = new BufferedWriter(new OutputStreamWriter(stream, charset), BUFFER_SIZE);
+	}
+
+	/**
+	 * Write a result, the return value of an operation for instance.
+	 * @param value the result, may be null
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeValue(Object value) throws IOException {
+		switch(format) {
+		case TEXT:
+			if(value != null)
+				writeText(value.toString());
+			break;
+		case JSON:
+			writeJson(out, value);
+			out.write('\n');
+			break;
+		case NDJSON:
+			Iterator<?> elements = elements(value);
+			if(elements == null) {
+				writeJson(out, value);
+				out.write('\n');
+				break;
+			}
+			while(elements.hasNext()) {
+				writeJson(out, elements.next());
+				out.write('\n');
+			}
+			break;
+		case CSV:
+			writeCsv(value);
+			break;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the values of several attributes.
+	 * @param values the values by attribute name
+	 * @param withNames in text mode, prefix each value by "name="
+	 * @throws IOException if the output cannot be written
+	 */
+	public void writeAttributes(Map<String, Object> values, boolean withNames) throws IOException {
+		switch(format) {
+		case TEXT:
+			for(Map.Entry<String, Object> entry : values.entrySet()) {
+				if(withNames) {
+					out.write(entry.getKey());
+					out.write('=');
+				}
+				out.write(String.valueOf(entry.getValue()));
+				out.write('\n');
+			}
+			break;
+		case JSON:
+			out.write('{');
+			boolean first = true;
+			for(Map.Entry<String, Object> entry : values.entrySet()) {
+				if(!first)
+					out.write(',');
+				first = false;
+				writeJsonString(out, entry.getKey());
+				out.write(':');
+				writeJson(out, entry.getValue());
+			}
+			out.write("}\n");
+			break;
+		case NDJSON:
+			for(Map.Entry<String, Object> entry : values.entrySet()) {
+				out.write("{\"attribute\":");
+				writeJsonString(out, entry.getKey());
+				out.write(",\"value\":");
+				writeJson(out, entry.getValue());
+				out.write("}\n");
+			}
+			break;
+		case CSV:
+			out.write("attribute,value\n");
+			for(Map.Entry<String, Object> entry : values.entrySet()) {
+				writeCsvField(entry.getKey());
+				out.write(',');
+				writeCsvCell(entry.getValue());
+				out.write('\n');
+			}
+			break;
+		}
+		out.flush();
+	}
+
+	/**
+	 * Write the text with the &lt;br&gt; tags translated to new lines, without regular expression nor copy.
+	 */
+	private void writeText(String text) throws IOException {
+		int start = 0;
+		int br;
+		while((br = text.indexOf("<br>", start)) != -1) {
+			out.write(text, start, br - start);
+			out.write('\n');
+			start = br + 4;
+		}
+		out.write(text, start, text.length() - start);
+		out.write('\n');
+	}
+
+	/**
+	 * Write a value as JSON.
+	 * @param out the destination
+	 * @param value the value to write
+	 */
+	static void writeJson(Writer out, Object value) throws IOException {
+		if(value == null) {
+			out.write("null");
+		}
+		else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if(Double.isNaN(d) || Double.isInfinite(d))
+				writeJsonString(out, value.toString());
+			else
+				out.write(value.toString());
+		}
+		else if(value instanceof Number || value instanceof Boolean) {
+			out.write(value.toString());
+		}
+		else if(value instanceof CompositeData) {
+			CompositeData data = (CompositeData) value;
+			out.write('{');
+			boolean first = true;
+			for(String key : data.getCompositeType().keySet()) {
+				if(!first)
+					out.write(',');
+				first = false;
+				writeJsonString(out, key);
+				out.write(':');
+				writeJson(out, data.get(key));
+			}
+			out.write('}');
+		}
+		else if(value instanceof Map && !(value instanceof TabularData)) {
+			// TabularDataSupport is a Map indexed by the keys of the rows, it is written as an array of rows
+			out.write('{');
+			boolean first = true;
+			for(Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+				if(!first)
+					out.write(',');
+				first = false;
+				writeJsonString(out, String.valueOf(entry.getKey()));
+				out.write(':');
+				writeJson(out, entry.getValue());
+			}
+			out.write('}');
+		}
+		else if(value instanceof char[]) {
+			writeJsonString(out, new String((char[]) value));
+		}
+		else {
+			Iterator<?> elements = elements(value);
+			if(elements == null) {
+				writeJsonString(out, value.toString());
+				return;
+			}
+			out.write('[');
+			while(elements.hasNext()) {
+				writeJson(out, elements.next());
+				if(elements.hasNext())
+					out.write(',');
+			}
+			out.write(']');
+		}
+	}
+
+	private static void writeJsonString(Writer out, String value) throws IOException {
+		out.write('"');
+		int start = 0;
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c >= 0x20 && c != '"' && c != '\\')
+				continue;
+
+			out.write(value, start, i - start);
+			start = i + 1;
+			switch(c) {
+				case '"':  out.write("\\\""); break;
+				case '\\': out.write("\\\\"); break;
+				case '\n': out.write("\\n"); break;
+				case '\r': out.write("\\r"); break;
+				case '\t': out.write("\\t"); break;
+				default:   out.write(String.format("\\u%04x", (int) c));
+			}
+		}
+		out.write(value, start, value.length() - start);
+		out.write('"');
+	}
+
+	/**
+	 * Write a value as CSV: the rows of a TabularData or of a sequence of CompositeData with a header,
+	 * the elements of other sequences on their own line, and a single cell otherwise.
+	 */
+	private void writeCsv(Object value) throws IOException {
+		if(value instanceof TabularData) {
+			writeCsvHeader(((TabularData) value).getTabularType().getRowType().keySet());
+		}
+		else if(value instanceof CompositeData) {
+			Set<String> keys = ((CompositeData) value).getCompositeType().keySet();
+			writeCsvHeader(keys);
+			writeCsvRow(keys, (CompositeData) value);
+			return;
+		}
+
+		Iterator<?> elements = elements(value);
+		if(elements == null) {
+			if(value != null) {
+				writeCsvCell(value);
+				out.write('\n');
+			}
+			return;
+		}
+
+		// the header of a sequence of CompositeData is the one of its first element
+		Set<String> keys = value instanceof TabularData ? ((TabularData) value).getTabularType().getRowType().keySet() : null;
+		while(elements.hasNext()) {
+			Object element = elements.next();
+			if(element instanceof CompositeData) {
+				if(keys == null) {
+					keys = ((CompositeData) element).getCompositeType().keySet();
+					writeCsvHeader(keys);
+				}
+				writeCsvRow(keys, (CompositeData) element);
+			}
+			else {
+				writeCsvCell(element);
+				out.write('\n');
+			}
+		}
+	}
+
+	private void writeCsvHeader(Set<String> keys) throws IOException {
+		boolean first = true;
+		for(String key : keys) {
+			if(!first)
+				out.write(',');
+			first = false;
+			writeCsvField(key);
+		}
+		out.write('\n');
+	}
+
+	private void writeCsvRow(Set<String> keys, CompositeData row) throws IOException {
+		boolean first = true;
+		for(String key : keys) {
+			if(!first)
+				out.write(',');
+			first = false;
+			if(row.containsKey(key))
+				writeCsvCell(row.get(key));
+		}
+		out.write('\n');
+	}
+
+	/**
+	 * Write a cell: scalars as their string value, nested values as JSON.
+	 */
+	private void writeCsvCell(Object value) throws IOException {
+		if(value == null)
+			return;
+		if(value instanceof CharSequence || value instanceof Number || value instanceof Boolean || value instanceof Character) {
+			writeCsvField(value.toString());
+			return;
+		}
+
+		// render the nested value in memory to quote it, the cells are small compared to the whole result
+		cell.getBuffer().setLength(0);
+		writeJson(cell, value);
+		writeCsvField(cell.toString());
+	}
+
+	private void writeCsvField(String value) throws IOException {
+		if(StringUtils.containsNone(value, ',', '"', '\n', '\r')) {
+			out.write(value);
+			return;
+		}
+		out.write('"');
+		int start = 0;
+		int quote;
+		while((quote = value.indexOf('"', start)) != -1) {
+			out.write(value, start, quote + 1 - start);
+			out.write('"');
+			start = quote + 1;
+		}
+		out.write(value, start, value.length() - start);
+		out.write('"');
+	}
+
+	/**
+	 * @param value the value to walk
+	 * @return an iterator over the rows of a TabularData, the elements of an array or of a collection, null for other values
+	 */
+	private static Iterator<?> elements(Object value) {
+		if(value instanceof TabularData)
+			return ((TabularData) value).values().iterator();
+		if(value instanceof Collection)
+			return ((Collection<?>) value).iterator();
+		if(value == null || !value.getClass().isArray() || value instanceof char[])
+			return null;
+
+		int length = Array.getLength(value);
+		return new Iterator<Object>() {
+			int index = 0;
+
+			@Override
+			public boolean hasNext() {
+				return index < length;
+			}
+
+			@Override
+			public Object next() {
+				if(index >= length)
+					throw new NoSuchElementException();
+				return Array.get(value, index++);
+			}
+		};
+	}
+}
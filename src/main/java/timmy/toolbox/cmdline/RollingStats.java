@@ -0,0 +1,147 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.Arrays;
+
+/**
+ * Rolling statistics over the last samples of a numeric attribute.<br>
+ * The samples are kept in a primitive ring buffer: recording a sample neither allocates nor boxes.
+ * The order statistics are only computed when the statistics are reported.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class RollingStats {
+
+	private final double[] values;
+	private final long[] times;
+	private final double[] scratch;
+	private int next = 0;
+	private int size = 0;
+	private long total = 0;
+
+	/**
+	 * @param window the number of samples kept
+	 */
+	public RollingStats(int window) {
+		this.values = new double[window];
+		this.times = new long[window];
+		this.scratch = new double[window];
+	}
+
+	/**
+	 * Record a sample.
+	 * @param time the time of the sample in milliseconds
+	 * @param value the value of the sample
+	 */
+	public void add(long time, double value) {
+		values[next] = value;
+		times[next] = time;
+		next = (next + 1) % values.length;
+		if(size < values.length)
+			size++;
+		total++;
+	}
+
+	/**
+	 * @return the number of samples in the window
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of samples recorded since the creation
+	 */
+	public long total() {
+		return total;
+	}
+
+	private int oldest() {
+		return size < values.length ? 0 : next;
+	}
+
+	private int newest() {
+		return (next - 1 + values.length) % values.length;
+	}
+
+	/**
+	 * @return the last value, NaN if empty
+	 */
+	public double last() {
+		return size == 0 ? Double.NaN : values[newest()];
+	}
+
+	/**
+	 * @return the minimum of the window, NaN if empty
+	 */
+	public double min() {
+		if(size == 0)
+			return Double.NaN;
+		double min = Double.POSITIVE_INFINITY;
+		for(int i = 0; i < size; i++)
+			min = Math.min(min, values[i]);
+		return min;
+	}
+
+	/**
+	 * @return the maximum of the window, NaN if empty
+	 */
+	public double max() {
+		if(size == 0)
+			return Double.NaN;
+		double max = Double.NEGATIVE_INFINITY;
+		for(int i = 0; i < size; i++)
+			max = Math.max(max, values[i]);
+		return max;
+	}
+
+	/**
+	 * @return the mean of the window, NaN if empty
+	 */
+	public double mean() {
+		if(size == 0)
+			return Double.NaN;
+		double sum = 0;
+		for(int i = 0; i < size; i++)
+			sum += values[i];
+		return sum / size;
+	}
+
+	/**
+	 * @param percentile the percentile between 0 and 100
+	 * @return the percentile of the window (nearest rank), NaN if empty
+	 */
+	public double percentile(double percentile) {
+		if(size == 0)
+			return Double.NaN;
+		System.arraycopy(values, 0, scratch, 0, size);
+		Arrays.sort(scratch, 0, size);
+		int rank = (int) Math.ceil(percentile / 100 * size) - 1;
+		return scratch[Math.max(0, Math.min(size - 1, rank))];
+	}
+
+	/**
+	 * @return the rate of change per second between the oldest and the newest samples of the window, NaN if less than 2 samples
+	 */
+	public double rate() {
+		if(size < 2)
+			return Double.NaN;
+		long elapsed = times[newest()] - times[oldest()];
+		if(elapsed <= 0)
+			return Double.NaN;
+		return (values[newest()] - values[oldest()]) * 1000 / elapsed;
+	}
+}
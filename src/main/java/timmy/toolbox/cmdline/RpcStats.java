@@ -0,0 +1,187 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.beans.ConstructorProperties;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client side instrumentation of the JMX requests: count, errors and latency histogram per operation
+ * of the MBeanServerConnection.<br>
+ * The recorders are lock-free. The requests of the commands executed by a thread can also be counted between
+ * {@link #begin()} and {@link #end()} to report the cost of a single command.<br>
+ * In daemon mode, the statistics are registered as an MXBean in the JVM of JConnect.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class RpcStats implements RpcStatsMXBean {
+
+	/**
+	 * The statistics of an operation, latencies in milliseconds.
+	 */
+	public static class OperationSummary {
+		private final String operation;
+		private final long calls;
+		private final long errors;
+		private final double mean;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double max;
+
+		@ConstructorProperties({ "operation", "calls", "errors", "mean", "p50", "p90", "p99", "max" })
+		public OperationSummary(String operation, long calls, long errors, double mean, double p50, double p90, double p99, double max) {
+			this.operation = operation;
+			this.calls = calls;
+			this.errors = errors;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public String getOperation() { return operation; }
+		public long getCalls() { return calls; }
+		public long getErrors() { return errors; }
+		public double getMean() { return mean; }
+		public double getP50() { return p50; }
+		public double getP90() { return p90; }
+		public double getP99() { return p99; }
+		public double getMax() { return max; }
+	}
+
+	/**
+	 * The recorders of an operation.
+	 */
+	static class Recorder {
+		final LongAdder errors = new LongAdder();
+		final LatencyHistogram latencies = new LatencyHistogram();
+	}
+
+	/**
+	 * The requests of the current command of a thread and of the workers it started.
+	 */
+	public static class CommandTiming {
+		long calls = 0;
+		long nanos = 0;
+		final Map<String, Integer> operations = new TreeMap<>();
+
+		/**
+		 * @return the number of requests
+		 */
+		public synchronized long getCalls() {
+			return calls;
+		}
+
+		/**
+		 * @return the time spent in the requests in nanoseconds
+		 */
+		public synchronized long getNanos() {
+			return nanos;
+		}
+
+		/**
+		 * @return the number of requests by operation
+		 */
+		public synchronized Map<String, Integer> getOperations() {
+			return operations;
+		}
+	}
+
+	private final Map<String, Recorder> recorders = new ConcurrentHashMap<>();
+	// inherited by the workers started by a command: snapshot, agg, bulk calls and fan-out send their requests from them
+	private final ThreadLocal<CommandTiming> command = new InheritableThreadLocal<>();
+
+	/**
+	 * Record a request.
+	 * @param operation the name of the operation
+	 * @param nanos the latency of the request
+	 * @param error true if the request failed
+	 */
+	public void record(String operation, long nanos, boolean error) {
+		Recorder recorder = recorders.get(operation);
+		if(recorder == null)
+			recorder = recorders.computeIfAbsent(operation, k -> new Recorder());
+		recorder.latencies.record(nanos);
+		if(error)
+			recorder.errors.increment();
+
+		CommandTiming timing = command.get();
+		if(timing != null) {
+			synchronized (timing) {
+				timing.calls++;
+				timing.nanos += nanos;
+				timing.operations.merge(operation, 1, Integer::sum);
+			}
+		}
+	}
+
+	/**
+	 * Start counting the requests of the current thread.
+	 */
+	public void begin() {
+		command.set(new CommandTiming());
+	}
+
+	/**
+	 * Stop counting the requests of the current thread.
+	 * @return the requests counted since {@link #begin()}, null if not counting
+	 */
+	public CommandTiming end() {
+		CommandTiming timing = command.get();
+		command.remove();
+		return timing;
+	}
+
+	@Override
+	public long getCalls() {
+		long calls = 0;
+		for(Recorder recorder : recorders.values())
+			calls += recorder.latencies.getCount();
+		return calls;
+	}
+
+	@Override
+	public long getErrors() {
+		long errors = 0;
+		for(Recorder recorder : recorders.values())
+			errors += recorder.errors.sum();
+		return errors;
+	}
+
+	@Override
+	public Map<String, OperationSummary> getOperations() {
+		Map<String, OperationSummary> operations = new TreeMap<>();
+		for(Map.Entry<String, Recorder> entry : recorders.entrySet()) {
+			LatencyHistogram latencies = entry.getValue().latencies;
+			operations.put(entry.getKey(), new OperationSummary(entry.getKey(), latencies.getCount(), entry.getValue().errors.sum(),
+					latencies.getMean() / 1000.0, latencies.getPercentile(50) / 1000.0, latencies.getPercentile(90) / 1000.0,
+					latencies.getPercentile(99) / 1000.0, latencies.getMax() / 1000.0));
+		}
+		return operations;
+	}
+
+	@Override
+	public void reset() {
+		for(Recorder recorder : recorders.values()) {
+			recorder.latencies.reset();
+			recorder.errors.reset();
+		}
+	}
+}
@@ -0,0 +1,44 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.util.Map;
+
+/**
+ * Management interface of the statistics of the JMX requests sent by JConnect.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public interface RpcStatsMXBean {
+	/**
+	 * @return the number of requests sent to the JMX server
+	 */
+	long getCalls();
+
+	/**
+	 * @return the number of requests that failed
+	 */
+	long getErrors();
+
+	/**
+	 * @return the statistics by operation
+	 */
+	Map<String, RpcStats.OperationSummary> getOperations();
+
+	/**
+	 * Forget all the statistics.
+	 */
+	void reset();
+}
@@ -0,0 +1,258 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The snapshot command: dump the attributes of all the matching beans.<br>
+ * <pre>
+ * snapshot [ObjectName pattern] [where condition] [parallel=N] [&gt; file]
+ * </pre>
+ * The pattern and the condition are the ones of the query command. The beans are read concurrently, with one
+ * getAttributes request per bean and the MBeanInfo of the session index, and written in the order of their
+ * canonical names as soon as they are available, so only a window of beans is held in memory.<br>
+ * The snapshot is written on stdout, or gzip compressed in the file given after a last '&gt;' argument (escaped or
+ * quoted in a shell, a plain shell redirection writes the uncompressed snapshot). It is a header line
+ * followed by one line per attribute:
+ * <pre>
+ * # jconnect snapshot 1 2019-05-14T10:00:00.123Z demo:*
+ * canonical name TAB attribute TAB JSON value
+ * </pre>
+ * The lines are sorted by canonical name and attribute so that {@link SnapshotDiff} can compare two snapshots
+ * in a single pass. CompositeData values are flattened into one line per item (HeapMemoryUsage.used).
+ * Tabs, line breaks and backslashes of the names are escaped.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Snapshot {
+
+	/** first characters of the header line of the snapshots */
+	public static final String HEADER = "# jconnect snapshot 1 ";
+
+	/** default number of beans read concurrently */
+	public static final int DEFAULT_PARALLELISM = 16;
+
+	final JConnect jconnect;
+	final Logger logger;
+	final QueryParser query;
+	String file = null;
+	int parallelism = DEFAULT_PARALLELISM;
+
+	private final AtomicLong attributes = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+
+	/**
+	 * Parse the arguments of the snapshot command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "snapshot"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public Snapshot(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+
+		List<String> args = new ArrayList<>();
+		for(int i = 1; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(arg.startsWith("parallel=")) {
+				try {
+					parallelism = Integer.parseInt(arg.substring("parallel=".length()));
+				}
+				catch(NumberFormatException e) {
+					throw new IllegalArgumentException("Invalid parallelism "+arg);
+				}
+				if(parallelism < 1)
+					throw new IllegalArgumentException("Invalid parallelism "+arg);
+			}
+			else {
+				args.add(arg);
+			}
+		}
+
+		ObjectName pattern = jconnect.getIndex().getPattern();
+		QueryParser parsed = null;
+		int n = args.size();
+		if(n >= 2 && ">".equals(args.get(n-2))) {
+			// "> file" at the end is the output file, unless it is the end of a condition (where Count > 3)
+			try {
+				parsed = new QueryParser(pattern, args.subList(0, n-2).toArray(new String[n-2]));
+				file = args.get(n-1);
+			}
+			catch(IllegalArgumentException e) {
+				parsed = null;
+			}
+		}
+		this.query = parsed != null ? parsed : new QueryParser(pattern, args.toArray(new String[n]));
+	}
+
+	/**
+	 * Read the beans and write the snapshot.
+	 * @throws IOException if the JMX connection is lost or the file cannot be written
+	 */
+	public void run() throws IOException {
+		long start = System.nanoTime();
+		String timestamp = Instant.now().toString();
+
+		// sort by escaped canonical name: the order of the lines in the file
+		Map<String, ObjectName> beans = new TreeMap<>();
+		for(ObjectName name : jconnect.getIndex().query(query.getPattern(), query.getQuery()))
+			beans.put(escape(name.getCanonicalName()), name);
+
+		OutputStream stream = file == null ? System.out : new GZIPOutputStream(new FileOutputStream(file), 1 << 16);
+		Writer out = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8), 1 << 16);
+		ExecutorService executor = Workers.newBoundedExecutor(parallelism, "jconnect-snapshot");
+		ArrayDeque<Future<String>> pending = new ArrayDeque<>();
+		try {
+			out.write(HEADER+timestamp+" "+query.getPattern().getCanonicalName()+"\n");
+			for(Map.Entry<String, ObjectName> bean : beans.entrySet()) {
+				pending.add(executor.submit(() -> read(bean.getKey(), bean.getValue())));
+				// write the beans in order, waiting for the oldest one when the window is full
+				while(!pending.isEmpty() && (pending.size() >= parallelism * 4 || pending.peek().isDone()))
+					out.write(take(pending.poll()));
+			}
+			while(!pending.isEmpty())
+				out.write(take(pending.poll()));
+		}
+		finally {
+			for(Future<String> future : pending)
+				future.cancel(true);
+			executor.shutdownNow();
+			if(file != null)
+				out.close();
+			else
+				out.flush();
+		}
+
+		System.err.println(String.format("Snapshot: %d beans, %d attributes, %d errors in %.3f s", beans.size(), attributes.get(), errors.get(),
+				(System.nanoTime() - start) / 1e9));
+	}
+
+	private String take(Future<String> future) throws IOException {
+		try {
+			return future.get();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Snapshot interrupted", e);
+		}
+		catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException("Unexpected snapshot failure", e.getCause());
+		}
+	}
+
+	/**
+	 * Read the readable attributes of a bean.
+	 * @return the lines of the bean, sorted by attribute
+	 */
+	private String read(String bean, ObjectName name) throws IOException {
+		Map<String, Object> values;
+		try {
+			MBeanInfo info = jconnect.getIndex().getInfo(name);
+			List<String> attrs = new ArrayList<>();
+			for(MBeanAttributeInfo attr : info.getAttributes()) {
+				if(attr.isReadable())
+					attrs.add(attr.getName());
+			}
+			if(attrs.isEmpty())
+				return "";
+			values = jconnect.getAttributes(name, attrs.toArray(new String[attrs.size()]));
+		}
+		catch(JMException | RuntimeException e) {
+			// typically unregistered since the query
+			logger.debug("Cannot read "+name, e);
+			errors.incrementAndGet();
+			return "";
+		}
+
+		TreeMap<String, String> lines = new TreeMap<>();
+		for(Map.Entry<String, Object> entry : values.entrySet()) {
+			if(entry.getValue() instanceof JConnect.AttributeError) {
+				logger.debug("Cannot read {} {}: {}", name, entry.getKey(), entry.getValue());
+				errors.incrementAndGet();
+			}
+			else {
+				flatten(lines, escape(entry.getKey()), entry.getValue());
+			}
+		}
+		attributes.addAndGet(lines.size());
+
+		StringBuilder builder = new StringBuilder(lines.size() * 64);
+		for(Map.Entry<String, String> line : lines.entrySet())
+			builder.append(bean).append('\t').append(line.getKey()).append('\t').append(line.getValue()).append('\n');
+		return builder.toString();
+	}
+
+	private static void flatten(Map<String, String> lines, String attr, Object value) throws IOException {
+		if(value instanceof CompositeData) {
+			CompositeData data = (CompositeData) value;
+			for(String key : data.getCompositeType().keySet())
+				flatten(lines, attr+"."+escape(key), data.get(key));
+			return;
+		}
+		StringWriter json = new StringWriter();
+		ResultWriter.writeJson(json, value);
+		lines.put(attr, json.toString());
+	}
+
+	/**
+	 * Escape the tabs, line breaks and backslashes of a name.
+	 * @param text the name
+	 * @return the escaped name, text itself if there is nothing to escape
+	 */
+	static String escape(String text) {
+		if(text.indexOf('\\') < 0 && text.indexOf('\t') < 0 && text.indexOf('\n') < 0 && text.indexOf('\r') < 0)
+			return text;
+		StringBuilder builder = new StringBuilder(text.length() + 8);
+		for(char c : text.toCharArray()) {
+			switch(c) {
+			case '\\': builder.append("\\\\"); break;
+			case '\t': builder.append("\\t"); break;
+			case '\n': builder.append("\\n"); break;
+			case '\r': builder.append("\\r"); break;
+			default: builder.append(c);
+			}
+		}
+		return builder.toString();
+	}
+}
@@ -0,0 +1,203 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * The diff command: compare two files written by the {@link Snapshot} command.<br>
+ * <pre>
+ * diff snapshotA snapshotB
+ * </pre>
+ * Both files are read line by line and merged on their sort order (canonical name, attribute), so the memory
+ * used does not depend on the size of the snapshots. Gzip compressed and plain snapshots are both accepted.
+ * The output has one line per difference:
+ * <pre>
+ * ~ bean attribute: old -&gt; new (+delta)    changed, with the delta of the numeric values
+ * + bean attribute: value                  only in snapshotB
+ * - bean attribute: value                  only in snapshotA
+ * </pre>
+ * The diff does not need a JMX connection.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class SnapshotDiff {
+
+	final String fileA;
+	final String fileB;
+	long changed = 0;
+	long added = 0;
+	long removed = 0;
+	long unchanged = 0;
+
+	/**
+	 * Parse the arguments of the diff command.
+	 * @param cmd the command line, cmd[0] being "diff"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public SnapshotDiff(String[] cmd) {
+		if(cmd.length != 3)
+			throw new IllegalArgumentException("Usage: diff <snapshotA> <snapshotB>");
+		this.fileA = cmd[1];
+		this.fileB = cmd[2];
+	}
+
+	/**
+	 * Compare the snapshots and print the differences on stdout.
+	 * @throws IOException if a file cannot be read
+	 * @throws IllegalArgumentException if a file is not a snapshot or is not sorted
+	 */
+	public void run() throws IOException {
+		try (SnapshotReader a = new SnapshotReader(fileA); SnapshotReader b = new SnapshotReader(fileB)) {
+			Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+			out.write("--- "+fileA+" "+a.header+"\n");
+			out.write("+++ "+fileB+" "+b.header+"\n");
+
+			a.next();
+			b.next();
+			while(a.bean != null || b.bean != null) {
+				int cmp = a.bean == null ? 1 : b.bean == null ? -1 : a.compareTo(b);
+				if(cmp < 0) {
+					out.write("- "+a.bean+" "+a.attribute+": "+a.value+"\n");
+					removed++;
+					a.next();
+				}
+				else if(cmp > 0) {
+					out.write("+ "+b.bean+" "+b.attribute+": "+b.value+"\n");
+					added++;
+					b.next();
+				}
+				else {
+					if(a.value.equals(b.value)) {
+						unchanged++;
+					}
+					else {
+						String delta = delta(a.value, b.value);
+						out.write("~ "+a.bean+" "+a.attribute+": "+a.value+" -> "+b.value+(delta != null ? " ("+delta+")" : "")+"\n");
+						changed++;
+					}
+					a.next();
+					b.next();
+				}
+			}
+			out.flush();
+		}
+
+		System.err.println("Diff: "+changed+" changed, "+added+" added, "+removed+" removed, "+unchanged+" unchanged");
+	}
+
+	/**
+	 * @return the signed difference of two JSON numbers, null if a value is not a number
+	 */
+	static String delta(String oldValue, String newValue) {
+		if(!isNumber(oldValue) || !isNumber(newValue))
+			return null;
+		try {
+			BigDecimal delta = new BigDecimal(newValue).subtract(new BigDecimal(oldValue));
+			return (delta.signum() >= 0 ? "+" : "")+delta.toPlainString();
+		}
+		catch(NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static boolean isNumber(String value) {
+		if(value.isEmpty())
+			return false;
+		char c = value.charAt(0);
+		return c == '-' || (c >= '0' && c <= '9');
+	}
+
+	/**
+	 * Sequential reader of a snapshot, checking the order of its lines.
+	 */
+	static class SnapshotReader implements AutoCloseable {
+		final String file;
+		final BufferedReader reader;
+		final String header;
+		String bean = null;
+		String attribute = null;
+		String value = null;
+		long line = 1;
+
+		SnapshotReader(String file) throws IOException {
+			this.file = file;
+			InputStream input = new BufferedInputStream(new FileInputStream(file), 1 << 16);
+			input.mark(2);
+			boolean gzip = input.read() == 0x1f && input.read() == 0x8b;
+			input.reset();
+			if(gzip)
+				input = new GZIPInputStream(input, 1 << 16);
+			this.reader = new BufferedReader(new InputStreamReader(input, StandardCharsets.UTF_8), 1 << 16);
+
+			String first = reader.readLine();
+			if(first == null || !first.startsWith(Snapshot.HEADER)) {
+				reader.close();
+				throw new IllegalArgumentException(file+" is not a snapshot");
+			}
+			this.header = first.substring(Snapshot.HEADER.length());
+		}
+
+		/**
+		 * Move to the next attribute. bean is null at the end of the file.
+		 */
+		void next() throws IOException {
+			String text = reader.readLine();
+			line++;
+			if(text == null) {
+				bean = null;
+				return;
+			}
+
+			int tab1 = text.indexOf('\t');
+			int tab2 = tab1 < 0 ? -1 : text.indexOf('\t', tab1 + 1);
+			if(tab2 < 0)
+				throw new IllegalArgumentException(file+":"+line+": malformed snapshot line");
+
+			String previousBean = bean;
+			String previousAttribute = attribute;
+			bean = text.substring(0, tab1);
+			attribute = text.substring(tab1 + 1, tab2);
+			value = text.substring(tab2 + 1);
+			if(previousBean != null && compare(previousBean, previousAttribute, bean, attribute) >= 0)
+				throw new IllegalArgumentException(file+":"+line+": snapshot not sorted");
+		}
+
+		int compareTo(SnapshotReader other) {
+			return compare(bean, attribute, other.bean, other.attribute);
+		}
+
+		private static int compare(String beanA, String attributeA, String beanB, String attributeB) {
+			int cmp = beanA.compareTo(beanB);
+			return cmp != 0 ? cmp : attributeA.compareTo(attributeB);
+		}
+
+		@Override
+		public void close() throws IOException {
+			reader.close();
+		}
+	}
+}
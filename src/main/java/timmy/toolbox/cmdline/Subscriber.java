@@ -0,0 +1,254 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.InstanceNotFoundException;
+import javax.management.ListenerNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.Notification;
+import javax.management.NotificationFilterSupport;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.remote.JMXConnectionNotification;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The subscribe command: stream the notifications emitted by beans.<br>
+ * <pre>
+ * subscribe BEAN|PATTERN [type=TYPE[,TYPE...]] [capacity=N] [overflow=drop-oldest|block|sample] [count=N] [text|ndjson]
+ * </pre>
+ * The listener only queues the notifications in a bounded lock-free {@link NotificationQueue}, so a burst of
+ * notifications never stalls the JMX callback thread. A writer thread drains the queue to stdout. The types
+ * are type prefixes applied by the JMX server itself, they must be given with type= so that a misspelled option
+ * is rejected instead of silently filtering out every notification. Notifications dropped by the overflow
+ * policy or lost by the JMX server are reported on stderr.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Subscriber implements NotificationListener {
+
+	/** default capacity of the queue */
+	public static final int DEFAULT_CAPACITY = 10000;
+
+	/** output format of the notifications */
+	public enum Format { TEXT, NDJSON }
+
+	final JConnect jconnect;
+	final MBeanServerConnection mbsc;
+	final Logger logger;
+	final List<ObjectName> names = new ArrayList<>();
+	final NotificationFilterSupport filter = new NotificationFilterSupport();
+	boolean filtered = false;
+	int capacity = DEFAULT_CAPACITY;
+	NotificationQueue.Overflow overflow = NotificationQueue.Overflow.DROP_OLDEST;
+	long count = 0;
+	Format format = Format.TEXT;
+
+	private NotificationQueue queue;
+	private volatile long serverLost = 0;
+	private volatile boolean stopped = false;
+	private boolean reported = false;
+	private final StringBuilder line = new StringBuilder(256);
+
+	/**
+	 * Parse the arguments of the subscribe command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "subscribe"
+	 * @throws IllegalArgumentException if the command is invalid
+	 * @throws IOException in case of a JMX issue
+	 */
+	public Subscriber(JConnect jconnect, String[] cmd) throws IOException {
+		this.jconnect = jconnect;
+		this.mbsc = jconnect.getConnection();
+		this.logger = jconnect.logger;
+
+		if(cmd.length < 2)
+			throw new IllegalArgumentException("Missing bean to subscribe to");
+
+		if(cmd[1].indexOf(':') != -1) {
+			try {
+				names.addAll(mbsc.queryNames(new ObjectName(cmd[1]), null));
+			}
+			catch(MalformedObjectNameException e) {
+				throw new IllegalArgumentException("Invalid pattern "+cmd[1]+": "+e.getMessage());
+			}
+		}
+		else {
+			ObjectName name = jconnect.getIndex().getName(cmd[1]);
+			if(name != null)
+				names.add(name);
+		}
+		if(names.isEmpty())
+			throw new IllegalArgumentException("Invalid Bean "+cmd[1]+"!");
+
+		for(int i = 2; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(arg.startsWith("capacity="))
+				capacity = Integer.parseInt(arg.substring("capacity=".length()));
+			else if(arg.startsWith("overflow="))
+				overflow = NotificationQueue.Overflow.parse(arg.substring("overflow=".length()));
+			else if(arg.startsWith("count="))
+				count = Long.parseLong(arg.substring("count=".length()));
+			else if("text".equalsIgnoreCase(arg) || "ndjson".equalsIgnoreCase(arg))
+				format = Format.valueOf(arg.toUpperCase());
+			else if(arg.startsWith("type=")) {
+				for(String type : StringUtils.split(arg.substring("type=".length()), ','))
+					filter.enableType(type);
+				filtered = true;
+			}
+			else
+				throw new IllegalArgumentException("Unknown argument "+arg);
+		}
+	}
+
+	@Override
+	public void handleNotification(Notification notification, Object handback) {
+		if(notification instanceof JMXConnectionNotification) {
+			if(JMXConnectionNotification.NOTIFS_LOST.equals(notification.getType()) && notification.getUserData() instanceof Long)
+				serverLost += (Long) notification.getUserData();
+			return;
+		}
+		queue.offer(notification);
+	}
+
+	/**
+	 * Stream the notifications until the count is reached or the JVM stops.
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public void run() throws IOException {
+		queue = new NotificationQueue(capacity, overflow);
+		Thread hook = new Thread(() -> {
+			stopped = true;
+			printLost();
+		});
+		Runtime.getRuntime().addShutdownHook(hook);
+
+		List<ObjectName> subscribed = new ArrayList<>();
+		try {
+			jconnect.getConnectionManager().addConnectionNotificationListener(this);
+			for(ObjectName name : names) {
+				try {
+					mbsc.addNotificationListener(name, this, filtered ? filter : null, null);
+					subscribed.add(name);
+				}
+				catch(InstanceNotFoundException | IllegalArgumentException e) {
+					// IllegalArgumentException: the bean is not a notification emitter
+					logger.warn("Cannot subscribe to "+name+".", e);
+					System.err.println("Cannot subscribe to "+name+": "+e.getMessage());
+				}
+			}
+			if(subscribed.isEmpty()) {
+				jconnect.setExitCode(4);
+				return;
+			}
+			System.err.println("Subscribed to "+subscribed.size()+" beans");
+
+			drain();
+		}
+		finally {
+			for(ObjectName name : subscribed) {
+				try {
+					mbsc.removeNotificationListener(name, this);
+				}
+				catch(InstanceNotFoundException | ListenerNotFoundException | IOException e) {
+					logger.debug("Failed to remove the listener of "+name+".", e);
+				}
+			}
+			jconnect.getConnectionManager().removeConnectionNotificationListener(this);
+			Runtime.getRuntime().removeShutdownHook(hook);
+			printLost();
+		}
+	}
+
+	private void drain() throws IOException {
+		Writer writer = new BufferedWriter(new OutputStreamWriter(System.out));
+		long written = 0;
+		long reportedLost = 0;
+		long lastReport = System.nanoTime();
+		while(!stopped && !Thread.currentThread().isInterrupted() && (count <= 0 || written < count)) {
+			Notification notification = queue.poll(TimeUnit.MILLISECONDS.toNanos(100));
+			if(notification != null) {
+				format(notification);
+				writer.append(line);
+				written++;
+			}
+
+			// flush when the queue is drained, report the losses at most once per second
+			if(notification == null || queue.size() == 0) {
+				writer.flush();
+				long lost = queue.dropped() + serverLost;
+				if(lost != reportedLost && System.nanoTime() - lastReport > TimeUnit.SECONDS.toNanos(1)) {
+					System.err.println("Lost "+(lost - reportedLost)+" notifications ("+lost+" in total)");
+					reportedLost = lost;
+					lastReport = System.nanoTime();
+				}
+			}
+		}
+		writer.flush();
+	}
+
+	private void format(Notification notification) {
+		line.setLength(0);
+		String timestamp = Instant.ofEpochMilli(notification.getTimeStamp()).toString();
+		Object userData = notification.getUserData();
+		if(format == Format.NDJSON) {
+			line.append("{\"timestamp\":\"").append(timestamp).append("\",\"type\":");
+			Watcher.appendJsonString(line, notification.getType());
+			line.append(",\"source\":");
+			Watcher.appendJsonString(line, String.valueOf(notification.getSource()));
+			line.append(",\"sequence\":").append(notification.getSequenceNumber()).append(",\"message\":");
+			if(notification.getMessage() == null)
+				line.append("null");
+			else
+				Watcher.appendJsonString(line, notification.getMessage());
+			line.append(",\"userData\":");
+			if(userData == null)
+				line.append("null");
+			else
+				Watcher.appendJsonString(line, userData.toString());
+			line.append("}\n");
+		}
+		else {
+			line.append(timestamp).append(' ').append(notification.getType()).append(' ').append(notification.getSource())
+				.append(" #").append(notification.getSequenceNumber());
+			if(StringUtils.isNotEmpty(notification.getMessage()))
+				line.append(' ').append(notification.getMessage());
+			if(userData != null)
+				line.append(' ').append(userData);
+			line.append('\n');
+		}
+	}
+
+	private synchronized void printLost() {
+		if(queue == null || reported)
+			return;
+		reported = true;
+		long lost = queue.dropped() + serverLost;
+		if(lost > 0)
+			System.err.println("Lost notifications: "+queue.dropped()+" dropped by the "+overflow.name().toLowerCase().replace('_', '-')+" policy, "+serverLost+" lost by the JMX server");
+	}
+}
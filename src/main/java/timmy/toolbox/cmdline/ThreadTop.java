@@ -0,0 +1,582 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOError;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+import javax.management.RuntimeMBeanException;
+import javax.management.openmbean.CompositeData;
+
+import org.apache.logging.log4j.Logger;
+import org.jline.keymap.BindingReader;
+import org.jline.keymap.KeyMap;
+import org.jline.terminal.Attributes;
+import org.jline.terminal.Size;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+import org.jline.utils.AttributedString;
+import org.jline.utils.AttributedStringBuilder;
+import org.jline.utils.AttributedStyle;
+import org.jline.utils.Display;
+import org.jline.utils.InfoCmp.Capability;
+import org.jline.utils.NonBlockingReader;
+
+/**
+ * The top threads command: live view of the threads of the JVM sorted by CPU or allocation rate.<br>
+ * <pre>
+ * top [threads] [interval] [sort=cpu|alloc] [n=N] [samples=N]
+ * </pre>
+ * Each refresh sends 4 requests whatever the number of threads: the AllThreadIds attribute, the bulk
+ * getThreadCpuTime(long[]) and getThreadAllocatedBytes(long[]) of com.sun.management.ThreadMXBean, then
+ * getThreadInfo(long[]) for the displayed threads only. The rates are the deltas since the previous refresh,
+ * computed on primitive arrays indexed by thread id.<br>
+ * In the console the view is redrawn in place with the jline Display, only the changed lines are written:
+ * q quits, c and a sort by CPU or allocation, up and down select a thread and enter shows its stack.
+ * With samples=N, in a background job or without a terminal, a table of the top N threads is printed at each refresh.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class ThreadTop {
+
+	/** default number of threads printed without a terminal */
+	public static final int DEFAULT_ROWS = 20;
+
+	static final ObjectName THREADING = threading();
+	private static final String[] IDS_SIGNATURE = { long[].class.getName() };
+	private static final String[] STACK_SIGNATURE = { long.class.getName(), int.class.getName() };
+	private static final int HEADER_LINES = 3;
+
+	enum Sort { CPU, ALLOC }
+
+	enum Operation { QUIT, SORT_CPU, SORT_ALLOC, UP, DOWN, STACK, NONE }
+
+	final JConnect jconnect;
+	final Logger logger;
+	final MBeanServerConnection mbsc;
+	long interval = 2000;
+	Sort sort = Sort.CPU;
+	int rows = 0;
+	long samples = 0;
+
+	// sampling state, the arrays are indexed like the ids of the last refresh
+	private long[] ids = new long[0];
+	private long[] cpu = new long[0];
+	private long[] allocated = new long[0];
+	private double[] cpuRate = new double[0];
+	private double[] allocRate = new double[0];
+	private LongIndex index = new LongIndex(16);
+	private LongIndex previousIndex = new LongIndex(16);
+	private long[] previousCpu = new long[0];
+	private long[] previousAllocated = new long[0];
+	private long sampleTime = 0;
+	private boolean cpuSupported = true;
+	private boolean allocSupported = true;
+	private double totalCpu = 0;
+	private double totalAlloc = 0;
+
+	// the displayed threads
+	private int[] top = new int[0];
+	private int topSize = 0;
+	private ThreadInfo[] infos = new ThreadInfo[0];
+	private int selected = 0;
+
+	/**
+	 * Map of thread ids to their position in the arrays of a refresh, without boxing.
+	 */
+	static class LongIndex {
+		private long[] keys;
+		private int[] values;
+		private int mask;
+
+		LongIndex(int capacity) {
+			int size = Integer.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+			keys = new long[size];
+			values = new int[size];
+			mask = size - 1;
+		}
+
+		/**
+		 * Index the ids by their position, the previous content is dropped.
+		 */
+		void reset(long[] ids) {
+			if(ids.length * 2 > keys.length) {
+				LongIndex larger = new LongIndex(ids.length);
+				keys = larger.keys;
+				values = larger.values;
+				mask = larger.mask;
+			}
+			Arrays.fill(values, -1);
+			for(int i = 0; i < ids.length; i++) {
+				int slot = slot(ids[i]);
+				while(values[slot] >= 0)
+					slot = (slot + 1) & mask;
+				keys[slot] = ids[i];
+				values[slot] = i;
+			}
+		}
+
+		int get(long id) {
+			for(int slot = slot(id); values[slot] >= 0; slot = (slot + 1) & mask) {
+				if(keys[slot] == id)
+					return values[slot];
+			}
+			return -1;
+		}
+
+		private int slot(long id) {
+			long h = id * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
+	private static ObjectName threading() {
+		try {
+			return new ObjectName(ManagementFactory.THREAD_MXBEAN_NAME);
+		}
+		catch(MalformedObjectNameException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Parse the arguments of the top threads command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "top"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public ThreadTop(JConnect jconnect, String[] cmd) {
+		this.jconnect = jconnect;
+		this.logger = jconnect.logger;
+		this.mbsc = jconnect.getConnection();
+
+		for(int i = 1; i < cmd.length; i++) {
+			String arg = cmd[i];
+			if(i == 1 && "threads".equals(arg))
+				continue;
+			if(arg.startsWith("sort=")) {
+				String value = arg.substring("sort=".length());
+				if("cpu".equalsIgnoreCase(value))
+					sort = Sort.CPU;
+				else if("alloc".equalsIgnoreCase(value))
+					sort = Sort.ALLOC;
+				else
+					throw new IllegalArgumentException("Invalid sort "+value+", expected cpu or alloc");
+			}
+			else if(arg.startsWith("n=")) {
+				rows = parseCount(arg.substring("n=".length()), arg);
+			}
+			else if(arg.startsWith("samples=")) {
+				samples = parseCount(arg.substring("samples=".length()), arg);
+			}
+			else {
+				interval = Replay.parseDuration(arg);
+			}
+		}
+		if(interval <= 0)
+			throw new IllegalArgumentException("Invalid interval "+interval+"ms");
+	}
+
+	private static int parseCount(String value, String arg) {
+		try {
+			int count = Integer.parseInt(value);
+			if(count > 0)
+				return count;
+		}
+		catch(NumberFormatException e) {
+			// reported below
+		}
+		throw new IllegalArgumentException("Invalid "+arg);
+	}
+
+	/**
+	 * Show the threads until the user quits, the number of samples is reached or the thread is interrupted.
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public void run() throws IOException {
+		Terminal terminal = jconnect.terminal;
+		boolean own = false;
+		if(terminal == null && samples == 0 && !CommandOutput.isCapturing()) {
+			terminal = TerminalBuilder.builder().system(true).build();
+			own = true;
+		}
+		try {
+			if(terminal == null || samples > 0 || CommandOutput.isCapturing() || terminal.getType().startsWith(Terminal.TYPE_DUMB))
+				runTable();
+			else
+				runInteractive(terminal, own);
+		}
+		finally {
+			if(own)
+				terminal.close();
+		}
+	}
+
+	/**
+	 * Print the top threads at each refresh.
+	 */
+	private void runTable() throws IOException {
+		int count = rows > 0 ? rows : DEFAULT_ROWS;
+		sample(count);
+		for(long printed = 0; samples == 0 || printed < samples; printed++) {
+			try {
+				Thread.sleep(interval);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			}
+			sample(count);
+			if(printed > 0)
+				System.out.println();
+			System.out.println(summary());
+			System.out.println(columns());
+			for(int i = 0; i < topSize; i++)
+				System.out.println(row(i));
+			System.out.flush();
+		}
+	}
+
+	private void runInteractive(Terminal terminal, boolean own) throws IOException {
+		Thread thread = Thread.currentThread();
+		Terminal.SignalHandler previousInt = own ? terminal.handle(Terminal.Signal.INT, signal -> thread.interrupt()) : null;
+		Size size = new Size();
+		size.copy(terminal.getSize());
+		boolean[] resized = { false };
+		Terminal.SignalHandler previousWinch = terminal.handle(Terminal.Signal.WINCH, signal -> resized[0] = true);
+		Attributes attributes = terminal.enterRawMode();
+		terminal.puts(Capability.enter_ca_mode);
+		terminal.puts(Capability.keypad_xmit);
+		terminal.puts(Capability.cursor_invisible);
+		terminal.writer().flush();
+
+		Display display = new Display(terminal, true);
+		display.resize(size.getRows(), size.getColumns());
+		KeyMap<Operation> keys = keys(terminal);
+		BindingReader reader = new BindingReader(terminal.reader());
+		try {
+			// the first rates are shown after a short sample
+			long next = System.currentTimeMillis() + Math.min(interval, 1000);
+			sample(visibleRows(size));
+			while(!thread.isInterrupted()) {
+				if(resized[0]) {
+					resized[0] = false;
+					size.copy(terminal.getSize());
+					display.clear();
+					display.resize(size.getRows(), size.getColumns());
+				}
+				display.update(frame(size), -1);
+				terminal.flush();
+
+				long wait = next - System.currentTimeMillis();
+				int c = wait > 0 ? reader.peekCharacter(wait) : NonBlockingReader.READ_EXPIRED;
+				if(c == NonBlockingReader.EOF)
+					break;
+				if(c == NonBlockingReader.READ_EXPIRED) {
+					sample(visibleRows(size));
+					next = System.currentTimeMillis() + interval;
+					continue;
+				}
+
+				Operation operation = reader.readBinding(keys, null, false);
+				if(operation == null || operation == Operation.QUIT)
+					break;
+				switch(operation) {
+				case SORT_CPU:
+				case SORT_ALLOC:
+					sort = operation == Operation.SORT_CPU ? Sort.CPU : Sort.ALLOC;
+					select(visibleRows(size));
+					fetchInfos();
+					break;
+				case UP:
+					selected = Math.max(0, selected - 1);
+					break;
+				case DOWN:
+					selected = Math.min(Math.max(0, topSize - 1), selected + 1);
+					break;
+				case STACK:
+					if(selected < topSize && !showStack(display, size, reader, keys))
+						return;
+					display.clear();
+					break;
+				default:
+					break;
+				}
+			}
+		}
+		catch(IOError e) {
+			// the read of the keys is interrupted by ctrl+c
+			logger.debug("Top interrupted.", e);
+		}
+		finally {
+			terminal.puts(Capability.cursor_visible);
+			terminal.puts(Capability.keypad_local);
+			terminal.puts(Capability.exit_ca_mode);
+			terminal.flush();
+			terminal.setAttributes(attributes);
+			terminal.handle(Terminal.Signal.WINCH, previousWinch);
+			if(own)
+				terminal.handle(Terminal.Signal.INT, previousInt);
+		}
+	}
+
+	private static KeyMap<Operation> keys(Terminal terminal) {
+		KeyMap<Operation> keys = new KeyMap<>();
+		keys.bind(Operation.QUIT, "q", "Q", KeyMap.ctrl('C'));
+		keys.bind(Operation.SORT_CPU, "c", "C");
+		keys.bind(Operation.SORT_ALLOC, "a", "A");
+		keys.bind(Operation.UP, KeyMap.key(terminal, Capability.key_up), "k", "\033[A", "\033OA");
+		keys.bind(Operation.DOWN, KeyMap.key(terminal, Capability.key_down), "j", "\033[B", "\033OB");
+		keys.bind(Operation.STACK, "\r", "\n", "s", "S");
+		keys.setNomatch(Operation.NONE);
+		return keys;
+	}
+
+	private int visibleRows(Size size) {
+		int visible = Math.max(1, size.getRows() - HEADER_LINES);
+		return rows > 0 ? Math.min(rows, visible) : visible;
+	}
+
+	/**
+	 * Read the CPU time and the allocated bytes of all the threads, then the infos of the top ones.
+	 * @param count the number of threads to display
+	 */
+	private void sample(int count) throws IOException {
+		long now = System.nanoTime();
+		long elapsed = now - sampleTime;
+		boolean first = sampleTime == 0;
+		sampleTime = now;
+
+		// keep the values of the previous refresh, the arrays are swapped to be reused
+		LongIndex swap = previousIndex;
+		previousIndex = index;
+		index = swap;
+		long[] swapCpu = previousCpu;
+		previousCpu = cpu;
+		long[] swapAllocated = previousAllocated;
+		previousAllocated = allocated;
+
+		try {
+			ids = (long[]) mbsc.getAttribute(THREADING, "AllThreadIds");
+		}
+		catch(JMException e) {
+			throw new IllegalStateException("Cannot read the threads: "+e.getMessage(), e);
+		}
+		int n = ids.length;
+		cpu = cpuSupported ? bulk("getThreadCpuTime", swapCpu) : swapCpu;
+		allocated = allocSupported ? bulk("getThreadAllocatedBytes", swapAllocated) : swapAllocated;
+		if(cpu.length < n)
+			cpu = new long[n];
+		if(allocated.length < n)
+			allocated = new long[n];
+		if(!cpuSupported)
+			Arrays.fill(cpu, -1);
+		if(!allocSupported)
+			Arrays.fill(allocated, -1);
+		index.reset(ids);
+
+		if(cpuRate.length < n) {
+			cpuRate = new double[n];
+			allocRate = new double[n];
+		}
+		totalCpu = 0;
+		totalAlloc = 0;
+		for(int i = 0; i < n; i++) {
+			int p = first ? -1 : previousIndex.get(ids[i]);
+			cpuRate[i] = p >= 0 && cpu[i] >= 0 && previousCpu[p] >= 0 ? Math.max(0, cpu[i] - previousCpu[p]) / (double) elapsed : 0;
+			allocRate[i] = p >= 0 && allocated[i] >= 0 && previousAllocated[p] >= 0 ? Math.max(0, allocated[i] - previousAllocated[p]) * 1e9 / elapsed : 0;
+			totalCpu += cpuRate[i];
+			totalAlloc += allocRate[i];
+		}
+
+		select(count);
+		fetchInfos();
+	}
+
+	/**
+	 * Call a bulk operation of com.sun.management.ThreadMXBean on all the threads.
+	 * @param reuse the array to return if the operation is not supported
+	 * @return the value of each thread, -1 if not available
+	 */
+	private long[] bulk(String operation, long[] reuse) throws IOException {
+		try {
+			return (long[]) mbsc.invoke(THREADING, operation, new Object[] { ids }, IDS_SIGNATURE);
+		}
+		catch(JMException | RuntimeMBeanException e) {
+			// not a HotSpot JVM or disabled
+			logger.info("{} is not supported by the JVM: {}", operation, e.getMessage());
+			if("getThreadCpuTime".equals(operation))
+				cpuSupported = false;
+			else
+				allocSupported = false;
+			return reuse;
+		}
+	}
+
+	/**
+	 * Select the top threads with a partial insertion sort, the rates of the other threads are only compared once.
+	 */
+	private void select(int count) {
+		double[] rate = sort == Sort.CPU ? cpuRate : allocRate;
+		long[] total = sort == Sort.CPU ? cpu : allocated;
+		if(top.length < count)
+			top = new int[count];
+		topSize = 0;
+		for(int i = 0; i < ids.length; i++) {
+			if(topSize == count && !greater(rate, total, i, top[count - 1]))
+				continue;
+			int position = Math.min(topSize, count - 1);
+			while(position > 0 && greater(rate, total, i, top[position - 1])) {
+				top[position] = top[position - 1];
+				position--;
+			}
+			top[position] = i;
+			if(topSize < count)
+				topSize++;
+		}
+		selected = Math.min(selected, Math.max(0, topSize - 1));
+	}
+
+	private static boolean greater(double[] rate, long[] total, int a, int b) {
+		return rate[a] > rate[b] || (rate[a] == rate[b] && total[a] > total[b]);
+	}
+
+	/**
+	 * Read the name and the state of the displayed threads, without their stack.
+	 */
+	private void fetchInfos() throws IOException {
+		long[] topIds = new long[topSize];
+		for(int i = 0; i < topSize; i++)
+			topIds[i] = ids[top[i]];
+		if(infos.length < topSize)
+			infos = new ThreadInfo[top.length];
+		Arrays.fill(infos, null);
+		try {
+			CompositeData[] data = (CompositeData[]) mbsc.invoke(THREADING, "getThreadInfo", new Object[] { topIds }, IDS_SIGNATURE);
+			for(int i = 0; i < data.length && i < topSize; i++)
+				infos[i] = data[i] != null ? ThreadInfo.from(data[i]) : null;
+		}
+		catch(JMException e) {
+			throw new IllegalStateException("Cannot read the threads: "+e.getMessage(), e);
+		}
+	}
+
+	private String summary() {
+		return String.format("Threads: %d   CPU: %s   Alloc: %s   Interval: %s   Sort: %s",
+				ids.length, cpuSupported ? String.format("%.1f%%", totalCpu * 100) : "n/a",
+				allocSupported ? formatRate(totalAlloc) : "n/a", Replay.formatDuration(interval), sort.name().toLowerCase());
+	}
+
+	private static String columns() {
+		return String.format("%8s  %-32s %-13s %6s %12s %12s", "TID", "NAME", "STATE", "CPU%", "CPU TIME", "ALLOC/s");
+	}
+
+	private String row(int i) {
+		int t = top[i];
+		ThreadInfo info = infos[i];
+		String name = info != null ? info.getThreadName() : "";
+		if(name.length() > 32)
+			name = name.substring(0, 31)+"~";
+		return String.format("%8d  %-32s %-13s %6s %12s %12s", ids[t], name, info != null ? info.getThreadState() : "TERMINATED",
+				cpu[t] >= 0 ? String.format("%.1f", cpuRate[t] * 100) : "-",
+				cpu[t] >= 0 ? formatTime(cpu[t]) : "-",
+				allocated[t] >= 0 ? formatRate(allocRate[t]) : "-");
+	}
+
+	private List<AttributedString> frame(Size size) {
+		List<AttributedString> lines = new ArrayList<>(HEADER_LINES + topSize);
+		lines.add(fit(summary(), size, AttributedStyle.BOLD));
+		lines.add(fit("q quit   c sort by cpu   a sort by alloc   up/down select   enter stack", size, AttributedStyle.DEFAULT.faint()));
+		lines.add(fit(columns(), size, AttributedStyle.INVERSE));
+		for(int i = 0; i < topSize && lines.size() < size.getRows(); i++)
+			lines.add(fit(row(i), size, i == selected ? AttributedStyle.INVERSE : AttributedStyle.DEFAULT));
+		return lines;
+	}
+
+	private static AttributedString fit(String line, Size size, AttributedStyle style) {
+		int width = Math.max(1, size.getColumns() - 1);
+		return new AttributedStringBuilder().style(style).append(line.length() > width ? line.substring(0, width) : line).toAttributedString();
+	}
+
+	/**
+	 * Show the stack of the selected thread until a key is pressed.
+	 * @return false to quit the top
+	 */
+	private boolean showStack(Display display, Size size, BindingReader reader, KeyMap<Operation> keys) throws IOException {
+		long id = ids[top[selected]];
+		List<String> stack = new ArrayList<>();
+		try {
+			CompositeData data = (CompositeData) mbsc.invoke(THREADING, "getThreadInfo", new Object[] { id, Integer.MAX_VALUE }, STACK_SIGNATURE);
+			ThreadInfo info = data != null ? ThreadInfo.from(data) : null;
+			if(info == null) {
+				stack.add("Thread "+id+" is terminated");
+			}
+			else {
+				stack.add("\""+info.getThreadName()+"\" #"+id+" "+info.getThreadState()
+						+(info.getLockName() != null ? " on "+info.getLockName() : "")
+						+(info.getLockOwnerName() != null ? " owned by \""+info.getLockOwnerName()+"\" #"+info.getLockOwnerId() : ""));
+				for(StackTraceElement element : info.getStackTrace())
+					stack.add("    at "+element);
+			}
+		}
+		catch(JMException e) {
+			stack.add("Cannot read the stack of the thread "+id+": "+e.getMessage());
+		}
+
+		int offset = 0;
+		while(true) {
+			int height = Math.max(1, size.getRows() - 1);
+			List<AttributedString> lines = new ArrayList<>(height + 1);
+			lines.add(fit("Stack of the thread "+id+"   up/down scroll   q back", size, AttributedStyle.INVERSE));
+			for(int i = offset; i < stack.size() && lines.size() <= height; i++)
+				lines.add(fit(stack.get(i), size, AttributedStyle.DEFAULT));
+			display.clear();
+			display.update(lines, -1);
+			Operation operation = reader.readBinding(keys, null, false);
+			if(operation == null)
+				return false;
+			if(operation == Operation.UP)
+				offset = Math.max(0, offset - 1);
+			else if(operation == Operation.DOWN)
+				offset = Math.min(Math.max(0, stack.size() - height), offset + 1);
+			else
+				return true;
+		}
+	}
+
+	static String formatTime(long nanos) {
+		long centis = nanos / 10000000;
+		return String.format("%d:%02d.%02d", centis / 6000, (centis / 100) % 60, centis % 100);
+	}
+
+	static String formatRate(double bytes) {
+		if(bytes >= 1 << 30)
+			return String.format("%.1f GB/s", bytes / (1 << 30));
+		if(bytes >= 1 << 20)
+			return String.format("%.1f MB/s", bytes / (1 << 20));
+		if(bytes >= 1 << 10)
+			return String.format("%.1f KB/s", bytes / (1 << 10));
+		return String.format("%.0f B/s", bytes);
+	}
+}
@@ -0,0 +1,82 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.rmi.server.RMISocketFactory;
+
+/**
+ * RMI socket factory enforcing a connection timeout and a read timeout on the client sockets.<br>
+ * The default RMI client sockets have no timeout at all: a dead host blocks a connection for minutes
+ * and a hung target blocks a request forever.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class TimeoutSocketFactory extends RMISocketFactory {
+
+	final int connectTimeout;
+	final int readTimeout;
+
+	/**
+	 * @param connectTimeout the connection timeout in milliseconds, 0 for none
+	 * @param readTimeout the timeout of each read in milliseconds, 0 for none
+	 */
+	public TimeoutSocketFactory(int connectTimeout, int readTimeout) {
+		this.connectTimeout = connectTimeout;
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Install the factory as the default RMI socket factory of the JVM.<br>
+	 * Does nothing if a factory has already been installed.
+	 * @param connectTimeout the connection timeout in milliseconds, 0 for none
+	 * @param readTimeout the timeout of each read in milliseconds, 0 for none
+	 * @return true if the factory has been installed
+	 */
+	public static synchronized boolean install(long connectTimeout, long readTimeout) {
+		if(RMISocketFactory.getSocketFactory() != null)
+			return false;
+
+		try {
+			RMISocketFactory.setSocketFactory(new TimeoutSocketFactory((int) Math.min(connectTimeout, Integer.MAX_VALUE), (int) Math.min(readTimeout, Integer.MAX_VALUE)));
+			return true;
+		}
+		catch(IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public Socket createSocket(String host, int port) throws IOException {
+		Socket socket = new Socket();
+		try {
+			socket.connect(new InetSocketAddress(host, port), connectTimeout);
+			socket.setSoTimeout(readTimeout);
+			return socket;
+		}
+		catch(IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	@Override
+	public ServerSocket createServerSocket(int port) throws IOException {
+		return getDefaultSocketFactory().createServerSocket(port);
+	}
+}
@@ -0,0 +1,421 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.InstanceNotFoundException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The watch command: sample attributes at a fixed rate and stream them as CSV or NDJSON rows.<br>
+ * <pre>
+ * watch BEAN attr[,attr...] [BEAN attr[,attr...]...] [interval] [samples=N] [csv|ndjson]
+ * </pre>
+ * Each tick reads the attributes of each bean with a single getAttributes request. Rolling statistics of the numeric
+ * attributes are printed on stderr when the watch ends. The sampling loop reuses its buffers: the only allocations
+ * per tick are the ones of the JMX request itself.<br>
+ * The interval accepts the suffixes ms, s (default) and m. Ticks that start late because the target is slow
+ * to answer are reported in the drift_ms column and the ticks that cannot be honored at all are skipped.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Watcher {
+
+	/** number of samples kept for the rolling statistics */
+	public static final int WINDOW = 4096;
+
+	private static final Pattern INTERVAL = Pattern.compile("(\\d+)(ms|s|m)?");
+	private static final DateTimeFormatter DAY = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'").withZone(ZoneOffset.UTC);
+	private static final long DAY_MILLIS = 24 * 3600 * 1000L;
+
+	/** output format of the rows */
+	public enum Format { CSV, NDJSON }
+
+	final MBeanServerConnection mbsc;
+	final Logger logger;
+	final List<ObjectName> beans = new ArrayList<>();
+	final List<String[]> attributes = new ArrayList<>();
+	final List<String[]> labels = new ArrayList<>();
+	long interval = 1000;
+	long samples = 0;
+	Format format = Format.CSV;
+
+	// sampling state, only used by the scheduler thread
+	private RollingStats[][] stats;
+	private final StringBuilder row = new StringBuilder(256);
+	private char[] chars = new char[256];
+	private Writer writer;
+	private long start;
+	private long ticks = 0;
+	private long late = 0;
+	private long missed = 0;
+	private long maxDrift = 0;
+	private long dayStart = -1;
+	private String dayPrefix;
+	private boolean printed = false;
+	private volatile Exception failure = null;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Parse the arguments of the watch command.
+	 * @param jconnect the connected JConnect
+	 * @param cmd the command line, cmd[0] being "watch"
+	 * @throws IllegalArgumentException if the command is invalid
+	 */
+	public Watcher(JConnect jconnect, String[] cmd) {
+		this.mbsc = jconnect.getConnection();
+		this.logger = jconnect.logger;
+
+		int i = 1;
+		while(i < cmd.length) {
+			String arg = cmd[i];
+			Matcher matcher = INTERVAL.matcher(arg);
+			if(matcher.matches()) {
+				interval = Long.parseLong(matcher.group(1));
+				if(matcher.group(2) == null || "s".equals(matcher.group(2)))
+					interval *= 1000;
+				else if("m".equals(matcher.group(2)))
+					interval *= 60000;
+				i++;
+			}
+			else if(arg.startsWith("samples=")) {
+				samples = Long.parseLong(arg.substring("samples=".length()));
+				i++;
+			}
+			else if("csv".equalsIgnoreCase(arg) || "ndjson".equalsIgnoreCase(arg)) {
+				format = Format.valueOf(arg.toUpperCase());
+				i++;
+			}
+			else {
+				ObjectName name = jconnect.getIndex().getName(arg);
+				if(name == null)
+					throw new IllegalArgumentException("Invalid Bean "+arg+"!");
+				if(i+1 >= cmd.length)
+					throw new IllegalArgumentException("Missing attributes for "+arg);
+				String[] attrs = StringUtils.split(cmd[i+1], ',');
+				String[] names = new String[attrs.length];
+				for(int j = 0; j < attrs.length; j++)
+					names[j] = arg+"."+attrs[j];
+				beans.add(name);
+				attributes.add(attrs);
+				labels.add(names);
+				i += 2;
+			}
+		}
+
+		if(beans.isEmpty())
+			throw new IllegalArgumentException("Missing bean and attributes to watch");
+		if(interval <= 0)
+			throw new IllegalArgumentException("Invalid interval "+interval+"ms");
+	}
+
+	/**
+	 * Sample until the number of samples is reached, the thread is interrupted or the JVM stops.
+	 * @throws IOException if the JMX connection is lost
+	 */
+	public void run() throws IOException {
+		stats = new RollingStats[beans.size()][];
+		for(int b = 0; b < beans.size(); b++)
+			stats[b] = new RollingStats[attributes.get(b).length];
+		writer = new BufferedWriter(new OutputStreamWriter(System.out));
+		writeHeader();
+
+		// print the statistics even if the watch is stopped by ctrl+c
+		Thread hook = new Thread(this::printStats);
+		Runtime.getRuntime().addShutdownHook(hook);
+
+		ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "jconnect-watch");
+			thread.setDaemon(true);
+			return thread;
+		});
+		start = System.currentTimeMillis();
+		scheduler.scheduleAtFixedRate(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+		try {
+			done.await();
+		}
+		catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			scheduler.shutdownNow();
+			try {
+				scheduler.awaitTermination(interval, TimeUnit.MILLISECONDS);
+			}
+			catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Runtime.getRuntime().removeShutdownHook(hook);
+		}
+
+		printStats();
+		if(failure instanceof IOException)
+			throw (IOException) failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+	}
+
+	private void tick() {
+		long now = System.currentTimeMillis();
+		long expected = start + ticks * interval;
+		if(now < expected)
+			return; // catch-up execution of a tick already skipped
+		long drift = now - expected;
+		if(drift >= interval) {
+			// the previous tick lasted more than an interval: skip the ticks that cannot be honored
+			long skipped = drift / interval;
+			missed += skipped;
+			ticks += skipped;
+			drift -= skipped * interval;
+		}
+		ticks++;
+		if(drift > interval / 10) {
+			late++;
+			maxDrift = Math.max(maxDrift, drift);
+		}
+
+		try {
+			row.setLength(0);
+			if(format == Format.NDJSON)
+				row.append("{\"timestamp\":\"");
+			appendTimestamp(now);
+			if(format == Format.NDJSON)
+				row.append('"');
+
+			long before = System.nanoTime();
+			for(int b = 0; b < beans.size(); b++)
+				sample(b, now);
+			long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - before);
+
+			if(format == Format.NDJSON)
+				row.append(",\"latency_ms\":").append(latency).append(",\"drift_ms\":").append(drift).append("}\n");
+			else
+				row.append(',').append(latency).append(',').append(drift).append('\n');
+			write();
+		}
+		catch(IOException | RuntimeException e) {
+			failure = e;
+			done.countDown();
+			return;
+		}
+
+		if(samples > 0 && ticks - missed >= samples)
+			done.countDown();
+	}
+
+	private void sample(int b, long now) throws IOException {
+		String[] attrs = attributes.get(b);
+		String[] names = labels.get(b);
+		AttributeList list = null;
+		try {
+			list = mbsc.getAttributes(beans.get(b), attrs);
+		}
+		catch(InstanceNotFoundException | ReflectionException e) {
+			logger.warn("Cannot sample "+beans.get(b)+".", e);
+		}
+
+		for(int a = 0; a < attrs.length; a++) {
+			Object value = null;
+			if(list != null) {
+				// the result follows the order of the request but omits the attributes that failed
+				for(int j = Math.min(a, list.size()-1); j >= 0; j--) {
+					Attribute attr = (Attribute) list.get(j);
+					if(attr.getName().equals(attrs[a])) {
+						value = attr.getValue();
+						break;
+					}
+				}
+			}
+
+			if(format == Format.NDJSON)
+				row.append(",\"").append(names[a]).append("\":");
+			else
+				row.append(',');
+			appendValue(value);
+
+			if(value instanceof Number) {
+				if(stats[b][a] == null)
+					stats[b][a] = new RollingStats(WINDOW);
+				stats[b][a].add(now, ((Number) value).doubleValue());
+			}
+		}
+	}
+
+	private void appendValue(Object value) {
+		if(value == null) {
+			if(format == Format.NDJSON)
+				row.append("null");
+		}
+		else if(value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+			row.append(((Number) value).longValue());
+		}
+		else if(value instanceof Double || value instanceof Float) {
+			double d = ((Number) value).doubleValue();
+			if(format == Format.NDJSON && (Double.isNaN(d) || Double.isInfinite(d)))
+				row.append("null");
+			else
+				row.append(d);
+		}
+		else if(value instanceof Boolean) {
+			row.append(((Boolean) value).booleanValue());
+		}
+		else if(format == Format.NDJSON) {
+			appendJsonString(row, value.toString());
+		}
+		else {
+			appendCsv(row, value.toString());
+		}
+	}
+
+	/**
+	 * Append a quoted JSON string.
+	 * @param builder the destination
+	 * @param value the string to quote
+	 */
+	static void appendJsonString(StringBuilder builder, String value) {
+		builder.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch(c) {
+				case '"':  builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				default:
+					if(c < 0x20)
+						builder.append(String.format("\\u%04x", (int) c));
+					else
+						builder.append(c);
+			}
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * Append a CSV field, quoted only if needed.
+	 * @param builder the destination
+	 * @param value the field
+	 */
+	static void appendCsv(StringBuilder builder, String value) {
+		if(StringUtils.containsNone(value, ',', '"', '\n', '\r')) {
+			builder.append(value);
+			return;
+		}
+		builder.append('"');
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '"')
+				builder.append('"');
+			builder.append(c);
+		}
+		builder.append('"');
+	}
+
+	/**
+	 * Append an ISO-8601 UTC timestamp. The date is only formatted once a day.
+	 */
+	private void appendTimestamp(long millis) {
+		long day = millis - Math.floorMod(millis, DAY_MILLIS);
+		if(day != dayStart) {
+			dayStart = day;
+			dayPrefix = DAY.format(Instant.ofEpochMilli(day));
+		}
+		long ms = millis - day;
+		row.append(dayPrefix);
+		append2(ms / 3600000);
+		row.append(':');
+		append2(ms / 60000 % 60);
+		row.append(':');
+		append2(ms / 1000 % 60);
+		row.append('.');
+		long milli = ms % 1000;
+		if(milli < 100)
+			row.append('0');
+		append2(milli);
+		row.append('Z');
+	}
+
+	private void append2(long value) {
+		if(value < 10)
+			row.append('0');
+		row.append(value);
+	}
+
+	private void writeHeader() throws IOException {
+		if(format == Format.CSV) {
+			row.setLength(0);
+			row.append("timestamp");
+			for(String[] names : labels) {
+				for(String name : names) {
+					row.append(',');
+					appendCsv(row, name);
+				}
+			}
+			row.append(",latency_ms,drift_ms\n");
+			write();
+		}
+	}
+
+	private void write() throws IOException {
+		int length = row.length();
+		if(chars.length < length)
+			chars = new char[Math.max(length, chars.length * 2)];
+		row.getChars(0, length, chars, 0);
+		writer.write(chars, 0, length);
+		writer.flush();
+	}
+
+	private synchronized void printStats() {
+		if(stats == null || printed)
+			return;
+		printed = true;
+
+		System.err.println(String.format("%-40s %8s %14s %14s %14s %14s %14s %14s", "attribute", "n", "min", "max", "mean", "p50", "p99", "rate/s"));
+		for(int b = 0; b < stats.length; b++) {
+			for(int a = 0; a < stats[b].length; a++) {
+				RollingStats stat = stats[b][a];
+				if(stat == null)
+					continue;
+				System.err.println(String.format("%-40s %8d %14.6g %14.6g %14.6g %14.6g %14.6g %14.6g", labels.get(b)[a], stat.total(),
+						stat.min(), stat.max(), stat.mean(), stat.percentile(50), stat.percentile(99), stat.rate()));
+			}
+		}
+		if(late > 0 || missed > 0)
+			System.err.println("Target slow to answer: "+late+" late samples (max drift "+maxDrift+"ms), "+missed+" skipped ticks");
+	}
+}
@@ -0,0 +1,71 @@
+/**
+ * MIT License
+ *
+ * Copyright (c) 2019 Anthony Thomas
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package timmy.toolbox.cmdline;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory of the bounded executors used to run JMX requests concurrently.<br>
+ * The workers are virtual threads when the JDK provides them (Java 21+), daemon platform threads otherwise.
+ *
+ * @author Anthony THOMAS
+ *
+ */
+public class Workers {
+
+	private static final ThreadFactory virtualFactory = lookupVirtualFactory();
+
+	private Workers() {
+	}
+
+	private static ThreadFactory lookupVirtualFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+			return (ThreadFactory) factory.invoke(builder);
+		}
+		catch(ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @return true if the workers are virtual threads
+	 */
+	public static boolean isVirtual() {
+		return virtualFactory != null;
+	}
+
+	/**
+	 * Create an executor running at most the given number of tasks concurrently.
+	 * @param parallelism the maximum number of concurrent tasks
+	 * @param name the prefix of the names of the platform threads
+	 * @return the executor, to be shut down by the caller
+	 */
+	public static ExecutorService newBoundedExecutor(int parallelism, String name) {
+		if(virtualFactory != null)
+			return Executors.newFixedThreadPool(parallelism, virtualFactory);
+
+		AtomicInteger count = new AtomicInteger();
+		return Executors.newFixedThreadPool(parallelism, r -> {
+			Thread thread = new Thread(r, name+"-"+count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+}